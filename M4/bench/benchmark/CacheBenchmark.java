@@ -0,0 +1,65 @@
+package benchmark;
+
+import app_kvServer.CacheManager.CachePolicy;
+import app_kvServer.CacheManager.FIFO;
+import app_kvServer.CacheManager.LFU;
+import app_kvServer.CacheManager.LRU;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each cache policy under contention: three threads reading and one
+ * writing over twice as many keys as the cache holds, as the worker pool
+ * of a server does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Group)
+public class CacheBenchmark {
+
+    private static final int CACHE_SIZE = 1000;
+    private static final int KEY_SPACE = 2 * CACHE_SIZE;
+
+    @Param({"FIFO", "LRU", "LFU"})
+    public String strategy;
+
+    private CachePolicy cache;
+    private String value;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (strategy) {
+            case "FIFO":
+                cache = new FIFO(CACHE_SIZE);
+                break;
+            case "LRU":
+                cache = new LRU(CACHE_SIZE);
+                break;
+            default:
+                cache = new LFU(CACHE_SIZE);
+        }
+        value = Keys.value(100);
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            cache.putKV(Keys.key(i), value);
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public String get() {
+        return cache.getKV(Keys.key(ThreadLocalRandom.current().nextInt(KEY_SPACE)));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void put() {
+        cache.putKV(Keys.key(ThreadLocalRandom.current().nextInt(KEY_SPACE)), value);
+    }
+}
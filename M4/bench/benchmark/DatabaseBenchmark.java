@@ -0,0 +1,54 @@
+package benchmark;
+
+import app_kvServer.Database.KVDatabase;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes of the persistent storage of a server. A PUT appends the
+ * pair to the storage file and rewrites the lookup table, so its cost grows
+ * with the number of stored keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+
+    private static final int PORT = 59999; // names the storage files, no socket is opened
+
+    @Param({"100", "1000"})
+    public int keys;
+
+    private KVDatabase db;
+    private String value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        db = new KVDatabase(PORT);
+        db.clearStorage();
+        value = Keys.value(100);
+        for (int i = 0; i < keys; i++) {
+            db.putKV(Keys.key(i), value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.clearStorage();
+    }
+
+    @Benchmark
+    public Object put() throws Exception {
+        return db.putKV(Keys.key(ThreadLocalRandom.current().nextInt(keys)), value);
+    }
+
+    @Benchmark
+    public String get() throws Exception {
+        return db.getKV(Keys.key(ThreadLocalRandom.current().nextInt(keys)));
+    }
+}
@@ -0,0 +1,57 @@
+package benchmark;
+
+import ecs.ECSHashRing;
+import ecs.ECSNode;
+import org.openjdk.jmh.annotations.*;
+import shared.HashingFunction.MD5;
+
+import java.math.BigInteger;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing a key and finding the server responsible for it, done for every
+ * request by the server and by the routing clients.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class HashingBenchmark {
+
+    private static final int KEY_SPACE = 1024;
+
+    @Param({"3", "20"})
+    public int servers;
+
+    private ECSHashRing ring;
+    private BigInteger[] hashes = new BigInteger[KEY_SPACE];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ring = new ECSHashRing();
+        for (int i = 0; i < servers; i++) {
+            ring.addNode(new ECSNode("server" + (i + 1), "127.0.0.1", 50000 + i));
+        }
+        for (int i = 0; i < KEY_SPACE; i++) {
+            hashes[i] = MD5.HashInBI(Keys.key(i));
+        }
+    }
+
+    @Benchmark
+    public BigInteger md5() {
+        return MD5.HashInBI(Keys.key(ThreadLocalRandom.current().nextInt(KEY_SPACE)));
+    }
+
+    @Benchmark
+    public ECSNode nodeByHash() {
+        return ring.getNodeByHash(hashes[ThreadLocalRandom.current().nextInt(KEY_SPACE)]);
+    }
+
+    @Benchmark
+    public ECSNode nodeByKey() {
+        return ring.getNodeByHash(MD5.HashInBI(Keys.key(ThreadLocalRandom.current().nextInt(KEY_SPACE))));
+    }
+}
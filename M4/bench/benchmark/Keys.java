@@ -0,0 +1,30 @@
+package benchmark;
+
+/**
+ * Keys and values shared by the benchmarks.
+ */
+final class Keys {
+
+    private static final String[] KEYS = new String[100000];
+
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEYS[i] = "benchKey" + i;
+        }
+    }
+
+    private Keys() {
+    }
+
+    static String key(int i) {
+        return KEYS[i];
+    }
+
+    static String value(int length) {
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import shared.Constants;
+import shared.communication.MessageCodec;
+import shared.messages.CorrelationId;
+import shared.messages.TextMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding replies and decoding requests as the client connections of a
+ * server do: framing on a blocking stream for the thread-per-connection
+ * front end, on a channel for the selector front end, then splitting the
+ * request into its tokens. Each decoding benchmark reads a batch of
+ * BATCH requests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+
+    private static final int BATCH = 64;
+    private static final String DELIMITER = Constants.DELIMITER;
+
+    @Param({"100", "4096"})
+    public int valueSize;
+
+    private String request;
+    private byte[] requestBytes;
+    private byte[] batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        request = "PUT" + DELIMITER + Keys.key(42) + DELIMITER + Keys.value(valueSize)
+                + DELIMITER + System.currentTimeMillis() + DELIMITER + 50000;
+        requestBytes = request.getBytes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < BATCH; i++) {
+            out.write(new TextMessage(CorrelationId.tag(i, request)).getMsgBytes());
+        }
+        batch = out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return new TextMessage(request).getMsgBytes();
+    }
+
+    @Benchmark
+    public String fromBytes() {
+        return new TextMessage(requestBytes).getMsg();
+    }
+
+    @Benchmark
+    public void readStream(Blackhole bh) throws IOException {
+        MessageCodec codec = new MessageCodec();
+        ByteArrayInputStream input = new ByteArrayInputStream(batch);
+        for (int i = 0; i < BATCH; i++) {
+            bh.consume(codec.readMessage(input));
+        }
+    }
+
+    @Benchmark
+    public void readChannel(Blackhole bh) throws IOException {
+        MessageCodec codec = new MessageCodec();
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(batch));
+        int read = 0;
+        while (read < BATCH && codec.fill(channel) >= 0) {
+            String msg;
+            while ((msg = codec.nextMessage()) != null) {
+                bh.consume(msg);
+                read++;
+            }
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) {
+        String msg = CorrelationId.tag(7, request);
+        long id = CorrelationId.idOf(msg);
+        String[] tokens = CorrelationId.untag(msg).split("\\" + DELIMITER);
+        bh.consume(id);
+        bh.consume(tokens);
+    }
+}
@@ -0,0 +1,14 @@
+package app_kvServer.CacheManager;
+
+/**
+ * Loads the value of a key from the backing storage on a cache miss.
+ */
+public interface CacheLoader {
+
+    /**
+     * @param key the key that missed in the cache
+     * @return the stored value, or null if the key is not in storage
+     * @throws Exception when the storage could not be read
+     */
+    String load(String key) throws Exception;
+}
@@ -1,41 +1,143 @@
 package app_kvServer.CacheManager;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class CachePolicy {
     protected int maxCacheSize;
 
     protected Map<String, String> cacheList;
 
+    // guards compound operations on the cache; a lock instead of a monitor so that
+    // virtual threads waiting for it release their carrier thread
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    // storage reads currently running for missed keys, shared by concurrent callers
+    private final ConcurrentMap<String, FutureTask<String>> inFlightLoads = new ConcurrentHashMap<>();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong coalescedLoadCount = new AtomicLong();
+
     public CachePolicy(int cachesize) {
         this.maxCacheSize = cachesize;
     }
 
     public boolean inCache(String key) {
-        synchronized (cacheList) {
+        lock.lock();
+        try {
             return cacheList.containsKey(key);
+        } finally {
+            lock.unlock();
         }
     }
 
     protected void deleteCache(String key) {
-        synchronized (cacheList) {
+        lock.lock();
+        try {
             cacheList.remove(key);
+        } finally {
+            lock.unlock();
         }
     }
 
     public String getKV(String key) {
-        synchronized (cacheList) {
+        lock.lock();
+        try {
             if (cacheList.containsKey(key)) {
                 return cacheList.get(key);
             } else {
                 return null;
             }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the value of a key, loading it from storage on a miss. Concurrent misses
+     * on the same key wait for the single load in flight instead of reading the
+     * storage again.
+     *
+     * @param key    the key to look up
+     * @param loader reads the key from storage on a miss
+     * @return the value, or null if the key is neither cached nor stored
+     * @throws Exception the exception thrown by the loader
+     */
+    public String getOrLoad(String key, CacheLoader loader) throws Exception {
+        String value = getKV(key);
+        if (value != null) {
+            return value;
+        }
+
+        FutureTask<String> load = new FutureTask<>(() -> loader.load(key));
+        FutureTask<String> inFlight = inFlightLoads.putIfAbsent(key, load);
+        if (inFlight != null) {
+            coalescedLoadCount.incrementAndGet();
+            return awaitLoad(inFlight);
+        }
+
+        loadCount.incrementAndGet();
+        try {
+            load.run();
+            value = awaitLoad(load);
+        } finally {
+            lock.lock();
+            try {
+                // a PUT during the load drops the registration, the loaded value is stale then
+                if (inFlightLoads.remove(key, load) && value != null) {
+                    putKV(key, value);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return value;
+    }
+
+    private String awaitLoad(FutureTask<String> load) throws Exception {
+        try {
+            return load.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
         }
     }
 
+    /**
+     * Prevent a storage read in flight for the key from filling the cache.
+     */
+    protected void invalidateLoad(String key) {
+        inFlightLoads.remove(key);
+    }
+
+    /**
+     * @return number of storage reads issued by getOrLoad
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * @return number of getOrLoad misses served by a load already in flight
+     */
+    public long getCoalescedLoadCount() {
+        return coalescedLoadCount.get();
+    }
+
     public void putKV(String key, String value) {
-        synchronized (cacheList) {
+        lock.lock();
+        try {
             //TODO: invalid value
+            invalidateLoad(key);
 
             if (value == null || value.equals("")) {
                 if (inCache(key)) {
@@ -44,10 +146,29 @@ public abstract class CachePolicy {
             } else {
                 cacheList.put(key, value);
             }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the cached keys, hottest first
+     */
+    public List<String> getHotKeys() {
+        List<String> keys;
+        lock.lock();
+        try {
+            keys = new ArrayList<>(cacheList.keySet());
+        } finally {
+            lock.unlock();
         }
+        // insertion (FIFO) or access (LRU) order puts the hottest key last
+        Collections.reverse(keys);
+        return keys;
     }
 
     public void clearCache() {
+        inFlightLoads.clear();
         cacheList.clear();
     }
 
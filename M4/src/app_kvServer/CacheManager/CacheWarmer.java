@@ -0,0 +1,207 @@
+package app_kvServer.CacheManager;
+
+import org.apache.log4j.Logger;
+import shared.Constants;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists the hot key set of a cache and prefetches it from storage
+ * when the server starts again, or once data was moved to it. Only keys
+ * are persisted, values are always read from storage.
+ *
+ * The snapshot of a server is named after its port. The snapshots of the
+ * other servers in the store directory are prefetched after its own, the
+ * keys it does not store are skipped: a server replacing a crashed one on
+ * another port warms up with the hot keys of the crashed one it took over.
+ */
+public class CacheWarmer {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final String PREFIX = "HotKeys-";
+    private static final String SUFFIX = ".txt";
+
+    private final CachePolicy cache;
+    private final CacheLoader loader;
+    private final File snapshotFile;
+
+    private ScheduledExecutorService scheduler;
+    private final AtomicLong warmedKeys = new AtomicLong();
+
+    public CacheWarmer(CachePolicy cache, CacheLoader loader, int port) {
+        this(cache, loader, new File(Constants.DB_DIR), port);
+    }
+
+    /**
+     * @param dir directory of the snapshots of the servers
+     */
+    public CacheWarmer(CachePolicy cache, CacheLoader loader, File dir, int port) {
+        this.cache = cache;
+        this.loader = loader;
+        this.snapshotFile = new File(dir, PREFIX + port + SUFFIX);
+    }
+
+    /**
+     * Warm up the cache in the background, then snapshot the hot keys periodically.
+     *
+     * @param snapshotInterval ms between two snapshots
+     * @param warmupBudget     max ms spent prefetching keys
+     */
+    public void start(long snapshotInterval, long warmupBudget) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cache-warmer");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.execute(() -> warmUp(warmupBudget));
+        scheduler.scheduleAtFixedRate(this::snapshot,
+                snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Prefetch the hot keys again in the background, once the storage got
+     * the data moved to this server.
+     *
+     * @param warmupBudget max ms spent prefetching keys
+     */
+    public void rewarm(long warmupBudget) {
+        ScheduledExecutorService s = scheduler;
+        if (s != null) {
+            s.execute(() -> warmUp(warmupBudget));
+        }
+    }
+
+    /**
+     * Take a last snapshot and stop the background tasks.
+     */
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        snapshot();
+    }
+
+    public synchronized void snapshot() {
+        List<String> keys = cache.getHotKeys();
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            File dir = snapshotFile.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                logger.error("[CacheWarmer] Unable to create " + dir);
+                return;
+            }
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp, false), StandardCharsets.UTF_8))) {
+                for (String key : keys) {
+                    writer.write(key);
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            logger.debug("[CacheWarmer] " + keys.size() + " hot keys saved to " + snapshotFile);
+        } catch (IOException e) {
+            logger.error("[CacheWarmer] Unable to save hot keys", e);
+        }
+    }
+
+    /**
+     * @return the keys of the last snapshot, hottest first
+     */
+    public List<String> readSnapshot() {
+        List<String> keys = new ArrayList<>();
+        readSnapshot(snapshotFile, keys);
+        return keys;
+    }
+
+    /**
+     * @return the keys of the last snapshot of this server, then those of
+     * the other servers in the store directory, without duplicates
+     */
+    public Set<String> readSnapshots() {
+        Set<String> keys = new LinkedHashSet<>(readSnapshot());
+        File[] others = snapshotFile.getParentFile().listFiles(
+                (dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX) && !name.equals(snapshotFile.getName()));
+        if (others != null) {
+            Arrays.sort(others);
+            for (File other : others) {
+                List<String> otherKeys = new ArrayList<>();
+                readSnapshot(other, otherKeys);
+                keys.addAll(otherKeys);
+            }
+        }
+        return keys;
+    }
+
+    private void readSnapshot(File file, List<String> keys) {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    keys.add(line);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("[CacheWarmer] Unable to read hot keys of " + file, e);
+        }
+    }
+
+    /**
+     * Prefetch the keys of the last snapshots, hottest first, until all are
+     * cached, the cache is full or the budget runs out.
+     *
+     * @param budget max ms spent prefetching
+     * @return number of keys brought into the cache
+     */
+    public int warmUp(long budget) {
+        long deadline = System.currentTimeMillis() + budget;
+        int warmed = 0;
+
+        for (String key : readSnapshots()) {
+            if (System.currentTimeMillis() >= deadline || Thread.currentThread().isInterrupted()) {
+                logger.info("[CacheWarmer] Warm-up budget of " + budget + " ms exhausted");
+                break;
+            }
+            if (warmed >= cache.getCacheSize()) {
+                break; // the keys of the other servers would evict the hottest ones
+            }
+            try {
+                if (cache.getOrLoad(key, loader) != null) {
+                    warmed++;
+                }
+            } catch (Exception e) {
+                logger.warn("[CacheWarmer] Unable to prefetch key " + key + ": " + e);
+            }
+        }
+        warmedKeys.addAndGet(warmed);
+        logger.info("[CacheWarmer] " + warmed + " keys prefetched into cache");
+        return warmed;
+    }
+
+    public void deleteSnapshot() {
+        if (snapshotFile.exists() && !snapshotFile.delete()) {
+            logger.error("[CacheWarmer] Unable to delete " + snapshotFile);
+        }
+    }
+
+    public long getWarmedKeyCount() {
+        return warmedKeys.get();
+    }
+}
@@ -39,55 +39,79 @@ public class LFU extends CachePolicy {
     }
 
     private void frequencyUpdate(String key) {
-        synchronized (frequencyList) {
+        lock.lock();
+        try {
             Integer newFrequency = frequencyList.get(key) + 1;
             frequencyList.put(key, newFrequency);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public String getKV(String key) {
-        synchronized (cacheList) {
-            synchronized (frequencyList) {
-                if (cacheList.containsKey(key)) {
-                    frequencyUpdate(key);
-                    return cacheList.get(key);
-                } else {
-                    return null;
-                }
+        lock.lock();
+        try {
+            if (cacheList.containsKey(key)) {
+                frequencyUpdate(key);
+                return cacheList.get(key);
+            } else {
+                return null;
             }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public void putKV(String key, String value) {
-        synchronized (cacheList) {
-            synchronized (frequencyList) {
-                if (value == null) {
-                    if (inCache(key)) {
-                        deleteCache(key);
-                    }
-                } else {
-                    // update
-                    if (frequencyList.containsKey(key)) {
-                        cacheList.put(key, value);
-                        frequencyUpdate(key);
-                    }
-                    // add
-                    else {
-                        if (maxCacheSize == cacheList.size()) {
-                            evict();// Call Make space function
-                        }
-                        cacheList.put(key, value);
-                        frequencyList.put(key, 1);
+        lock.lock();
+        try {
+            invalidateLoad(key);
+            if (value == null) {
+                if (inCache(key)) {
+                    deleteCache(key);
+                }
+            } else {
+                // update
+                if (frequencyList.containsKey(key)) {
+                    cacheList.put(key, value);
+                    frequencyUpdate(key);
+                }
+                // add
+                else {
+                    if (maxCacheSize == cacheList.size()) {
+                        evict();// Call Make space function
                     }
-
+                    cacheList.put(key, value);
+                    frequencyList.put(key, 1);
                 }
+
             }
+        } finally {
+            lock.unlock();
         }
     }
 
 
+    @Override
+    public List<String> getHotKeys() {
+        List<Map.Entry<String, Integer>> entries;
+        lock.lock();
+        try {
+            entries = new ArrayList<>(frequencyList.entrySet());
+        } finally {
+            lock.unlock();
+        }
+        entries.sort((e1, e2) -> e2.getValue().compareTo(e1.getValue()));
+
+        List<String> keys = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Integer> entry : entries) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
     private void evict() {
         Map sortedMap = sortByValues(frequencyList);
         Map.Entry temp = (Map.Entry) sortedMap.entrySet().iterator().next();
@@ -98,17 +122,18 @@ public class LFU extends CachePolicy {
 
     @Override
     public void clearCache() {
-        cacheList.clear();
+        super.clearCache();
         frequencyList.clear();
     }
 
     @Override
     protected void deleteCache(String key) {
-        synchronized (cacheList) {
-            synchronized (frequencyList) {
-                cacheList.remove(key);
-                frequencyList.remove(key);
-            }
+        lock.lock();
+        try {
+            cacheList.remove(key);
+            frequencyList.remove(key);
+        } finally {
+            lock.unlock();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+package app_kvServer.Clock;
+
+import org.apache.log4j.Logger;
+import shared.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.function.LongSupplier;
+
+/**
+ * Hybrid logical clock: the physical time in ms of the latest write seen,
+ * with a logical counter ordering the writes within the same ms. Stamps
+ * of all servers are ordered, close to their physical time, so the last
+ * writer of a key wins across servers as long as their clocks are within
+ * CLOCK_MAX_OFFSET of each other. A write is stamped with one long, time
+ * in the upper 48 bits and counter in the lower 16, written in hex.
+ */
+public class HybridLogicalClock implements LogicalClock {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int LOGICAL_BITS = 16;
+    private static final long LOGICAL_MASK = (1L << LOGICAL_BITS) - 1;
+
+    private final LongSupplier physical;
+    private long time; // guarded by this
+    private long logical;
+
+    /**
+     * @param physical physical time in ms
+     */
+    public HybridLogicalClock(LongSupplier physical) {
+        this.physical = physical;
+    }
+
+    @Override
+    public synchronized String tick() {
+        long now = physical.getAsLong();
+        if (now > time) {
+            time = now;
+            logical = 0;
+        } else {
+            advanceLogical();
+        }
+        return Long.toHexString(current());
+    }
+
+    @Override
+    public synchronized boolean observe(String stamp) {
+        long remote;
+        try {
+            remote = Long.parseUnsignedLong(stamp, 16);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        long remoteTime = remote >>> LOGICAL_BITS;
+        long remoteLogical = remote & LOGICAL_MASK;
+        long now = physical.getAsLong();
+        if (remoteTime > now + Constants.CLOCK_MAX_OFFSET) {
+            logger.warn("[HybridLogicalClock] Stamp " + stamp + " is " + (remoteTime - now) + " ms ahead, not followed");
+            return true;
+        }
+        long next = Math.max(Math.max(time, remoteTime), now);
+        if (next == time && next == remoteTime) {
+            logical = Math.max(logical, remoteLogical);
+            advanceLogical();
+        } else if (next == time) {
+            advanceLogical();
+        } else if (next == remoteTime) {
+            time = next;
+            logical = remoteLogical;
+            advanceLogical();
+        } else {
+            time = next;
+            logical = 0;
+        }
+        return true;
+    }
+
+    private void advanceLogical() {
+        if (++logical > LOGICAL_MASK) {
+            // more writes in a ms than the counter holds, borrow the next ms
+            time++;
+            logical = 0;
+        }
+    }
+
+    private long current() {
+        return time << LOGICAL_BITS | logical;
+    }
+
+    @Override
+    public int compare(String a, String b) {
+        try {
+            return Long.compareUnsigned(Long.parseUnsignedLong(a, 16), Long.parseUnsignedLong(b, 16));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Stamps do not name servers, nothing to forget.
+     */
+    @Override
+    public void retain(Collection<String> nodes) {
+    }
+
+    @Override
+    public synchronized byte[] encode() {
+        return ByteBuffer.allocate(Long.BYTES).putLong(current()).array();
+    }
+
+    @Override
+    public synchronized void decode(byte[] state) {
+        if (state.length != Long.BYTES) {
+            return;
+        }
+        long saved = ByteBuffer.wrap(state).getLong();
+        if (Long.compareUnsigned(saved, current()) > 0) {
+            time = saved >>> LOGICAL_BITS;
+            logical = saved & LOGICAL_MASK;
+        }
+    }
+}
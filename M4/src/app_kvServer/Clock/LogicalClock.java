@@ -0,0 +1,66 @@
+package app_kvServer.Clock;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Clock of a server stamping the writes it makes. Every write carries one
+ * stamp of constant size, whatever the number of servers: the WAL logs it
+ * and replicas get it with the write, observe it and keep the later of two
+ * writes of a key when they arrive out of order.
+ */
+public interface LogicalClock {
+
+    String VECTOR = "vector";
+    String HYBRID = "hlc";
+
+    /**
+     * @return stamp of a write made on this server, after every stamp
+     * made or observed so far
+     */
+    String tick();
+
+    /**
+     * Advance past the stamp of a write made on another server.
+     *
+     * @return false if it is no stamp of this clock
+     */
+    boolean observe(String stamp);
+
+    /**
+     * @return negative if a was written before b, positive if after, 0 if
+     * the clock does not order them
+     */
+    int compare(String a, String b);
+
+    /**
+     * Forget the servers that left the ring.
+     */
+    void retain(Collection<String> nodes);
+
+    /**
+     * @return the state of the clock, to be restored after a restart
+     */
+    byte[] encode();
+
+    /**
+     * Advance past a state encoded before.
+     */
+    void decode(byte[] state) throws IOException;
+
+    /**
+     * @param kind VECTOR or HYBRID
+     * @param node name of the server in the ring
+     * @throws IllegalArgumentException if the kind of clock is unknown
+     */
+    static LogicalClock of(String kind, String node) {
+        switch (kind) {
+            case VECTOR:
+                return new VectorClock(node);
+            case HYBRID:
+                return new HybridLogicalClock(System::currentTimeMillis);
+            default:
+                throw new IllegalArgumentException("Unknown clock: " + kind);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package app_kvServer.Clock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Vector clock with an entry per server that wrote, keyed by server name.
+ * A write is stamped with its dot, the name of its server and the counter
+ * of that server after the write ("server1:42"), rather than the whole
+ * vector: the dot identifies the write and orders it with the other
+ * writes of its server, and the vector is the union of the dots seen.
+ */
+public class VectorClock implements LogicalClock {
+
+    private static final char SEPARATOR = ':';
+
+    private final String node;
+    private final Map<String, Long> counters = new TreeMap<>(); // guarded by this
+
+    public VectorClock(String node) {
+        this.node = node;
+    }
+
+    @Override
+    public synchronized String tick() {
+        return node + SEPARATOR + counters.merge(node, 1L, Long::sum);
+    }
+
+    @Override
+    public synchronized boolean observe(String stamp) {
+        int at = stamp.lastIndexOf(SEPARATOR);
+        if (at <= 0) {
+            return false;
+        }
+        try {
+            counters.merge(stamp.substring(0, at), Long.parseLong(stamp.substring(at + 1)), Math::max);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Dots of different servers are not ordered.
+     */
+    @Override
+    public int compare(String a, String b) {
+        int atA = a.lastIndexOf(SEPARATOR);
+        int atB = b.lastIndexOf(SEPARATOR);
+        if (atA <= 0 || atA != atB || !a.regionMatches(0, b, 0, atA)) {
+            return 0;
+        }
+        try {
+            return Long.compare(Long.parseLong(a.substring(atA + 1)), Long.parseLong(b.substring(atB + 1)));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized void retain(Collection<String> nodes) {
+        counters.keySet().removeIf(n -> !n.equals(node) && !nodes.contains(n));
+    }
+
+    /**
+     * @return counter of the server, 0 if none of its writes was seen
+     */
+    public synchronized long get(String node) {
+        return counters.getOrDefault(node, 0L);
+    }
+
+    /**
+     * @return number of servers in the vector
+     */
+    public synchronized int size() {
+        return counters.size();
+    }
+
+    /**
+     * Number of entries, then name and counter of each, as variable length
+     * integers.
+     */
+    @Override
+    public synchronized byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeVarLong(out, counters.size());
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeVarLong(out, entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown in memory
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public synchronized void decode(byte[] state) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(state))) {
+            long entries = readVarLong(in);
+            for (long i = 0; i < entries; i++) {
+                counters.merge(in.readUTF(), readVarLong(in), Math::max);
+            }
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed vector clock");
+    }
+}
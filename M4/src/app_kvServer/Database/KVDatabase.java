@@ -4,10 +4,12 @@ import java.io.*;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Collections;
 
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import shared.Constants;
@@ -29,6 +31,10 @@ public class KVDatabase implements IKVDatabase {
     private String LUTName;
     private Map<String, KVEntry> synchLUT; //synchronized
 
+    // serializes file access; a lock instead of synchronized methods so that
+    // virtual threads blocked on disk I/O do not pin their carrier thread
+    private final ReentrantLock fileLock = new ReentrantLock();
+
 
     private Logger logger = Logger.getRootLogger();
 
@@ -110,8 +116,29 @@ public class KVDatabase implements IKVDatabase {
         }
     }
 
-    // TODO: handle this exception
     public StatusType putKV(String K, String V) throws Exception {
+        StatusType status = put(K, V);
+        saveLUT();
+        return status;
+    }
+
+    /**
+     * Store several pairs in order and save the lookup table once.
+     *
+     * @param pairs key and value of each pair, an empty value deletes the key
+     * @return status of each pair
+     */
+    public List<StatusType> putKVs(List<String[]> pairs) {
+        List<StatusType> statuses = new ArrayList<>(pairs.size());
+        for (String[] kv : pairs) {
+            statuses.add(put(kv[0], kv[1]));
+        }
+        saveLUT();
+        return statuses;
+    }
+
+    // TODO: handle this exception
+    private StatusType put(String K, String V) {
         KVEntry kve = synchLUT.get(K);
         StatusType status = StatusType.PUT_ERROR;
         try {
@@ -138,23 +165,27 @@ public class KVDatabase implements IKVDatabase {
                     logger.info("[DB] Update [Key: " + K + ", Value: " + V + "] in FileSystem");
                 }
             }
-            saveLUT();
         } finally {
             return status;
         }
     }
 
-    private synchronized long appendEntry(byte[] bytes, String K) throws IOException {
+    private long appendEntry(byte[] bytes, String K) throws IOException {
         long location;
 
-        RandomAccessFile raf = new RandomAccessFile(getDBPath(), "rw");
-        location = raf.length();
-        raf.seek(location);
-        raf.write(bytes);
-        raf.close();
+        fileLock.lock();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(getDBPath(), "rw");
+            location = raf.length();
+            raf.seek(location);
+            raf.write(bytes);
+            raf.close();
 
-        KVEntry added = new KVEntry(location, location + bytes.length);
-        synchLUT.put(K, added);
+            KVEntry added = new KVEntry(location, location + bytes.length);
+            synchLUT.put(K, added);
+        } finally {
+            fileLock.unlock();
+        }
         logger.info("[DB] Write Byte Array to disk");
 
         return location;
@@ -182,7 +213,7 @@ public class KVDatabase implements IKVDatabase {
 //    }
 
 
-    private synchronized void deleteKVEntry(String K) throws IOException {
+    private void deleteKVEntry(String K) throws IOException {
         synchLUT.remove(K);
         logger.info("[DB] Delete Key: " + K + " from FileSystem");
     }
@@ -267,11 +298,18 @@ public class KVDatabase implements IKVDatabase {
     }
 
     private boolean saveLUT() {
+        // copy first, serializing the synchronized map would hold its monitor during the write;
+        // copied under the file lock, so the copies reach the disk in the order they were taken
+        fileLock.lock();
         try {
+            Map<String, KVEntry> copy;
+            synchronized (synchLUT) {
+                copy = new HashMap<>(synchLUT);
+            }
             FileOutputStream fileOut =
                     new FileOutputStream(getLUTPath(), false);
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-            out.writeObject(this.synchLUT);
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(fileOut));
+            out.writeObject(copy);
             out.close();
             fileOut.close();
             logger.info("[DB] Serialized data is saved in " + LUTName);
@@ -280,13 +318,16 @@ public class KVDatabase implements IKVDatabase {
             i.printStackTrace();
             logger.error("[DB] Load LookUp Table IOException");
 
+        } finally {
+            fileLock.unlock();
         }
         return false;
     }
 
 
-    private synchronized byte[] readKVMsg(KVEntry kve) throws IOException {
+    private byte[] readKVMsg(KVEntry kve) throws IOException {
         byte[] bytes = null;
+        fileLock.lock();
         try {
             RandomAccessFile raf = new RandomAccessFile(getDBPath(), "r");
             raf.seek(kve.start_offset);
@@ -298,6 +339,8 @@ public class KVDatabase implements IKVDatabase {
         } catch (IOException e) {
             logger.error("[DB] Read disk failed");
             throw e;
+        } finally {
+            fileLock.unlock();
         }
     }
 
@@ -393,7 +436,31 @@ public class KVDatabase implements IKVDatabase {
     }
 
 
-    public synchronized boolean deleteKVPairByRange(String[] hashRange) {
+    /**
+     * @return key and value of every pair
+     */
+    public List<String[]> getKVs() throws Exception {
+        return getKVs(null);
+    }
+
+    /**
+     * @param hashRange null for all keys
+     * @return key and value of every pair whose key is in the hash range
+     */
+    public List<String[]> getKVs(String[] hashRange) throws Exception {
+        List<String[]> pairs = new ArrayList<>();
+        for (String key : new ArrayList<>(synchLUT.keySet())) {
+            if (hashRange == null || MD5.isKeyInRange(MD5.HashInBI(key), hashRange[0], hashRange[1])) {
+                String value = getKV(key);
+                if (value != null) {
+                    pairs.add(new String[]{key, value});
+                }
+            }
+        }
+        return pairs;
+    }
+
+    public boolean deleteKVPairByRange(String[] hashRange) {
 
 //        try {
         String startRange = hashRange[0];
@@ -401,18 +468,23 @@ public class KVDatabase implements IKVDatabase {
         logger.info("[DB] Remove Keys from look up table from " + startRange + " to" + endRange);
 
         ArrayList<KVEntry> toDelete = new ArrayList<>();
-        for (Map.Entry<String, KVEntry> entry : synchLUT.entrySet()) {
+        fileLock.lock();
+        try {
+            for (Map.Entry<String, KVEntry> entry : synchLUT.entrySet()) {
 
-            BigInteger key = MD5.HashInBI(entry.getKey());
-            KVEntry kve = entry.getValue();
-            if (MD5.isKeyInRange(key, startRange, endRange))//Check for key in range or not
-            {
-                //ModifyValidByte(kve.start_offset, kve.end_offset);
-                synchLUT.remove(entry.getKey());
-                logger.debug("[DB] Delete Key: " + key);
+                BigInteger key = MD5.HashInBI(entry.getKey());
+                KVEntry kve = entry.getValue();
+                if (MD5.isKeyInRange(key, startRange, endRange))//Check for key in range or not
+                {
+                    //ModifyValidByte(kve.start_offset, kve.end_offset);
+                    synchLUT.remove(entry.getKey());
+                    logger.debug("[DB] Delete Key: " + key);
+                }
             }
+            saveLUT();
+        } finally {
+            fileLock.unlock();
         }
-        saveLUT();
 
         return true;
 //        } catch (IOException ioe) {
@@ -455,18 +527,8 @@ public class KVDatabase implements IKVDatabase {
         //StringBuilder stringList = new StringBuilder();
         logger.debug("[DB] Get Hash Range from " + hashRange[0] + " to " + hashRange[1]);
 
-        for (Map.Entry<String, KVEntry> entry : synchLUT.entrySet()) {
-            BigInteger key = MD5.HashInBI(entry.getKey());
-            KVEntry kve = entry.getValue();
-            //System.out.println("Key: "+entry.getKey()+ " in Server:"+this.PortNumber%10);
-
-
-            if (MD5.isKeyInRange(key, startRange, endRange))//Check for key in range or not
-            {
-                logger.debug("[DB] Delete Key " + entry.getKey());
-                synchLUT.remove(entry.getKey());
-            }
-        }
+        // removeIf of the synchronized view, removing while iterating over it would throw
+        synchLUT.keySet().removeIf(key -> MD5.isKeyInRange(MD5.HashInBI(key), startRange, endRange));
         saveLUT();
 
         return true;
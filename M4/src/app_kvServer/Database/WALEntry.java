@@ -2,7 +2,6 @@ package app_kvServer.Database;
 
 import shared.Constants;
 
-import java.util.Arrays;
 import java.util.Collection;
 
 public class WALEntry {
@@ -10,17 +9,24 @@ public class WALEntry {
     private String K;
     private String V;
     private String type;
-    private long[] timestamp;
+    private String stamp; // of the clock of the server, constant size
+    String client_host; // empty if unknown, last so entries logged without it still read
     int client_port;
     long msg_ts;
 
-    public WALEntry(long seq, String key, String value, String cmd, int clientPort, long msg_ts, long[] ts) {
+    public WALEntry(long seq, String key, String value, String cmd, int clientPort, long msg_ts, String stamp) {
+        this(seq, key, value, cmd, "", clientPort, msg_ts, stamp);
+    }
+
+    public WALEntry(long seq, String key, String value, String cmd, String clientHost, int clientPort, long msg_ts,
+                    String stamp) {
         LSN = seq;
         K = key;
         V = value;
         type = cmd;
         this.msg_ts = msg_ts;
-        timestamp = ts;
+        this.stamp = stamp;
+        client_host = clientHost;
         client_port = clientPort;
     }
 
@@ -32,7 +38,8 @@ public class WALEntry {
                 client_port + Constants.DELIM +
                 this.msg_ts + Constants.DELIM +
                 msg_ts + Constants.DELIM +
-                Arrays.toString(timestamp) + "\r\n";
+                stamp + Constants.DELIM +
+                client_host + "\r\n";
     }
 
     private String encodeValue(String value) {
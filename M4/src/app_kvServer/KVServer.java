@@ -1,9 +1,11 @@
 package app_kvServer;
 
 import app_kvServer.CacheManager.CachePolicy;
+import app_kvServer.CacheManager.CacheWarmer;
 import app_kvServer.CacheManager.FIFO;
 import app_kvServer.CacheManager.LFU;
 import app_kvServer.CacheManager.LRU;
+import app_kvServer.Clock.LogicalClock;
 import app_kvServer.Database.KVDatabase;
 import app_kvServer.Database.WALEntry;
 import client.KVStore;
@@ -16,16 +18,35 @@ import org.apache.zookeeper.data.Stat;
 import shared.Constants;
 import shared.HashingFunction.MD5;
 import shared.communication.ClientConnection;
+import shared.communication.ConnectionThreads;
+import shared.communication.KVRequestHandler;
+import shared.communication.SelectorServer;
+import shared.communication.Subscriptions;
 import shared.messages.KVConvertMessage;
 import shared.messages.KVMessage;
+import shared.messages.ReplicationBatch;
 import shared.messages.TextMessage;
+import shared.messages.WriteConsistency;
 
 import java.io.*;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static ecs.ECS.*;
 
@@ -40,14 +61,21 @@ public class KVServer implements IKVServer, Runnable, Watcher {
 
     private ServerSocket serverSocket;
     private boolean running;
+    private volatile boolean killed; // stopped, its watches are no longer followed
 
     private Set<ClientConnection> connections;
+    private KVRequestHandler requestHandler;
+    private SelectorServer frontEnd;
 
     private CachePolicy Cache;
+    private CacheWarmer cacheWarmer;
     private KVDatabase DB;
 
     private ServerStateType serverState;
-    private boolean writeLocked;
+    private volatile boolean writeLocked;
+    private final ReentrantLock[] putLocks = newLocks(Constants.PUT_LOCK_STRIPES); // by key, held by a client PUT until its replicas acknowledge
+    private final ReentrantLock stateLock = new ReentrantLock(); // WAL and storage, never held while waiting on a peer
+    private final List<GroupedPut> commitQueue = new ArrayList<>(); // PUTs waiting for the state lock
 
     //private static ZK ZKAPP = new ZK();
     private static ZK ZKAPP;
@@ -58,6 +86,11 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     private String zkNodePath;
 
     private KVServerDataReplicationManager dataReplicationManager;
+    private KVServerReplicaRepair replicaRepair;
+    private final KVServerReplicationLog replicationLog = new KVServerReplicationLog(this);
+    private final KVServerAntiEntropy antiEntropy = new KVServerAntiEntropy(this);
+    private volatile WriteConsistency writeConsistency = WriteConsistency.parse(
+            System.getProperty("server.writeConsistency"), WriteConsistency.valueOf(Constants.WRITE_CONSISTENCY));
     private boolean replicable = true;
     private static final String PWD = System.getProperty("user.dir");
 
@@ -65,10 +98,33 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     private File WAL;
     private long lsn = 0;
     private long lastCommittedLsn = 0;
-    private long[] vectorClock = new long[20];
+    private volatile long walTruncatedLsn = 0; // entries up to it were dropped from the WAL
+    private final long walRetention = Long.getLong("server.walRetention", Constants.WAL_RETENTION);
+    private long walEntryCount = 0;
+    private final AtomicLong timestamp = new AtomicLong();
+
+    // LSN up to which this replica applied every PUT of a coordinator, by port of the coordinator, guarded by itself
+    private final Map<Integer, Long> replicaPositions = new HashMap<>();
+    private File replicaPositionsFile;
+    private final Object replicaPositionsFileLock = new Object(); // saves in the order they copy the positions
+    private boolean replicaPositionsDirty; // guarded by replicaPositions
+    private volatile long replicaPositionsSavedAt;
+    // LSN a replica reaches before it answers GETs of the range of a coordinator, by port of the coordinator,
+    // set when the coordinator connects in this run; guarded by replicaPositions
+    private final Map<Integer, Long> readPositions = new HashMap<>();
+    private LogicalClock clock; // stamps the writes logged in the WAL
+    private File clockFile;
+    // last stamp of recently written keys, a replicated write stamped before it arrived late; guarded by the state lock
+    private final Map<String, String> recentStamps = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > Constants.CLOCK_RECENT_WRITES;
+        }
+    };
+    private KVServerRequestWindow requests; // latest PUTs of each client, to skip one sent again
 
-    private int clockID;
-    private Map<Integer, Map<Long, Long>> wal_mapping = new HashMap();
+    private KVServerMetrics metrics = new KVServerMetrics();
+    private Subscriptions subscriptions = new Subscriptions(); // keys read by clients with a near cache
 
 
     /**
@@ -87,7 +143,6 @@ public class KVServer implements IKVServer, Runnable, Watcher {
         ZKAPP = new ZK(zkHost);
         // TODO Auto-generated method stub
         this.port = port;
-        clockID = port - 50000;
 
         switch (port) {
             case 50000:
@@ -184,13 +239,15 @@ public class KVServer implements IKVServer, Runnable, Watcher {
                 // TODO: handling
                 break;
         }
+        registerMetrics();
+        startCacheWarmer();
+        loadMerkleTrees();
     }
 
     public KVServer(int port, int cacheSize, String strategy) {
         ZKAPP = new ZK(LOCAL_HOST);
         // TODO Auto-generated method stub
         this.port = port;
-        clockID = port - 50000;
 
         switch (port) {
             case 50000:
@@ -287,11 +344,57 @@ public class KVServer implements IKVServer, Runnable, Watcher {
                 // TODO: handling
                 break;
         }
+        registerMetrics();
+        startCacheWarmer();
+        loadMerkleTrees();
+    }
+
+    private void registerMetrics() {
+        metrics.register("near_cache_clients", subscriptions::getSubscriberCount);
+        metrics.register("merkle_keys", antiEntropy::size);
+        if (Cache != null) {
+            metrics.register("cache_loads", Cache::getLoadCount);
+            metrics.register("cache_coalesced_loads", Cache::getCoalescedLoadCount);
+        }
+    }
+
+    /**
+     * Prefetch the hot keys saved by the previous run of this server in the
+     * background, and keep saving the hot keys from now on.
+     */
+    private void startCacheWarmer() {
+        if (Cache == null) {
+            return;
+        }
+        cacheWarmer = new CacheWarmer(Cache, DB::getKV, port);
+        cacheWarmer.start(
+                Long.getLong("cache.snapshotInterval", Constants.CACHE_SNAPSHOT_INTERVAL),
+                Long.getLong("cache.warmupBudget", Constants.CACHE_WARMUP_BUDGET));
+        metrics.register("cache_warmed_keys", cacheWarmer::getWarmedKeyCount);
+    }
+
+    private void loadMerkleTrees() {
+        try {
+            antiEntropy.load(DB.getKVs());
+        } catch (Exception e) {
+            logger.error("[KVServer] Unable to build the Merkle trees: " + e);
+        }
+    }
+
+    public KVServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Subscriptions getSubscriptions() {
+        return subscriptions;
     }
 
     public void openWALLog() {
         this.WALName = "LUT-" + port + ".txt";
         WAL = new File(this.WALName);
+        openClock();
+        requests = new KVServerRequestWindow(port);
+        requests.load();
 
         boolean fileDNE = false;
 
@@ -304,9 +407,124 @@ public class KVServer implements IKVServer, Runnable, Watcher {
             logger.info("[KVServer] New WAL file created");
         } else {
             logger.info("[KVServer] WAL file found");
+            scanWAL();
+        }
+        openReplicaPositions();
+    }
+
+    /**
+     * Continue the LSNs of the WAL of the previous run, so replicas can
+     * catch up from an LSN across restarts.
+     */
+    private void scanWAL() {
+        long first = -1;
+        long previous = 0;
+        boolean ordered = true;
+        try (BufferedReader br = new BufferedReader(new FileReader(WAL))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] strs = line.split(Constants.DELIM);
+                long entry;
+                try {
+                    entry = Long.parseLong(strs[0]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                stampOf(strs); // the clock continues after the stamps logged
+                if (strs.length > 5) {
+                    try {
+                        int client = Integer.parseInt(strs[4]);
+                        long ts = Long.parseLong(strs[5]);
+                        String host = hostOf(strs);
+                        if (decodeValue(strs[3]).equals(Constants.ROLLBACK)) {
+                            requests.forget(host, client, ts);
+                        } else if (ts >= 0) {
+                            requests.record(host, client, ts, entry);
+                        }
+                    } catch (NumberFormatException e) {
+                        // entry without a client
+                    }
+                }
+                if (first < 0) {
+                    first = entry;
+                }
+                ordered &= entry > previous;
+                previous = entry;
+                lsn = Math.max(lsn, entry);
+                walEntryCount++;
+            }
+        } catch (IOException e) {
+            logger.error("[KVServer] Unable to read the WAL", e);
+        }
+        lastCommittedLsn = lsn;
+        // the LSNs of a WAL written before they were continued across runs are no position to catch up from
+        walTruncatedLsn = ordered && first > 0 ? first - 1 : lsn;
+        replicationLog.publish(lsn);
+        logger.info("[KVServer] WAL continues after LSN " + lsn + ", covers LSNs after " + walTruncatedLsn);
+    }
+
+    /**
+     * Start the clock from the state saved when the WAL was last compacted,
+     * the stamps of the entries logged since are observed as the WAL is read.
+     */
+    private void openClock() {
+        String kind = System.getProperty("server.clock", Constants.CLOCK);
+        try {
+            clock = LogicalClock.of(kind, name);
+        } catch (IllegalArgumentException e) {
+            logger.error("[KVServer] " + e.getMessage() + ", using " + Constants.CLOCK);
+            clock = LogicalClock.of(Constants.CLOCK, name);
+        }
+        clockFile = new File("CLOCK-" + port + ".bin");
+        if (!clockFile.exists()) {
+            return;
+        }
+        try {
+            clock.decode(Files.readAllBytes(clockFile.toPath()));
+        } catch (IOException e) {
+            logger.error("[KVServer] Unable to read the clock, it continues from the WAL: " + e);
+        }
+    }
+
+    /**
+     * Save the clock before the WAL entries whose stamps it was advanced
+     * past are dropped. Called under the state lock.
+     */
+    private void saveClock() {
+        File tmp = new File(clockFile.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), clock.encode());
+            Files.move(tmp.toPath(), clockFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("[KVServer] Unable to save the clock: " + e);
         }
     }
 
+    /**
+     * @return stamp of a WAL entry, empty for an entry without one; the
+     * clock is advanced past it
+     */
+    private String stampOf(String[] strs) {
+        // entries logged before the stamps carry a vector of zeros
+        return strs.length > 7 && clock.observe(strs[7]) ? strs[7] : "";
+    }
+
+    /**
+     * @return address of the client of a WAL entry, empty for an entry
+     * logged without it
+     */
+    private static String hostOf(String[] strs) {
+        return strs.length > 8 ? strs[8] : "";
+    }
+
+    LogicalClock getClock() {
+        return clock;
+    }
+
     public void appendWAL(String data) {
         try {
             //File file = new File(WALName);
@@ -360,6 +578,340 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     }
 
 
+    /**
+     * @return the PUTs coordinated by this server logged after an LSN and up
+     * to another one, null if the WAL does not have all of them
+     */
+    KVServerReplicationLog.CatchUp readWAL(long after, long upTo) {
+        KVServerReplicationLog.CatchUp catchUp = new KVServerReplicationLog.CatchUp();
+        long next = after + 1;
+        try (BufferedReader br = new BufferedReader(new FileReader(WAL))) {
+            String line;
+            while (next <= upTo && (line = br.readLine()) != null) {
+                String[] strs = line.split(Constants.DELIM);
+                if (line.isEmpty() || strs.length < 6) {
+                    continue;
+                }
+                long entry = Long.parseLong(strs[0]);
+                if (entry <= after) {
+                    continue;
+                }
+                if (entry != next) {
+                    // dropped meanwhile, or lost
+                    return null;
+                }
+                next++;
+                String key = decodeValue(strs[1]);
+                String cmd = decodeValue(strs[3]);
+                if ((cmd.equals("PUT") || cmd.equals(Constants.ROLLBACK)) && isResponsible(key, "PUT")) {
+                    catchUp.add(new ReplicationBatch.Record("PUT_REPLICATE", key, decodeValue(strs[2]),
+                            Long.parseLong(strs[5]), hostOf(strs), Integer.parseInt(strs[4]), stampOf(strs)), entry);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.error("[KVServer] Unable to read the WAL after LSN " + after + ": " + e);
+            return null;
+        }
+        return next > upTo ? catchUp : null;
+    }
+
+    /**
+     * @return every pair of the range of this server, to replace the range
+     * on a replica
+     */
+    KVServerReplicationLog.CatchUp snapshot() {
+        KVServerReplicationLog.CatchUp snapshot = new KVServerReplicationLog.CatchUp();
+        ECSNode node = hashRing == null ? null : hashRing.getNodeByServerName(name);
+        if (node == null) {
+            return snapshot;
+        }
+        String[] range = node.getNodeHashRange();
+        // what is logged later is forwarded after the snapshot
+        stateLock.lock();
+        try {
+            for (String[] kv : DB.getKVs(range)) {
+                // one LSN before any, until the whole snapshot is applied
+                snapshot.add(new ReplicationBatch.Record("PUT_REPLICATE", kv[0], kv[1], nextTimestamp(), port,
+                        clock.tick()), 0);
+            }
+            snapshot.snapshotRange = range;
+        } catch (Exception e) {
+            logger.error("[KVServer] Unable to take a snapshot: " + e);
+            return new KVServerReplicationLog.CatchUp();
+        } finally {
+            stateLock.unlock();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return LSN up to which entries were dropped from the WAL
+     */
+    long getWALTruncatedLsn() {
+        return walTruncatedLsn;
+    }
+
+    /**
+     * Drop the oldest entries of the WAL, keeping the last WAL_RETENTION for
+     * replicas to catch up from. Called under the state lock.
+     */
+    private void compactWAL() {
+        saveClock();
+        requests.checkpoint();
+        saveReplicaPositions();
+        long keepAfter = lsn - walRetention;
+        File compacted = new File(WALName + ".tmp");
+        long kept = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(WAL));
+             PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(compacted)))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    if (Long.parseLong(line.split(Constants.DELIM, 2)[0]) <= keepAfter) {
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                pw.println(line);
+                kept++;
+            }
+        } catch (IOException e) {
+            logger.error("[KVServer] Unable to compact the WAL: " + e);
+            return;
+        }
+        try {
+            // replicas reading the WAL keep reading the file they opened
+            Files.move(compacted.toPath(), WAL.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("[KVServer] Unable to replace the WAL: " + e);
+            return;
+        }
+        walTruncatedLsn = keepAfter;
+        walEntryCount = kept;
+        logger.info("[KVServer] WAL compacted, covers LSNs after " + keepAfter);
+    }
+
+    /**
+     * @return a timestamp for a PUT this server sends on its own, larger
+     * than the previous one
+     */
+    long nextTimestamp() {
+        return timestamp.updateAndGet(last -> Math.max(System.currentTimeMillis(), last + 1));
+    }
+
+    private void openReplicaPositions() {
+        replicaPositionsFile = new File("LSN-" + port + ".txt");
+        if (!replicaPositionsFile.exists()) {
+            return;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(replicaPositionsFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.split(",");
+                if (tokens.length == 2) {
+                    replicaPositions.put(Integer.parseInt(tokens[0]), Long.parseLong(tokens[1]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.error("[KVServer] Unable to read the replica positions, replicas will get snapshots: " + e);
+            replicaPositions.clear();
+        }
+    }
+
+    /**
+     * Write the replica positions, if they changed since the last save,
+     * without holding up the replicas reading and advancing them.
+     */
+    private void saveReplicaPositions() {
+        synchronized (replicaPositionsFileLock) {
+            replicaPositionsSavedAt = System.currentTimeMillis();
+            Map<Integer, Long> positions;
+            synchronized (replicaPositions) {
+                if (!replicaPositionsDirty || replicaPositionsFile == null) {
+                    return;
+                }
+                positions = new HashMap<>(replicaPositions);
+                replicaPositionsDirty = false;
+            }
+            File tmp = new File(replicaPositionsFile.getPath() + ".tmp");
+            try (PrintWriter pw = new PrintWriter(new FileWriter(tmp))) {
+                for (Map.Entry<Integer, Long> position : positions.entrySet()) {
+                    pw.println(position.getKey() + "," + position.getValue());
+                }
+            } catch (IOException e) {
+                logger.error("[KVServer] Unable to save the replica positions: " + e);
+                replicaPositionsChanged();
+                return;
+            }
+            try {
+                Files.move(tmp.toPath(), replicaPositionsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.error("[KVServer] Unable to save the replica positions: " + e);
+                replicaPositionsChanged();
+            }
+        }
+    }
+
+    private void replicaPositionsChanged() {
+        synchronized (replicaPositions) {
+            replicaPositionsDirty = true;
+        }
+    }
+
+    /**
+     * @param source port of a coordinator of this replica
+     * @return LSN up to which this replica applied every PUT of the
+     * coordinator, UNKNOWN if it may miss any
+     */
+    public long getReplicaPosition(int source) {
+        synchronized (replicaPositions) {
+            return replicaPositions.getOrDefault(source, ReplicationBatch.UNKNOWN);
+        }
+    }
+
+    /**
+     * Record that this replica applied every PUT of a coordinator up to an LSN.
+     */
+    public void advanceReplicaPosition(int source, long synced) {
+        boolean first;
+        synchronized (replicaPositions) {
+            long position = getReplicaPosition(source);
+            if (synced <= position) {
+                return;
+            }
+            first = position == ReplicationBatch.UNKNOWN;
+            replicaPositions.put(source, synced);
+            replicaPositionsDirty = true;
+        }
+        // saved now and then, a replica that crashed meanwhile gets the PUTs after the saved position again;
+        // without any saved position it would need a snapshot
+        if (first || System.currentTimeMillis() - replicaPositionsSavedAt >= Constants.REPLICA_POSITION_SAVE_INTERVAL) {
+            saveReplicaPositions();
+        }
+    }
+
+    /**
+     * Record that a coordinator connected and catches this replica up to
+     * an LSN, before which its range may be out of date.
+     *
+     * @param head LSN of the coordinator, UNKNOWN if it did not tell
+     */
+    public void catchingUp(int source, long head) {
+        synchronized (replicaPositions) {
+            if (head == ReplicationBatch.UNKNOWN) {
+                readPositions.remove(source);
+            } else {
+                readPositions.put(source, head);
+            }
+        }
+    }
+
+    /**
+     * @return whether this server answers a GET of the key: as its
+     * coordinator, or as a replica that applied every PUT the coordinator
+     * of the key logged before it last connected, so it misses none that
+     * was acknowledged at ALL. A replica the coordinator did not connect to
+     * in this run may miss any.
+     */
+    public boolean isReadable(String key) {
+        ECSHashRing ring = hashRing;
+        ECSNode coordinator = ring == null ? null : ring.getNodeByHash(MD5.HashInBI(key));
+        if (coordinator == null || coordinator.getNodePort() == port) {
+            return true;
+        }
+        int source = coordinator.getNodePort();
+        synchronized (replicaPositions) {
+            Long head = readPositions.get(source);
+            return head != null && getReplicaPosition(source) >= head;
+        }
+    }
+
+    private void resetReplicaPositions() {
+        synchronized (replicaPositions) {
+            replicaPositions.clear();
+            readPositions.clear();
+            replicaPositionsDirty = true;
+        }
+        saveReplicaPositions();
+    }
+
+    /**
+     * Drop the pairs of the range of a coordinator, which sends a snapshot of
+     * it next.
+     *
+     * @return false if this server is no replica of the coordinator
+     */
+    public boolean installSnapshot(int source, String[] range) {
+        if (!isReplicaOf(source)) {
+            return false;
+        }
+        synchronized (replicaPositions) {
+            replicaPositions.remove(source);
+            replicaPositionsDirty = true;
+        }
+        // on disk before the range is dropped, a restart must not resume from the old position
+        saveReplicaPositions();
+        stateLock.lock();
+        try {
+            DB.deleteDBData(range);
+            antiEntropy.removeRange(range);
+        } finally {
+            stateLock.unlock();
+        }
+        clearCache();
+        subscriptions.invalidateAll();
+        logger.info("[KVServer] Replacing the range of " + source + " by a snapshot");
+        return true;
+    }
+
+    /**
+     * @return hash range of this server as coordinator, null if it is not in the hash ring
+     */
+    String[] getCoordinatorRange() {
+        ECSHashRing ring = hashRing;
+        ECSNode node = ring == null ? null : ring.getNodeByServerName(name);
+        return node == null ? null : node.getNodeHashRange();
+    }
+
+    /**
+     * @param source port of a coordinator of this replica
+     * @param range  hash range of the coordinator
+     * @return tree of the pairs this replica stores for the coordinator,
+     * null if it does not replicate this range of it
+     */
+    public KVServerMerkleTree getMerkleTree(int source, String[] range) {
+        ECSHashRing ring = hashRing;
+        if (ring == null || !isReplicaOf(source)) {
+            return null;
+        }
+        for (ECSNode coordinator : ring.getActiveNodes().values()) {
+            if (coordinator.getNodePort() == source) {
+                return Arrays.equals(coordinator.getNodeHashRange(), range) ? antiEntropy.getTree(source) : null;
+            }
+        }
+        return null;
+    }
+
+    private boolean isReplicaOf(int source) {
+        ECSHashRing ring = hashRing;
+        ECSNode node = ring == null ? null : ring.getNodeByServerName(name);
+        if (node == null) {
+            return false;
+        }
+        for (ECSNode coordinator : ring.getPredecessors(node)) {
+            if (coordinator.getNodePort() == source) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public int getPort() {
         return this.serverSocket.getLocalPort();
@@ -407,21 +959,17 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     @Override
     public String getKV(String key) throws Exception {
         try {
-            String result;
+            String value;
 
             if (getCacheStrategy() != CacheStrategy.None && Cache != null) {
-                result = Cache.getKV(key);
-                if (result != null) {
-                    logger.info("[KVServer] KV (GET) in CACHE:  " + key + " => " + result);
-                    return result;
-                }
+                // concurrent misses on the same key share one storage read
+                value = Cache.getOrLoad(key, DB::getKV);
+            } else {
+                value = DB.getKV(key);
             }
 
-            // not in Cache, then retrieve from DB
-            String value = DB.getKV(key);
-            if (getCacheStrategy() != CacheStrategy.None && value != null) {
-                Cache.putKV(key, value);
-                logger.info("[KVServer] KV (GET) in STORAGE: " + key + " => " + value);
+            if (value != null) {
+                logger.info("[KVServer] KV (GET): " + key + " => " + value);
             } else {
                 logger.error("[KVServer] KV (GET) is not found by key:" + key);
             }
@@ -434,156 +982,493 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     }
 
     //@Override
-    public void putKV(String key, String value, String cmd, long ts, int clientPort) throws Exception {
+    public KVMessage.StatusType putKV(String key, String value, String cmd, long ts, int clientPort) throws Exception {
+        return putKV(key, value, cmd, ts, "", clientPort, null);
+    }
+
+    public KVMessage.StatusType putKV(String key, String value, String cmd, long ts, int clientPort,
+                                      WriteConsistency consistency) throws Exception {
+        return putKV(key, value, cmd, ts, "", clientPort, consistency);
+    }
+
+    /**
+     * @param clientHost  address of the client, empty if unknown; with its
+     *                    port and the timestamp it identifies a client PUT
+     * @param consistency copies written before a client PUT returns, null for
+     *                    the default of the server. The replicas not waited
+     *                    for are repaired in the background.
+     * @return status of the PUT in the storage, for a retry of a PUT already
+     * handled the status it was answered with, null if only the WAL has it
+     */
+    public KVMessage.StatusType putKV(String key, String value, String cmd, long ts, String clientHost, int clientPort,
+                                      WriteConsistency consistency) throws Exception {
+
+        if (consistency == null) {
+            consistency = writeConsistency;
+        }
 
         if (ts == -1) {
             logger.info("[KVServer] ECS Weak Consistency Synchronization Point: " + cmd + " " + key + " " + value);
         }
 
+        // serializes client PUTs of the same key without raising the ECS
+        // write lock seen by other requests, PUTs of other keys share the
+        // replication batches. A replicated PUT only takes the state lock:
+        // the replicas of this server may be forwarding their own PUTs to
+        // it while it waits for them
+        boolean coordinator = cmd.equals("PUT");
+        ReentrantLock putLock = putLockOf(key);
+        if (coordinator) {
+            putLock.lock();
+        }
+        GroupedPut put = null;
         try {
-            lockWrite();
+            put = applyPut(key, value, cmd, ts, clientHost, clientPort);
+            if (put.duplicate) {
+                // its forward completed before the PUT lock of the key was released
+                return put.status;
+            }
+            String prevVal = put.prevVal; // for rollback use
 
-            boolean loggedAlready = false;
+            //lastCommitedLsn = lsn;
+            if (coordinator) {
+                //WALEntry wal_entry_rep = new WALEntry(++lsn, key, value, "REPLICATE", clientPort, ts, vectorClock);
+                //appendWAL(wal_entry_rep.getEntry());
+                String stamp = put.record.stamp;
+                boolean ret = dataReplicationManager.forward("PUT", key, value, ts, clientHost, clientPort, consistency,
+                        put.lsn, stamp);
+                if (!ret) {
+                    if (!dataReplicationManager.retryForward("PUT", key, value, ts, clientHost, clientPort, consistency,
+                            put.lsn, stamp)) {
+                        logger.error("[KVServer] Something wrong during PUT_REPLICATE.");
 
-            Map<Long, Long> tmp;
-            if (wal_mapping.containsKey(clientPort)) {
-                tmp = wal_mapping.get(clientPort);
-                if (tmp.containsKey(ts) && tmp.get(ts) < lastCommittedLsn) {
-                    unlockWrite();
-                    throw new Exception("[KVServer] A PUT already handled.");
-//                }else if(tmp.containsKey(ts)){
-//                    loggedAlready=true;
-                } else {
+                        // rollback
+                        long rollbackLsn;
+                        String rollbackStamp = clock.tick();
+                        stateLock.lock();
+                        try {
+                            rollbackLsn = ++lsn;
+                            WALEntry wal_entry_rep = new WALEntry(rollbackLsn, key, prevVal, Constants.ROLLBACK,
+                                    clientHost, clientPort, ts, rollbackStamp);
+                            appendWAL(wal_entry_rep.getEntry());
+                            walEntryCount++;
+                            // a retry of the PUT is applied again
+                            requests.forget(clientHost, clientPort, ts);
+                            replicationLog.logged(rollbackLsn);
+                            replicationLog.publish(rollbackLsn);
+                        } finally {
+                            stateLock.unlock();
+                        }
+
+                        rollback_put(key, prevVal, ts, clientHost, clientPort, rollbackLsn, rollbackStamp);
+
+                        throw new Exception("[KVServer] Something wrong during PUT_REPLICATE.");
+                    }
                 }
-            } else {
-                tmp = new HashMap<>();
+                committed(put.lsn);
             }
+            // kill();
+            return put.status;
 
-//            File fh = new File(WALName);
-//
-//            if (fh.exists()) {
-//                Map<KVConvertMessage, Long> prevPair = readLastWAL();
-//
-//                KVConvertMessage prevRequest = null;
-//
-//                for (Map.Entry<KVConvertMessage, Long> entry : prevPair.entrySet()) {
-//                    prevRequest = entry.getKey();
-//                    // only one entry in the map
-//                    break;
-//                }
-//
-//                if (prevRequest != null) {
-//                    if (prevRequest.getKey().equals(key) && prevRequest.getValue().equals(value) && prevRequest.getStatus().toString().equals(cmd)) {
-//                        unlockWrite();
-//                        logger.info("[KVServer] " + cmd + " " + key + " " + value + " already processed!");
-//                        return;
-//                    }
-//                }
-//            }
+        } catch (Exception e) {
+            logger.error(e);
+            throw e;
+        } finally {
+            if (coordinator) {
+                if (put != null) {
+                    replicationLog.forwarded(put.lsn);
+                }
+                putLock.unlock();
+            }
+        }
+    }
 
+    private ReentrantLock putLockOf(String key) {
+        return putLocks[Math.floorMod(key.hashCode(), putLocks.length)];
+    }
 
-            if (!(zk.exists(ZK_WC, false) == null)) {
+    /**
+     * Send the current value of a key to a replica that missed a PUT of it.
+     * The PUT lock of the key orders it with the PUTs of the key forwarded
+     * by clients.
+     *
+     * @param ts timestamp identifying the repair at the replica
+     * @return true once the replica applied it
+     */
+    boolean repairKey(KVServerDataReplication replica, String key, long ts) {
+        CompletableFuture<Boolean> ack;
+        ReentrantLock putLock = putLockOf(key);
+        putLock.lock();
+        try {
+            String value = DB.inStorage(key) ? DB.getKV(key) : null;
+            ack = replica.replicate("PUT", key, value == null ? "" : value, ts, "", port, false, -1, false,
+                    clock.tick());
+        } catch (Exception e) {
+            logger.error("[KVServer] Unable to repair " + key + " in " + replica.getServerName() + ": " + e);
+            return false;
+        } finally {
+            putLock.unlock();
+        }
+        try {
+            return ack.get(Constants.REPLICATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
 
-                String path = ZK_WC + "/" + getPort();
-                String msg = clientPort + Constants.DELIM + cmd + Constants.DELIM + key + Constants.DELIM + value;
+    /**
+     * @return whether the server at the port is a replica of this server,
+     * true as long as the hash ring is unknown
+     */
+    boolean isReplica(int replicaPort) {
+        ECSHashRing ring = hashRing;
+        if (ring == null) {
+            return true;
+        }
+        ECSNode node = ring.getNodeByServerName(name);
+        if (node == null) {
+            return false;
+        }
+        for (ECSNode replica : ring.getReplicas(node)) {
+            if (replica.getNodePort() == replicaPort) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                if (zk.exists(path, false) == null) {
-                    ZKAPP.create(path, msg.getBytes());
-                } else {
-                    ZK.update(path, msg.getBytes());
+    /**
+     * @return the replication stream to the replica at the port, null if there is none yet
+     */
+    KVServerDataReplication getReplica(int replicaPort) {
+        for (KVServerDataReplication replica : new ArrayList<>(dataReplicationManager.getReplicationList())) {
+            if (replica.getServerPort() == replicaPort) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pass replicated PUTs received in a chained batch on to the next
+     * replica of the chain of their key, unless this server is its tail.
+     *
+     * @return number of leading records the rest of their chain applied
+     */
+    public int relayDownChain(List<ReplicationBatch.Record> records) {
+        ECSHashRing ring = hashRing;
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>(records.size());
+        for (ReplicationBatch.Record r : records) {
+            ECSNode next = ring == null ? null : nextInChain(ring, r.key);
+            if (next == null) {
+                acks.add(CompletableFuture.completedFuture(true));
+                continue;
+            }
+            acks.add(dataReplicationManager.getRelay(next).relay(r));
+            metrics.increment("chain_relayed");
+        }
+        int relayed = 0;
+        long deadline = System.currentTimeMillis() + Constants.REPLICATION_TIMEOUT;
+        try {
+            for (CompletableFuture<Boolean> ack : acks) {
+                if (!ack.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    break;
                 }
+                relayed++;
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn("[KVServer] Relayed PUTs not acknowledged down the chain: " + e);
+        }
+        return relayed;
+    }
 
-            if (!loggedAlready) {
-//                if (lsn < ts) {
-//                    lsn = ts;
-//                } else {
-                lsn++;
-                //}
-                tmp.put(ts, lsn);
-                wal_mapping.put(clientPort, tmp);
-                WALEntry wal_entry = new WALEntry(lsn, key, value, cmd, clientPort, ts, vectorClock);
-                appendWAL(wal_entry.getEntry());
+    /**
+     * @return the replica after this server in the chain of the key, null if
+     * this server is its tail or not in its chain
+     */
+    private ECSNode nextInChain(ECSHashRing ring, String key) {
+        ECSNode owner = ring.getNodeByHash(MD5.HashInBI(key));
+        if (owner == null) {
+            return null;
+        }
+        List<ECSNode> chain = ring.getChain(owner);
+        for (int i = 0; i < chain.size() - 1; i++) {
+            if (chain.get(i).getNodeName().equals(name)) {
+                return chain.get(i + 1);
             }
+        }
+        return null;
+    }
 
+    public WriteConsistency getWriteConsistency() {
+        return writeConsistency;
+    }
 
-            String prevVal = ""; // for rollback use
-            if (DB.inStorage(key)) {
-                prevVal = DB.getKV(key);
-            }
-            KVMessage.StatusType status = DB.putKV(key, value);
-            if (getCacheStrategy() != CacheStrategy.None) {
-                if (Cache != null) {
-                    Cache.putKV(key, value);
-                    logger.info("[KVServer] KeyValue " + "[" + key + ": " + value + "]" +
-                            " has been stored in cache.");
-                } else {
-                    logger.error("[KVServer] Cache does not exist.");
+    /**
+     * @param writeConsistency level of the client PUTs that do not ask for one
+     */
+    public void setWriteConsistency(WriteConsistency writeConsistency) {
+        this.writeConsistency = writeConsistency;
+    }
+
+    private static ReentrantLock[] newLocks(int n) {
+        ReentrantLock[] locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    /**
+     * A PUT waiting to be applied with the others queued at the same time.
+     */
+    private static class GroupedPut {
+        final ReplicationBatch.Record record;
+        boolean done;
+        KVMessage.StatusType status; // in the storage, null if it was skipped
+        boolean duplicate; // a client PUT already handled, status is the one it was answered with
+        String prevVal = "";
+        long lsn = -1;
+
+        GroupedPut(ReplicationBatch.Record record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * Log a PUT and apply it to the local storage. PUTs arriving while
+     * another one holds the state lock queue up and the next thread to get
+     * the lock applies all of them at once (group commit).
+     *
+     * @return the PUT, with the previous value of the key, empty if there
+     * was none, and its LSN, or marked as a duplicate
+     */
+    private GroupedPut applyPut(String key, String value, String cmd, long ts, String clientHost, int clientPort)
+            throws Exception {
+        // the PUT lock of the key orders the stamps of its client PUTs as their LSNs
+        GroupedPut put = new GroupedPut(new ReplicationBatch.Record(cmd, key, value, ts, clientHost, clientPort,
+                cmd.equals("PUT") ? clock.tick() : ""));
+        synchronized (commitQueue) {
+            commitQueue.add(put);
+        }
+        stateLock.lock();
+        try {
+            if (!put.done) {
+                List<GroupedPut> group;
+                synchronized (commitQueue) {
+                    group = new ArrayList<>(commitQueue);
+                    commitQueue.clear();
+                }
+                List<ReplicationBatch.Record> records = new ArrayList<>(group.size());
+                Map<String, String> written = new HashMap<>();
+                for (GroupedPut p : group) {
+                    String k = p.record.key;
+                    if (written.containsKey(k)) {
+                        p.prevVal = written.get(k);
+                    } else if (DB.inStorage(k)) {
+                        p.prevVal = DB.getKV(k);
+                    }
+                    written.put(k, p.record.value);
+                    records.add(p.record);
+                }
+                try {
+                    long[] lsns = new long[records.size()];
+                    List<KVMessage.StatusType> statuses = applyPuts(records, lsns);
+                    for (int i = 0; i < group.size(); i++) {
+                        GroupedPut p = group.get(i);
+                        p.status = statuses.get(i);
+                        p.lsn = lsns[i];
+                        // a client PUT is only skipped when it is in the request window
+                        p.duplicate = p.status == null && p.record.cmd.equals("PUT");
+                        if (p.duplicate) {
+                            p.status = requests.statusOf(p.record.host, p.record.port, p.record.timestamp);
+                        }
+                    }
+                } finally {
+                    for (GroupedPut p : group) {
+                        p.done = true;
+                    }
                 }
             }
+        } finally {
+            stateLock.unlock();
+        }
+        if (put.status == null && !put.duplicate) {
+            throw new Exception("[KVServer] A PUT overwritten already.");
+        }
+        return put;
+    }
 
-            //lastCommitedLsn = lsn;
-            if (cmd.equals("PUT")) {
-                //WALEntry wal_entry_rep = new WALEntry(++lsn, key, value, "REPLICATE", clientPort, ts, vectorClock);
-                //appendWAL(wal_entry_rep.getEntry());
-                boolean ret = dataReplicationManager.forward("PUT", key, value, ts, clientPort);
-                if (!ret) {
-                    int retry = 5;
-                    while (retry > 0) {
-                        ret = dataReplicationManager.forward("PUT", key, value, ts, clientPort);
-                        if (ret) {
-                            break;
-                        }
-                        retry--;
-                        Thread.sleep(300);
+    /**
+     * Log several PUTs and apply them in order to the local storage, with a
+     * single write of the WAL and of the lookup table of the storage.
+     *
+     * @return status of each PUT, null for a PUT already handled and skipped
+     */
+    public List<KVMessage.StatusType> applyPuts(List<ReplicationBatch.Record> records) throws Exception {
+        return applyPuts(records, new long[records.size()]);
+    }
+
+    /**
+     * @param lsns set to the LSN of each PUT, -1 for a PUT skipped
+     */
+    private List<KVMessage.StatusType> applyPuts(List<ReplicationBatch.Record> records, long[] lsns) throws Exception {
+        Arrays.fill(lsns, -1);
+        stateLock.lock();
+        try {
+            List<String[]> pairs = new ArrayList<>(records.size());
+            List<KVMessage.StatusType> statuses = new ArrayList<>(records.size());
+            ReplicationBatch.Record last = null;
+            StringBuilder walEntries = new StringBuilder();
+            for (int i = 0; i < records.size(); i++) {
+                ReplicationBatch.Record r = records.get(i);
+                // a client retries a PUT until it gets an answer, the replicas
+                // get each write once from the stream or its catch-up
+                long logged = r.cmd.equals("PUT") ? requests.lookup(r.host, r.port, r.timestamp) : -1;
+                if (logged >= 0 && logged <= lastCommittedLsn) {
+                    logger.warn("[KVServer] A PUT already handled: " + r.key);
+                    metrics.increment("puts_deduplicated");
+                    statuses.add(null);
+                    continue;
+                }
+                String stamp = r.stamp;
+                if (!r.cmd.equals("PUT")) {
+                    if (stamp.isEmpty() || !clock.observe(stamp)) {
+                        stamp = clock.tick(); // from a server without stamps
+                    } else if (isLate(r.key, stamp)) {
+                        logger.warn("[KVServer] A PUT overwritten already: " + r.key + " stamped " + stamp);
+                        statuses.add(null);
+                        continue;
                     }
+                }
+                recentStamps.put(r.key, stamp);
+                lsn++;
+                lsns[i] = lsn;
+                if (r.timestamp >= 0) {
+                    requests.record(r.host, r.port, r.timestamp, lsn);
+                }
+                if (walEntries.length() > 0) {
+                    walEntries.append(System.lineSeparator());
+                }
+                walEntries.append(new WALEntry(lsn, r.key, r.value, r.cmd, r.host, r.port, r.timestamp, stamp)
+                        .getEntry());
+                pairs.add(new String[]{r.key, r.value});
+                statuses.add(KVMessage.StatusType.PUT_SUCCESS); // replaced by the status of the storage
+                last = r;
+            }
+            if (pairs.isEmpty()) {
+                return statuses;
+            }
 
-                    if (retry == 0) {
-                        logger.error("[KVServer] Something wrong during PUT_REPLICATE.");
+            if (!(zk.exists(ZK_WC, false) == null)) {
 
-                        // rollback
-                        WALEntry wal_entry_rep = new WALEntry(++lsn, key, prevVal, cmd, clientPort, ts, vectorClock);
-                        appendWAL(wal_entry_rep.getEntry());
+                String path = ZK_WC + "/" + getPort();
+                String msg = last.port + Constants.DELIM + last.cmd + Constants.DELIM + last.key + Constants.DELIM + last.value;
 
-                        rollback_put(key, prevVal, ts, clientPort);
+                if (zk.exists(path, false) == null) {
+                    ZKAPP.create(path, msg.getBytes());
+                } else {
+                    ZK.update(path, msg.getBytes());
+                }
+            }
 
-                        unlockWrite();
-                        throw new Exception("[KVServer] Something wrong during PUT_REPLICATE.");
+            appendWAL(walEntries.toString());
+            walEntryCount += pairs.size();
+
+            Iterator<KVMessage.StatusType> stored = DB.putKVs(pairs).iterator();
+            for (int i = 0; i < statuses.size(); i++) {
+                if (statuses.get(i) != null) {
+                    ReplicationBatch.Record r = records.get(i);
+                    statuses.set(i, stored.next());
+                    if (statuses.get(i) != KVMessage.StatusType.PUT_ERROR) {
+                        antiEntropy.put(r.key, r.value);
+                        requests.answered(r.host, r.port, r.timestamp, statuses.get(i));
+                    } else {
+                        requests.forget(r.host, r.port, r.timestamp);
                     }
-                    WAL_fsynch();
-                    dataReplicationManager.commit(lastCommittedLsn);
+                }
+                if (lsns[i] >= 0 && records.get(i).cmd.equals("PUT")) {
+                    replicationLog.logged(lsns[i]);
                 }
             }
-            unlockWrite();
-            // kill();
-
-        } catch (Exception e) {
-            logger.error(e);
-            throw e;
+            replicationLog.publish(lsn);
+            if (walEntryCount > 2 * walRetention) {
+                compactWAL();
+            }
+            for (String[] kv : pairs) {
+                subscriptions.invalidate(kv[0]);
+                if (getCacheStrategy() != CacheStrategy.None) {
+                    if (Cache != null) {
+                        Cache.putKV(kv[0], kv[1]);
+                        logger.info("[KVServer] KeyValue " + "[" + kv[0] + ": " + kv[1] + "]" +
+                                " has been stored in cache.");
+                    } else {
+                        logger.error("[KVServer] Cache does not exist.");
+                    }
+                }
+            }
+            return statuses;
+        } finally {
+            stateLock.unlock();
         }
     }
 
-    public void WAL_fsynch() {
-        lastCommittedLsn = lsn;
-        dataReplicationManager.commit(lastCommittedLsn);
+    /**
+     * @return whether a replicated write of the key was stamped before the
+     * last one applied, so it arrived late, by another path than the later
+     * write. Called under the state lock.
+     */
+    private boolean isLate(String key, String stamp) {
+        String last = recentStamps.get(key);
+        return last != null && clock.compare(stamp, last) < 0;
     }
 
-    public void rollback_put(String key, String value, long ts, int clientPort) throws Exception {
+    /**
+     * Advance the commit point past a client PUT once its forward completed,
+     * a retry of it is skipped from then on.
+     */
+    private void committed(long putLsn) {
+        stateLock.lock();
         try {
-            KVMessage.StatusType status = DB.putKV(key, value);
-        } catch (Exception e) {
-            throw e;
+            if (putLsn > lastCommittedLsn) {
+                lastCommittedLsn = putLsn;
+                dataReplicationManager.commit(lastCommittedLsn);
+            }
+        } finally {
+            stateLock.unlock();
         }
-        if (getCacheStrategy() != CacheStrategy.None) {
-            if (Cache != null) {
-                Cache.putKV(key, value);
-                logger.info("[KVServer] KeyValue " + "[" + key + ": " + value + "]" +
-                        " has been stored in cache.");
-            } else {
-                logger.error("[KVServer] Cache does not exist.");
+    }
+
+    public void rollback_put(String key, String value, long ts, String clientHost, int clientPort, long lsn,
+                             String stamp) throws Exception {
+        try {
+            stateLock.lock();
+            try {
+                KVMessage.StatusType status = DB.putKV(key, value);
+                recentStamps.put(key, stamp);
+                antiEntropy.put(key, value);
+                subscriptions.invalidate(key);
+                if (getCacheStrategy() != CacheStrategy.None) {
+                    if (Cache != null) {
+                        Cache.putKV(key, value);
+                        logger.info("[KVServer] KeyValue " + "[" + key + ": " + value + "]" +
+                                " has been stored in cache.");
+                    } else {
+                        logger.error("[KVServer] Cache does not exist.");
+                    }
+                }
+            } finally {
+                stateLock.unlock();
             }
+            dataReplicationManager.forward_rollback("PUT", key, value, ts, clientHost, clientPort, lsn, stamp);
+        } finally {
+            replicationLog.forwarded(lsn);
         }
-        boolean ret = dataReplicationManager.forward_rollback("PUT", key, value, ts, clientPort);
     }
 
 
@@ -615,23 +1500,32 @@ public class KVServer implements IKVServer, Runnable, Watcher {
         clearCache();
         logger.info("[KVServer] Clear Storage.");
         DB.clearStorage();
+        antiEntropy.clear();
+        resetReplicaPositions();
+        if (cacheWarmer != null)
+            cacheWarmer.deleteSnapshot();
     }
 
     @Override
     public void run() {
 
-        connections = new HashSet<>();
+        connections = ConcurrentHashMap.newKeySet();
         running = initializeServer();
 
-        if (serverSocket != null) {
+        if (serverSocket != null && frontEnd != null) {
+            frontEnd.run();
+        } else if (serverSocket != null) {
+            // one blocking thread per connection, virtual threads if requested
+            ThreadFactory connectionThreads = ConnectionThreads.factory(
+                    "virtual".equals(System.getProperty("server.io")), "kv-conn-");
+            metrics.register("connections", connections::size);
             while (isRunning()) {
                 try {
                     Socket client = serverSocket.accept();
                     ClientConnection connection =
-                            new ClientConnection(this, client);
-                    Thread t = new Thread(connection);
-                    t.start();
+                            new ClientConnection(this, requestHandler, client);
                     connections.add(connection);
+                    connectionThreads.newThread(connection).start();
 
                     logger.info("[KVServer] Connected to "
                             + client.getInetAddress().getHostName()
@@ -654,14 +1548,46 @@ public class KVServer implements IKVServer, Runnable, Watcher {
         return this.running;
     }
 
+    /**
+     * Called by a per-connection thread once its client disconnected.
+     */
+    public void connectionClosed(ClientConnection connection) {
+        if (connections != null)
+            connections.remove(connection);
+    }
+
     private boolean initializeServer() {
         logger.info("[KVServer] Initialize server ...");
         try {
-            serverSocket = new ServerSocket(port);
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            // like ServerSocket, rebind while connections of a previous run are in TIME_WAIT
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverSocket = serverChannel.socket();
             logger.info("[KVServer] Server listening on port: "
                     + serverSocket.getLocalPort());
 
             this.dataReplicationManager = new KVServerDataReplicationManager(this.name, getHostname(), this.port);
+            this.replicaRepair = new KVServerReplicaRepair(this);
+            dataReplicationManager.setReplicaRepair(replicaRepair, Boolean.parseBoolean(
+                    System.getProperty("server.hintedHandoff", String.valueOf(Constants.HINTED_HANDOFF))));
+            metrics.register("hints_pending", replicaRepair::getBacklog);
+            dataReplicationManager.setChainReplication(Boolean.parseBoolean(
+                    System.getProperty("server.chainReplication", String.valueOf(Constants.CHAIN_REPLICATION))));
+            dataReplicationManager.setReplicationLog(replicationLog);
+            antiEntropy.start(replicaRepair,
+                    Long.getLong("server.antiEntropyInterval", Constants.ANTI_ENTROPY_INTERVAL));
+            this.requestHandler = new KVRequestHandler(this);
+
+            // "thread" and "virtual" fall back to one thread per connection
+            String io = System.getProperty("server.io", "nio");
+            if (!io.equals("thread") && !io.equals("virtual")) {
+                frontEnd = new SelectorServer(this, requestHandler, serverChannel,
+                        Integer.getInteger("server.ioThreads", Constants.IO_THREADS),
+                        Integer.getInteger("server.workerThreads", Constants.WORKER_THREADS),
+                        Constants.WORKER_QUEUE_SIZE);
+                metrics.register("connections", frontEnd::getConnectionCount);
+            }
 
             return true;
 
@@ -677,12 +1603,20 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     @Override
     public void kill() {
         running = false;
+        killed = true;
         try {
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            if (frontEnd != null)
+                frontEnd.stop();
             if (dataReplicationManager != null)
                 dataReplicationManager.clear();
+            if (replicaRepair != null)
+                replicaRepair.shutdown();
+            antiEntropy.shutdown();
+            if (cacheWarmer != null)
+                cacheWarmer.stop();
 
         } catch (IOException e) {
             logger.error("[KVServer] Error! " +
@@ -697,12 +1631,20 @@ public class KVServer implements IKVServer, Runnable, Watcher {
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            if (frontEnd != null)
+                frontEnd.stop();
 //            String path = ZK_LIVE_SERVERS + "/" + this.port;
 //            if (zk.exists(path, false) != null) {
 //                zk.delete(path, zk.exists(path, false).getVersion());
 //            }
             if (dataReplicationManager != null)
                 dataReplicationManager.clear();
+            if (replicaRepair != null)
+                replicaRepair.shutdown();
+            antiEntropy.shutdown();
+            if (cacheWarmer != null)
+                cacheWarmer.stop();
+            saveReplicaPositions();
             ZKAPP.close();
         } catch (IOException e) {
             logger.error("[KVServer] Error! " +
@@ -854,6 +1796,7 @@ public class KVServer implements IKVServer, Runnable, Watcher {
             String path = ZK_CRASHED_NODES + "/" + port;
             if (zk.exists(path, false) != null) {
                 DB.clearStorage();
+                resetReplicaPositions();
                 ZK.deleteNoWatch(path);
                 // replayFromWAL();
                 logger.info("[KVServer] Clear storage for the crashed server.");
@@ -871,13 +1814,16 @@ public class KVServer implements IKVServer, Runnable, Watcher {
             byte[] hashRingData = zk.getData(ZK_HASH_TREE, new Watcher() {
                 // handle hashRing update
                 public void process(WatchedEvent we) {
-//                    if (!running) {
-//                        return;
-//                    }
+                    // the session is shared by the servers of this JVM, a killed one drops its watch
+                    if (killed) {
+                        return;
+                    }
                     try {
                         byte[] hashRingData = zk.getData(ECS.ZK_HASH_TREE, this, null);
                         hashRingString = new String(hashRingData);
                         hashRing = new ECSHashRing(hashRingString);
+                        antiEntropy.regroup();
+                        retainClock(hashRing);
 
                         hashRing.printAllNodes();
                         logger.info("[KVServer] Hash Ring updated");
@@ -885,13 +1831,13 @@ public class KVServer implements IKVServer, Runnable, Watcher {
                         if (dataReplicationManager != null) {
                             dataReplicationManager.update(hashRing);
                             logger.debug("KVServer] lsn: " + lsn + "; lastCommitedlsn: " + lastCommittedLsn + ", " + serverState);
+                            // replicas catch up with the PUTs they missed as they reconnect
                             if (serverState == ServerStateType.STARTED) {
                                 forceReplicaSynch();
                             }
-                            if (lsn > lastCommittedLsn && serverState == ServerStateType.STARTED) {
-                                redoUncommitedWAL(false);
-                            }
                         }
+                        // key ranges may have moved, cached values can no longer be tracked
+                        subscriptions.invalidateAll();
                     } catch (KeeperException | InterruptedException | IOException e) {
                         logger.info("[KVServer] Unable to update the metadata node");
                         e.printStackTrace();
@@ -1010,6 +1956,7 @@ public class KVServer implements IKVServer, Runnable, Watcher {
                 // copy only when working with replicas
                 if (!replicable) {
                     DB.deleteKVPairByRange(range);
+                    antiEntropy.removeRange(range);
                     clearCache();
                 }
                 this.unlockWrite();
@@ -1041,6 +1988,9 @@ public class KVServer implements IKVServer, Runnable, Watcher {
         this.lockWrite();
 
         DB.deleteDBData(range);
+        antiEntropy.removeRange(range);
+        // the deleted range may be replicated here again later, from the start
+        resetReplicaPositions();
 
         clearCache();
         this.unlockWrite();
@@ -1182,6 +2132,10 @@ public class KVServer implements IKVServer, Runnable, Watcher {
         return hashRingString;
     }
 
+    public ECSHashRing getHashRing() {
+        return hashRing;
+    }
+
     public boolean isResponsible(String key, String cmd) {
 
         ECSNode node = hashRing.getNodeByHash(MD5.HashInBI(key));
@@ -1212,7 +2166,11 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     public boolean receiveTransferredData(String data) {
         lockWrite();
         DB.receiveTransferdData(data);
+        loadMerkleTrees();
         unlockWrite();
+        if (cacheWarmer != null) {
+            cacheWarmer.rewarm(Long.getLong("cache.warmupBudget", Constants.CACHE_WARMUP_BUDGET));
+        }
 
         logger.debug("[KVServer] received finish " + data);
 
@@ -1225,87 +2183,15 @@ public class KVServer implements IKVServer, Runnable, Watcher {
     }
 
 
-    public void incrementClock() {
-        long old = vectorClock[clockID];
-        vectorClock[clockID] = old + 1;
-    }
-
-    public void updateClock(long[] ts) {
-        for (int i = 0; i < 20; i++) {
-            if (i != clockID) {
-                if (vectorClock[i] < ts[i]) {
-                    vectorClock[i] = ts[i];
-                }
-            }
-        }
-        incrementClock();
-    }
-
-    private void redoUncommitedWAL(boolean recover) {
-        if (lsn > lastCommittedLsn) {
-
-        }
-
-        try {
-            RandomAccessFile raf = new RandomAccessFile(this.WAL, "r");
-            String line, curKey, curValue;
-            while ((line = raf.readLine()) != null) {
-                // convert line from ISO to UTF-8
-                line = new String(line.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
-
-                String[] strs = line.split(Constants.DELIM);
-                if (line.isEmpty()) {
-                    break;
-                }
-
-                long local_lsn = Long.parseLong(decodeValue(strs[0]));
-                if (local_lsn < lsn && local_lsn > lastCommittedLsn) {
-                    String key = decodeValue(strs[1]);
-                    String value = decodeValue(strs[2]);
-                    long msg_ts = Long.parseLong(decodeValue(strs[5]));
-                    int client_port = Integer.parseInt(decodeValue(strs[4]));
-
-                    if (decodeValue(strs[3]).equals("PUT")) {
-                        // redo PUT
-                        lockWrite();
-                        try {
-                            KVMessage.StatusType status = DB.putKV(key, value);
-                        } catch (Exception e) {
-                            logger.debug("[KVServer] redo WAL " + e);
-                        }
-                        unlockWrite();
-
-                        logger.info("[KVServer] Recover put " + key);
-                        dataReplicationManager.setRecoverMode(recover);
-                        boolean ret = dataReplicationManager.forward("PUT", key, value, msg_ts, client_port); // TODO
-                        dataReplicationManager.unsetRecoverMode();
-                        if (!ret) {
-                            // TODO
-                            break;
-                        }
-                        lastCommittedLsn = local_lsn;
-                    } else if (decodeValue(strs[3]).equals("PUT_REPLICATE")) {
-                        lockWrite();
-                        try {
-                            KVMessage.StatusType status = DB.putKV(key, value);
-                        } catch (Exception e) {
-                            logger.debug("[KVServer] redo WAL " + e);
-                        }
-                        unlockWrite();
-                        lastCommittedLsn = local_lsn;
-                    }
-
-                }
-            }
-            raf.close();
-            if (lastCommittedLsn == lsn) {
-                logger.info("[KVServer] redo WAL recovery is done");
-            }
-
-        } catch (IOException fnf) {
-            logger.error("[KVServer] WAL file not found", fnf);
-            //throw fnf;
+    /**
+     * Forget the clocks of the servers that left the ring.
+     */
+    private void retainClock(ECSHashRing ring) {
+        Set<String> nodes = new HashSet<>();
+        for (ECSNode node : ring.getActiveNodes().values()) {
+            nodes.add(node.getNodeName());
         }
+        clock.retain(nodes);
     }
 
     private String decodeValue(String value) {
@@ -1338,59 +2224,14 @@ public class KVServer implements IKVServer, Runnable, Watcher {
 //        }
 //    }
 
+    /**
+     * Reconnect the replicas that lost their connection, they catch up with
+     * the PUTs they missed as they connect, and replay the hints kept for them.
+     */
     public void forceReplicaSynch() {
-        List<KVServerDataReplication> replicas = dataReplicationManager.getReplicationList();
-        for (KVServerDataReplication r : replicas) {
-            long r_lsn = r.getLsn();
-            try {
-                if (r_lsn < lastCommittedLsn) {
-
-                    RandomAccessFile raf;
-
-                    raf = new RandomAccessFile(this.WAL, "r");
-
-                    String line, curKey, curValue;
-                    while ((line = raf.readLine()) != null) {
-                        // convert line from ISO to UTF-8
-                        line = new String(line.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
-
-                        String[] strs = line.split(Constants.DELIM);
-                        if (line.isEmpty()) {
-                            break;
-                        }
-
-                        long local_lsn = Long.parseLong(decodeValue(strs[0]));
-                        if (local_lsn < lastCommittedLsn && local_lsn > r_lsn) {
-                            String key = decodeValue(strs[1]);
-                            String value = decodeValue(strs[2]);
-                            long msg_ts = Long.parseLong(decodeValue(strs[5]));
-                            int client_port = Integer.parseInt(decodeValue(strs[4]));
-
-                            if (decodeValue(strs[3]).equals("PUT")) {
-                                // redo PUT
-                                lockWrite();
-
-                                logger.info("[KVServer] Recover PUT " + key);
-                                dataReplicationManager.setRecoverMode(false);
-                                boolean ret = r.dataReplication("PUT", key, value, msg_ts, client_port, false); // TODO
-                                dataReplicationManager.unsetRecoverMode();
-                                if (!ret) {
-                                    // TODO
-                                    break;
-                                }
-                                r.commit(local_lsn);
-                                unlockWrite();
-                            }
-                        }
-                    }
-                    raf.close();
-                    if (lastCommittedLsn == lsn) {
-                        logger.info("[KVServer] redo WAL recovery is done");
-                    }
-                }
-            } catch (IOException e) {
-                logger.error("[KVServer] " + e);
-            }
+        replicaRepair.replay();
+        for (KVServerDataReplication r : new ArrayList<>(dataReplicationManager.getReplicationList())) {
+            r.reconnect();
         }
     }
 }
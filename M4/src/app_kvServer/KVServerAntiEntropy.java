@@ -0,0 +1,278 @@
+package app_kvServer;
+
+import ecs.ECSHashRing;
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.HashingFunction.MD5;
+import shared.communication.MessageCodec;
+import shared.messages.MerkleMessage;
+import shared.messages.TextMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the keys on which the replicas of a coordinator diverged from it
+ * and has them repaired. Every server keeps a Merkle tree of the pairs it
+ * stores for each coordinator, its own range and the ranges it replicates,
+ * updated with every change of its storage. Every ANTI_ENTROPY_INTERVAL the
+ * coordinator compares its tree with the one of each replica, from the root
+ * down to the buckets that differ, and hands the keys that differ in these
+ * buckets to the replica repair. Ranges in sync cost one hash.
+ */
+public class KVServerAntiEntropy {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final KVServer server;
+    private final int depth = Constants.MERKLE_DEPTH;
+    // tree of the pairs stored by port of their coordinator, guarded by this
+    private final Map<Integer, KVServerMerkleTree> trees = new HashMap<>();
+    private ScheduledExecutorService executor;
+
+    public KVServerAntiEntropy(KVServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Build the trees from the pairs of the storage.
+     */
+    public synchronized void load(List<String[]> pairs) {
+        trees.clear();
+        for (String[] kv : pairs) {
+            put(kv[0], kv[1]);
+        }
+    }
+
+    /**
+     * Record a change of the storage, an empty value deletes the key.
+     */
+    public synchronized void put(String key, String value) {
+        BigInteger keyHash = MD5.HashInBI(key);
+        int coordinator = coordinatorOf(server.getHashRing(), keyHash);
+        KVServerMerkleTree tree = trees.get(coordinator);
+        if (tree == null) {
+            if (value == null || value.isEmpty()) {
+                return;
+            }
+            tree = new KVServerMerkleTree(depth);
+            trees.put(coordinator, tree);
+        }
+        tree.put(key, keyHash, value);
+    }
+
+    /**
+     * Record that the keys of a hash range were deleted from the storage.
+     */
+    public synchronized void removeRange(String[] range) {
+        for (KVServerMerkleTree tree : trees.values()) {
+            for (String key : tree.getKeys().keySet()) {
+                BigInteger keyHash = MD5.HashInBI(key);
+                if (MD5.isKeyInRange(keyHash, range[0], range[1])) {
+                    tree.put(key, keyHash, 0);
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        trees.clear();
+    }
+
+    /**
+     * Move the keys whose coordinator changed with the hash ring to its tree.
+     */
+    public synchronized void regroup() {
+        ECSHashRing ring = server.getHashRing();
+        Map<Integer, KVServerMerkleTree> regrouped = new HashMap<>();
+        for (KVServerMerkleTree tree : trees.values()) {
+            for (Map.Entry<String, Long> entry : tree.getKeys().entrySet()) {
+                BigInteger keyHash = MD5.HashInBI(entry.getKey());
+                regrouped.computeIfAbsent(coordinatorOf(ring, keyHash), c -> new KVServerMerkleTree(depth))
+                        .put(entry.getKey(), keyHash, entry.getValue());
+            }
+        }
+        trees.clear();
+        trees.putAll(regrouped);
+    }
+
+    /**
+     * @return tree of the pairs of a coordinator, empty if there are none
+     */
+    public synchronized KVServerMerkleTree getTree(int coordinator) {
+        KVServerMerkleTree tree = trees.get(coordinator);
+        return tree == null ? new KVServerMerkleTree(depth) : tree;
+    }
+
+    /**
+     * @return number of keys in the trees
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (KVServerMerkleTree tree : trees.values()) {
+            size += tree.size();
+        }
+        return size;
+    }
+
+    /**
+     * Compare the range of this server with its replicas every interval ms,
+     * never if it is not positive.
+     */
+    public synchronized void start(KVServerReplicaRepair repair, long interval) {
+        if (interval <= 0 || executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kv-anti-entropy-" + server.getPort());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> compareReplicas(repair), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void compareReplicas(KVServerReplicaRepair repair) {
+        if (server.getServerState() != IKVServer.ServerStateType.STARTED || server.isWriteLocked()) {
+            return;
+        }
+        String[] range = server.getCoordinatorRange();
+        if (range == null) {
+            return;
+        }
+        for (KVServerDataReplication replica : new ArrayList<>(server.getDataReplicationManager().getReplicationList())) {
+            try {
+                Set<String> diverged = compare(replica, range);
+                server.getMetrics().increment("anti_entropy_rounds");
+                if (diverged == null) {
+                    continue;
+                }
+                if (!diverged.isEmpty()) {
+                    logger.info("[KVServerAntiEntropy] " + replica.getServerName() + " diverged on "
+                            + diverged.size() + " keys, repairing them");
+                    server.getMetrics().add("anti_entropy_repaired_keys", diverged.size());
+                }
+                for (String key : diverged) {
+                    repair.lagging(replica, key);
+                }
+            } catch (IOException e) {
+                logger.warn("[KVServerAntiEntropy] Unable to compare with " + replica.getServerName() + ": " + e);
+            } catch (RuntimeException e) {
+                logger.error("[KVServerAntiEntropy] Comparison with " + replica.getServerName() + " failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Compare the tree of the range of this server with the one of a
+     * replica, level by level from the root, descending only into the
+     * nodes that differ.
+     *
+     * @return the keys whose pair differs, null if the replica refused
+     */
+    private Set<String> compare(KVServerDataReplication replica, String[] range) throws IOException {
+        int source = server.getPort();
+        KVServerMerkleTree tree = getTree(source);
+        try (Socket socket = new Socket(replica.getServerHost(), replica.getServerPort())) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) Constants.REPLICATION_TIMEOUT);
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+            MessageCodec codec = new MessageCodec();
+            codec.readMessage(input); // connection established
+
+            int[] nodes = {1};
+            List<Integer> buckets = new ArrayList<>();
+            while (nodes.length > 0) {
+                String reply = exchange(output, input, codec,
+                        new MerkleMessage.Request(MerkleMessage.HASHES, source, range, nodes));
+                long[] theirs = MerkleMessage.hashesOf(reply);
+                if (theirs == null || theirs.length != nodes.length) {
+                    logger.warn("[KVServerAntiEntropy] " + replica.getServerName() + " refused to compare: " + reply);
+                    return null;
+                }
+                server.getMetrics().add("anti_entropy_hashes", nodes.length);
+                long[] ours = tree.getHashes(nodes);
+                List<Integer> differing = new ArrayList<>();
+                for (int i = 0; i < nodes.length; i++) {
+                    if (ours[i] != theirs[i]) {
+                        differing.add(nodes[i]);
+                    }
+                }
+                if (differing.isEmpty() || tree.isLeaf(nodes[0])) {
+                    for (int node : differing) {
+                        buckets.add(node - (1 << depth));
+                    }
+                    break;
+                }
+                nodes = new int[2 * differing.size()];
+                for (int i = 0; i < differing.size(); i++) {
+                    nodes[2 * i] = 2 * differing.get(i);
+                    nodes[2 * i + 1] = 2 * differing.get(i) + 1;
+                }
+            }
+
+            Set<String> diverged = new HashSet<>();
+            if (buckets.isEmpty()) {
+                return diverged;
+            }
+            int[] ids = buckets.stream().mapToInt(Integer::intValue).toArray();
+            String reply = exchange(output, input, codec,
+                    new MerkleMessage.Request(MerkleMessage.KEYS, source, range, ids));
+            Map<String, Long> theirs = MerkleMessage.keysOf(reply);
+            if (theirs == null) {
+                logger.warn("[KVServerAntiEntropy] " + replica.getServerName() + " refused to compare: " + reply);
+                return null;
+            }
+            Map<String, Long> ours = new HashMap<>();
+            for (int bucket : ids) {
+                ours.putAll(tree.getBucket(bucket));
+            }
+            for (Map.Entry<String, Long> entry : ours.entrySet()) {
+                if (!entry.getValue().equals(theirs.get(entry.getKey()))) {
+                    diverged.add(entry.getKey());
+                }
+            }
+            for (String key : theirs.keySet()) {
+                if (!ours.containsKey(key)) {
+                    diverged.add(key); // deleted here
+                }
+            }
+            return diverged;
+        }
+    }
+
+    private static String exchange(OutputStream output, InputStream input, MessageCodec codec,
+                                   MerkleMessage.Request request) throws IOException {
+        byte[] msgBytes = new TextMessage(request.encode()).getMsgBytes();
+        output.write(msgBytes, 0, msgBytes.length);
+        output.flush();
+        return codec.readMessage(input).getMsg().trim();
+    }
+
+    /**
+     * @return port of the coordinator of a key, -1 if it is unknown
+     */
+    private static int coordinatorOf(ECSHashRing ring, BigInteger keyHash) {
+        ECSNode node = ring == null ? null : ring.getNodeByHash(keyHash);
+        return node == null ? -1 : node.getNodePort();
+    }
+}
@@ -3,13 +3,44 @@ package app_kvServer;
 import ecs.ECSNode;
 import org.apache.log4j.Logger;
 import shared.Constants;
+import shared.communication.MessageCodec;
+import shared.messages.ReplicationBatch;
 import shared.messages.TextMessage;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Replication stream from a coordinator to one of its replicas. Every
+ * replicated PUT gets the next sequence number of the stream and is queued,
+ * a sender thread coalesces the queued PUTs into batches and sends them
+ * without waiting for earlier batches to be acknowledged, and a reader
+ * thread completes the PUTs up to the sequence number each acknowledgement
+ * carries. A batch leaves as soon as nothing is in flight, otherwise once
+ * it is full or its oldest PUT waited REPLICATION_LINGER.
+ *
+ * Every connection starts with the replica telling up to which LSN of the
+ * coordinator it applied every PUT, the PUTs it missed since are queued
+ * ahead of the live ones. Batches tell the replica how far it got, from
+ * the PUTs acknowledged so far; once the stream is idle, an empty batch
+ * tells it how far the last ones took it, so it answers GETs again.
+ *
+ * In chain replication PUTs are chained: they leave in batches of their
+ * own, which the replica passes on down the chain before acknowledging.
+ */
 public class KVServerDataReplication {
 
     private Logger logger = Logger.getRootLogger();
@@ -22,18 +53,68 @@ public class KVServerDataReplication {
     private OutputStream output;
     private InputStream input;
 
-    private static final int BUFFER_SIZE = Constants.BUFFER_SIZE;
-    private static final int DROP_SIZE = Constants.DROP_SIZE;
+    private MessageCodec codec;
+    private final KVServerReplicationLog log; // null if the replica does not catch up
 
     private String prompt = "[KVServerDR] ";
     private long lastCommitedLsn=0;
 
+    // guarded by this
+    private long nextSeq = 0;
+    private final List<Pending> queued = new ArrayList<>();
+    private long queuedSince;
+    private final Queue<Sent> inFlight = new ArrayDeque<>();
+    private final Semaphore window = new Semaphore(Constants.REPLICATION_WINDOW);
+    // LSNs of the logged PUTs queued or in flight, or refused, by number of records
+    private final TreeMap<Long, Integer> outstanding = new TreeMap<>();
+    private boolean tracked; // whether the replica caught up on this connection
+    private long synced = ReplicationBatch.UNKNOWN;
+    private long sentSynced = ReplicationBatch.UNKNOWN; // synced LSN the replica was told last
+    private boolean connecting; // a thread connects and catches the replica up
+    private long disconnects; // a connection made meanwhile is not taken
+
+    private static class Pending {
+        final ReplicationBatch.Record record;
+        final CompletableFuture<Boolean> ack;
+        final long lsn; // -1 for a PUT that is not in the log
+        final boolean chained;
+
+        Pending(ReplicationBatch.Record record, CompletableFuture<Boolean> ack, long lsn) {
+            this(record, ack, lsn, false);
+        }
+
+        Pending(ReplicationBatch.Record record, CompletableFuture<Boolean> ack, long lsn, boolean chained) {
+            this.record = record;
+            this.ack = ack;
+            this.lsn = lsn;
+            this.chained = chained;
+        }
+    }
+
+    private static class Sent {
+        final long first;
+        final List<Pending> records;
+
+        Sent(long first, List<Pending> records) {
+            this.first = first;
+            this.records = records;
+        }
+    }
+
 
     public KVServerDataReplication(ECSNode n) {
+        this(n, null);
+    }
+
+    /**
+     * @param log PUTs of the coordinator the replica catches up with when it connects
+     */
+    public KVServerDataReplication(ECSNode n, KVServerReplicationLog log) {
         assert n != null;
         this.name = n.getNodeName();
         this.host = n.getNodeHost();
         this.port = n.getNodePort();
+        this.log = log;
     }
 
     public String getServerName() {
@@ -42,56 +123,360 @@ public class KVServerDataReplication {
     public int getServerPort() {
         return port;
     }
+    public String getServerHost() {
+        return host;
+    }
 
+    /**
+     * Send a request and wait for the replica to acknowledge it.
+     */
     public boolean dataReplication(String cmd, String k, String v, long ts, int port, boolean recover) {
+        try {
+            return replicate(cmd, k, v, ts, port, recover).get(Constants.REPLICATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn(prompt + cmd + " " + k + " in " + this.name + " not acknowledged: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Queue a request on the stream without waiting for its reply. A link
+     * that lost its connection reconnects in the background.
+     *
+     * @return completed with true once the replica applied the request,
+     * false if it refused it or the connection failed
+     */
+    public CompletableFuture<Boolean> replicate(String cmd, String k, String v, long ts, int port, boolean recover) {
+        return replicate(cmd, k, v, ts, port, recover, -1);
+    }
+
+    /**
+     * @param lsn LSN of the logged PUT, -1 if it is not in the log
+     */
+    public CompletableFuture<Boolean> replicate(String cmd, String k, String v, long ts, int port, boolean recover,
+                                                long lsn) {
+        return replicate(cmd, k, v, ts, "", port, recover, lsn, false, "");
+    }
+
+    /**
+     * @param chained whether the replica passes the request on down the
+     *                chain, completed once the tail applied it
+     * @param stamp   clock stamp of the write
+     * @param host    address of the client, empty if unknown
+     */
+    public CompletableFuture<Boolean> replicate(String cmd, String k, String v, long ts, String host, int port,
+                                                boolean recover, long lsn, boolean chained, String stamp) {
         assert !cmd.equals("PUT");
 
         logger.debug(prompt + " data replication in " + this.name);
 
-        String msg;
-
         String command;
-        if(recover){
-            command="RECOVER_REPLICATE";
-        }else{
-            command="PUT_REPLICATE";
+        if (recover) {
+            command = "RECOVER_REPLICATE";
+        } else {
+            command = "PUT_REPLICATE";
         }
-        msg = command + Constants.DELIMITER + k + Constants.DELIMITER + v + Constants.DELIMITER + ts +  Constants.DELIMITER + port;
-        String msg_receive;
+        return send(new ReplicationBatch.Record(command, k, v, ts, host, port, stamp), lsn, chained);
+    }
 
+    /**
+     * Pass a replicated PUT received from up the chain on to this replica.
+     *
+     * @return completed with true once the rest of the chain applied it
+     */
+    public CompletableFuture<Boolean> relay(ReplicationBatch.Record record) {
+        return send(record, -1, true);
+    }
+
+    private CompletableFuture<Boolean> send(ReplicationBatch.Record record, long lsn, boolean chained) {
+        CompletableFuture<Boolean> ack = new CompletableFuture<>();
         try {
-            sendMessage(new TextMessage(msg));
-            msg_receive = receiveMessage().getMsg().trim();
-            String[] tokens = msg_receive.split("\\" + Constants.DELIMITER);
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ack.complete(false);
+            return ack;
+        }
+        ack.whenComplete((ok, e) -> window.release());
+        synchronized (this) {
+            if (queued.isEmpty()) {
+                queuedSince = System.currentTimeMillis();
+            }
+            enqueue(new Pending(record, ack, lsn, chained));
+            // the request waits for the connection, or fails with it
+            reconnect();
+            notifyAll();
+        }
+        return ack;
+    }
 
-            logger.debug(prompt + "msg received: " + msg_receive);
+    private void enqueue(Pending p) {
+        queued.add(p);
+        if (p.lsn >= 0) {
+            outstanding.merge(p.lsn, 1, Integer::sum);
+        }
+    }
+
+    private void acknowledged(Pending p) {
+        if (p.lsn >= 0) {
+            outstanding.computeIfPresent(p.lsn, (lsn, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    /**
+     * @return LSN up to which the replica applied every logged PUT
+     */
+    private long synced() {
+        if (!tracked) {
+            return ReplicationBatch.UNKNOWN;
+        }
+        long lsn = log.getForwarded(); // read first, what it hands over later is already outstanding
+        if (!outstanding.isEmpty()) {
+            lsn = Math.min(lsn, outstanding.firstKey() - 1);
+        }
+        synced = Math.max(synced, lsn);
+        return synced;
+    }
 
-            if (!tokens[0].equals("PUT_SUCCESS") && !tokens[0].equals("PUT_UPDATE") && !tokens[0].equals("DELETE_SUCCESS")) {
-                logger.warn(prompt + cmd + " " + k + " " + v + " in " + this.name + " failed: " + tokens[0]);
-                return false;
+    /**
+     * Send the queued requests in batches, until the connection closes.
+     */
+    private void sendBatches(Socket socket, OutputStream output) {
+        try {
+            while (true) {
+                ReplicationBatch batch;
+                synchronized (this) {
+                    while (clientSocket == socket && !batchReady() && !positionAdvanced()) {
+                        if (queued.isEmpty()) {
+                            wait(Constants.REPLICATION_POSITION_INTERVAL);
+                        } else {
+                            wait(Math.max(1, queuedSince + Constants.REPLICATION_LINGER - System.currentTimeMillis()));
+                        }
+                    }
+                    if (clientSocket != socket) {
+                        return;
+                    }
+                    boolean chained = !queued.isEmpty() && queued.get(0).chained;
+                    batch = new ReplicationBatch(nextSeq + 1, log == null ? 0 : log.getPort(), synced(), chained);
+                    sentSynced = batch.getSynced();
+                    List<Pending> sent = new ArrayList<>();
+                    while (sent.size() < queued.size() && batch.size() < Constants.REPLICATION_BATCH_SIZE
+                            && batch.length() < Constants.REPLICATION_BATCH_BYTES
+                            && queued.get(sent.size()).chained == chained) {
+                        Pending p = queued.get(sent.size());
+                        batch.add(p.record);
+                        sent.add(p);
+                    }
+                    queued.subList(0, sent.size()).clear();
+                    queuedSince = System.currentTimeMillis();
+                    nextSeq = batch.getLast();
+                    inFlight.add(new Sent(batch.getFirst(), sent));
+                }
+                byte[] msgBytes = new TextMessage(batch.encode()).getMsgBytes();
+                output.write(msgBytes, 0, msgBytes.length);
+                output.flush();
+                logger.debug(prompt + "Sent " + batch.size() + " records up to " + batch.getLast() + " to " + this.name);
             }
-            return true;
         } catch (IOException e) {
-            logger.error(prompt + "Error! " + e);
-            e.printStackTrace();
-            return false;
+            connectionLost(socket, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
+
+    /**
+     * @return whether the stream is idle and the replica got further than
+     * the last batch told it
+     */
+    private boolean positionAdvanced() {
+        return tracked && queued.isEmpty() && inFlight.isEmpty() && synced() > sentSynced;
+    }
 
+    private boolean batchReady() {
+        return !queued.isEmpty() && (inFlight.isEmpty()
+                || queued.size() >= Constants.REPLICATION_BATCH_SIZE
+                || System.currentTimeMillis() >= queuedSince + Constants.REPLICATION_LINGER);
     }
 
+    /**
+     * Complete the requests acknowledged by the replica, until the
+     * connection closes. A batch is answered once, records after the
+     * acknowledged one were refused by the replica.
+     */
+    private void readReplies(Socket socket, InputStream input, MessageCodec codec) {
+        try {
+            while (true) {
+                String msg_receive = codec.readMessage(input).getMsg().trim();
+                logger.debug(prompt + "msg received: " + msg_receive);
+                long acked = ReplicationBatch.ackOf(msg_receive);
+                Sent sent;
+                synchronized (this) {
+                    sent = inFlight.poll();
+                    if (sent != null) {
+                        // refused PUTs stay outstanding, the replica catches up with them when it reconnects
+                        for (int i = 0; i < sent.records.size() && sent.first + i <= acked; i++) {
+                            acknowledged(sent.records.get(i));
+                        }
+                    }
+                    notifyAll();
+                }
+                if (sent == null) {
+                    continue;
+                }
+                if (acked < sent.first + sent.records.size() - 1) {
+                    logger.warn(prompt + "replication in " + this.name + " failed after " + acked + ": " + msg_receive);
+                }
+                for (int i = 0; i < sent.records.size(); i++) {
+                    sent.records.get(i).ack.complete(sent.first + i <= acked);
+                }
+            }
+        } catch (IOException e) {
+            connectionLost(socket, e);
+        }
+    }
+
+    private synchronized void connectionLost(Socket socket, IOException e) {
+        if (clientSocket == socket) {
+            logger.error(prompt + "Connection to " + this.name + " lost: " + e);
+            disconnect();
+        }
+    }
+
+    /**
+     * Connect in the background if the link is down. The requests queued
+     * meanwhile are sent once the replica caught up, or fail with the
+     * connection.
+     */
+    public synchronized void reconnect() {
+        if (isRunning() || connecting) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                connect();
+            } catch (IOException e) {
+                logger.error(prompt + "Error! " + e);
+            }
+        }, "kv-replication-connect-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connect to the replica and catch it up, without holding up the
+     * requests queued meanwhile; they are sent after the PUTs it missed.
+     * Does nothing if the link is up or already connecting.
+     */
     public void connect() throws IOException {
-        this.clientSocket = new Socket(this.host, this.port);
+        long generation;
+        synchronized (this) {
+            if (isRunning() || connecting) {
+                return;
+            }
+            connecting = true;
+            generation = disconnects;
+        }
+        Socket socket = null;
+        try {
+            socket = new Socket(this.host, this.port);
+            socket.setTcpNoDelay(true); // batches are pipelined, do not hold them back for acks
+
+            logger.info("[KVStore] Connection established");
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            MessageCodec c = new MessageCodec();
+            logger.info("[KVStore] " + c.readMessage(in).getMsg());
+            KVServerReplicationLog.CatchUp catchUp = log == null ? null : catchUp(socket, out, in, c);
+
+            synchronized (this) {
+                if (disconnects != generation) {
+                    throw new IOException("Link to " + this.name + " closed while connecting");
+                }
+                this.clientSocket = socket;
+                this.output = out;
+                this.input = in;
+                this.codec = c;
+                if (catchUp != null) {
+                    tracked = true;
+                    synced = catchUp.synced;
+                    List<Pending> missed = new ArrayList<>(catchUp.records.size());
+                    for (int i = 0; i < catchUp.records.size(); i++) {
+                        missed.add(new Pending(catchUp.records.get(i), new CompletableFuture<>(), catchUp.lsns.get(i)));
+                        outstanding.merge(catchUp.lsns.get(i), 1, Integer::sum);
+                    }
+                    // ahead of the live ones queued while connecting
+                    queued.addAll(0, missed);
+                    queuedSince = System.currentTimeMillis();
+                }
+                connecting = false;
+                setRunning(true);
+                startThreads(socket, out, in, c);
+                notifyAll();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (socket != null) {
+                socket.close();
+            }
+            synchronized (this) {
+                connecting = false;
+                // nothing was sent yet, the requests queued meanwhile fail
+                failAll();
+            }
+            throw e;
+        }
+    }
+
+    private void startThreads(Socket socket, OutputStream out, InputStream in, MessageCodec c) {
+        Thread sender = new Thread(() -> sendBatches(socket, out), "kv-replication-send-" + name);
+        Thread reader = new Thread(() -> readReplies(socket, in, c), "kv-replication-" + name);
+        sender.setDaemon(true);
+        reader.setDaemon(true);
+        sender.start();
+        reader.start();
+    }
 
-        logger.info("[KVStore] Connection established");
-        this.output = clientSocket.getOutputStream();
-        this.input = clientSocket.getInputStream();
-        TextMessage reply = receiveMessage();
-        setRunning(true);
-        logger.info("[KVStore] " + reply.getMsg());
+
+    /**
+     * Ask the replica up to which LSN it applied the PUTs of this
+     * coordinator, and read the ones it missed since.
+     *
+     * @return the PUTs to queue ahead of the live ones, null if the replica
+     * refused a snapshot and is not tracked
+     */
+    private KVServerReplicationLog.CatchUp catchUp(Socket socket, OutputStream out, InputStream in, MessageCodec c)
+            throws IOException {
+        socket.setSoTimeout((int) Constants.REPLICATION_TIMEOUT);
+        sendMessage(out, ReplicationBatch.sync(log.getPort(), log.getPublished()));
+        long from = ReplicationBatch.fromOf(c.readMessage(in).getMsg().trim());
+        KVServerReplicationLog.CatchUp catchUp = log.catchUp(from);
+        if (catchUp.isSnapshot()) {
+            sendMessage(out, ReplicationBatch.snapshot(log.getPort(), catchUp.snapshotRange));
+            String snapshotReply = c.readMessage(in).getMsg().trim();
+            if (!snapshotReply.equals(ReplicationBatch.SNAPSHOT_SUCCESS)) {
+                logger.warn(prompt + this.name + " refused a snapshot: " + snapshotReply);
+                socket.setSoTimeout(0);
+                return null;
+            }
+        }
+        socket.setSoTimeout(0);
+        logger.info(prompt + this.name + " catches up from LSN " + from + " with "
+                + catchUp.records.size() + (catchUp.isSnapshot() ? " snapshot" : " WAL") + " entries");
+        return catchUp;
     }
 
+    private static void sendMessage(OutputStream output, String msg) throws IOException {
+        byte[] msgBytes = new TextMessage(msg).getMsgBytes();
+        output.write(msgBytes, 0, msgBytes.length);
+        output.flush();
+    }
 
-    public void disconnect() {
+    /**
+     * Close the connection and fail every request queued or in flight on it.
+     */
+    public synchronized void disconnect() {
         logger.info("[KVStore] try to close connection ...");
 
         try {
@@ -100,6 +485,30 @@ public class KVServerDataReplication {
         } catch (IOException ioe) {
             logger.error("[KVStore] Unable to close connection!");
         }
+        disconnects++;
+        failAll();
+    }
+
+    /**
+     * Fail every request queued or in flight, the next connection starts
+     * from where the replica says it is.
+     */
+    private void failAll() {
+        Sent sent;
+        while ((sent = inFlight.poll()) != null) {
+            for (Pending p : sent.records) {
+                p.ack.complete(false);
+            }
+        }
+        for (Pending p : queued) {
+            p.ack.complete(false);
+        }
+        queued.clear();
+        outstanding.clear();
+        tracked = false;
+        synced = ReplicationBatch.UNKNOWN;
+        sentSynced = ReplicationBatch.UNKNOWN;
+        notifyAll();
     }
 
     public boolean isRunning() {
@@ -114,81 +523,12 @@ public class KVServerDataReplication {
         setRunning(false);
         logger.info("[KVStore] tearing down the connection ...");
         if (clientSocket != null) {
-            input.close();
-            output.close();
             clientSocket.close();
             clientSocket = null;
             logger.info("[KVStore] connection closed!");
         }
     }
 
-    public void sendMessage(TextMessage msg) throws IOException {
-        byte[] msgBytes = msg.getMsgBytes();
-        output.write(msgBytes, 0, msgBytes.length);
-        output.flush();
-        logger.info(prompt + "Sending: " + msg.getMsg());
-    }
-
-    private TextMessage receiveMessage() throws IOException {
-
-        int index = 0;
-        byte[] msgBytes = null, tmp;
-        byte[] bufferBytes = new byte[BUFFER_SIZE];
-
-        /* read first char from stream */
-        byte read = (byte) input.read();
-        boolean reading = true;
-
-        while (read != 13 && reading) {/* carriage return */
-            /* if buffer filled, copy to msg array */
-            if (index == BUFFER_SIZE) {
-                if (msgBytes == null) {
-                    tmp = new byte[BUFFER_SIZE];
-                    System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-                } else {
-                    tmp = new byte[msgBytes.length + BUFFER_SIZE];
-                    System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-                    System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-                            BUFFER_SIZE);
-                }
-
-                msgBytes = tmp;
-                bufferBytes = new byte[BUFFER_SIZE];
-                index = 0;
-            }
-
-            /* only read valid characters, i.e. letters and numbers */
-            if ((read > 31 && read < 127)) {
-                bufferBytes[index] = read;
-                index++;
-            }
-
-            /* stop reading is DROP_SIZE is reached */
-            if (msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-                reading = false;
-            }
-
-            /* read next char from stream */
-            read = (byte) input.read();
-        }
-
-        if (msgBytes == null) {
-            tmp = new byte[index];
-            System.arraycopy(bufferBytes, 0, tmp, 0, index);
-        } else {
-            tmp = new byte[msgBytes.length + index];
-            System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-            System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
-        }
-
-        msgBytes = tmp;
-
-        /* build final String */
-        TextMessage msg = new TextMessage(msgBytes);
-        logger.debug("[KVStore] Received message from server: " + msg.getMsg().trim());
-        return msg;
-    }
-
     public void commit(long lsn){
         lastCommitedLsn=lsn;
     }
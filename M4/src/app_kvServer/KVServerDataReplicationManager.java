@@ -3,12 +3,20 @@ package app_kvServer;
 import ecs.ECSHashRing;
 import ecs.ECSNode;
 import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.communication.RetryPolicy;
+import shared.messages.WriteConsistency;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class KVServerDataReplicationManager {
     private Logger logger = Logger.getRootLogger();
@@ -18,6 +26,14 @@ public class KVServerDataReplicationManager {
     private final String prompt = "[KVServerDRManagr] ";
     private boolean recover = false;
     private long lastCommitedLsn = 0;
+    private KVServerReplicationLog log;
+    private KVServerReplicaRepair repair; // null if missed PUTs are not repaired
+    private boolean handoff; // whether a hint stands for the copy of a replica that missed a PUT
+    private boolean chain; // whether PUTs go to the head of the chain, which passes them on to the tail
+    private KVServerDataReplication relay; // PUTs received from up a chain passed on to the next replica
+    private RetryPolicy retryPolicy = new RetryPolicy(Constants.RETRY_BASE_DELAY, Constants.RETRY_MAX_DELAY,
+            Constants.RETRY_MAX_ATTEMPTS, Constants.REPLICATION_RETRY_DEADLINE,
+            Constants.RETRY_BUDGET, Constants.RETRY_BUDGET_RATIO);
 
     public KVServerDataReplicationManager(String name, String host, int port) {
         this.replicationList = new ArrayList<>();
@@ -31,11 +47,11 @@ public class KVServerDataReplicationManager {
             clear();
             return;
         }
-        Collection<ECSNode> replicas = hashRing.getReplicas(node);
+        Collection<ECSNode> replicas = hashRing.getChain(node);
         List<KVServerDataReplication> toReplicate = new ArrayList<>();
 
         for (ECSNode n : replicas) {
-            toReplicate.add(new KVServerDataReplication(n));
+            toReplicate.add(new KVServerDataReplication(n, log));
         }
 
         for (Iterator<KVServerDataReplication> it = replicationList.iterator(); it.hasNext(); ) {
@@ -57,6 +73,16 @@ public class KVServerDataReplicationManager {
                 replicationList.add(r);
             }
         }
+        // in chain order, the head first
+        List<KVServerDataReplication> ordered = new ArrayList<>(replicationList.size());
+        for (KVServerDataReplication r : toReplicate) {
+            for (KVServerDataReplication current : replicationList) {
+                if (current.getServerName().equals(r.getServerName())) {
+                    ordered.add(current);
+                }
+            }
+        }
+        replicationList = ordered;
     }
 
     public void setRecoverMode(boolean rec) {
@@ -74,34 +100,227 @@ public class KVServerDataReplicationManager {
         }
     }
 
+    /**
+     * Send a request to all replicas at once, so it waits for the slowest
+     * of them rather than for each in turn.
+     *
+     * @return true once every replica acknowledged it
+     */
     public boolean forward(String cmd, String k, String v, long ts, int port) throws IOException {
-        boolean ret = true;
-        for (KVServerDataReplication r : replicationList) {
-            logger.debug(prompt + " data replication from " + this.thisNode.getNodeName() + " to " + r.getServerName());
-            if (recover) {
-                ret &= r.dataReplication(cmd, k, v, ts, port, true);
+        return forward(cmd, k, v, ts, "", port, WriteConsistency.ALL, -1, "");
+    }
+
+    /**
+     * Send a request to all replicas at once and wait until as many of them
+     * acknowledged it as the write consistency requires. A replica that
+     * fails to acknowledge it is handed to the replica repair, which keeps
+     * a hint of the key for it. With hinted handoff a replica that did not
+     * answer in time is handed off: its next PUTs are hinted without being
+     * sent, until the hints were replayed, and at ONE or QUORUM the hint
+     * counts as the acknowledgement of the replica. At ALL only the
+     * replicas themselves count, a PUT at ALL is sent to a replica handed
+     * off too and fails unless every replica applied it.
+     *
+     * @param host  address of the client, empty if unknown
+     * @param lsn   LSN of the PUT in the replication log, -1 if it is not in it
+     * @param stamp clock stamp of the PUT
+     * @return true once the required replicas acknowledged it
+     */
+    public boolean forward(String cmd, String k, String v, long ts, String host, int port,
+                           WriteConsistency consistency, long lsn, String stamp) throws IOException {
+        List<KVServerDataReplication> all = new ArrayList<>(replicationList);
+        if (chain && all.size() > 1 && forwardChain(all, cmd, k, v, ts, host, port, lsn, stamp)) {
+            retryPolicy.succeeded();
+            return true;
+        }
+        boolean hintsCount = handoff && consistency != WriteConsistency.ALL;
+        List<KVServerDataReplication> replicas = new ArrayList<>(all.size());
+        int required = consistency.requiredAcks(all.size());
+        for (KVServerDataReplication r : all) {
+            if (hintsCount && repair.handOff(r, k)) {
+                required--;
             } else {
-                ret &= r.dataReplication(cmd, k, v, ts, port, false);
+                replicas.add(r);
             }
+        }
+        List<CompletableFuture<Boolean>> acks = send(replicas, cmd, k, v, ts, host, port, lsn, stamp);
+        for (int i = 0; i < acks.size(); i++) {
+            KVServerDataReplication r = replicas.get(i);
+            acks.set(i, acks.get(i).handle((ok, e) -> (e == null && ok) || hint(r, k, false) && hintsCount));
+        }
+        boolean ret = await(acks, required);
+        if (!ret && handoff) {
+            ret = handOffLate(replicas, acks, required, k) && hintsCount;
+        }
+        if (!ret) {
+            logger.error("[KVServerDRManager] Failed to replicate from " + this.thisNode.getNodeName());
+            return ret;
+        }
+        retryPolicy.succeeded();
+        return ret;
+    }
 
-            if (!ret) {
-                logger.error("[KVServerDRManager] Failed to replicate from " + this.thisNode.getNodeName() + " to " + r.getServerName());
-                return ret;
+    /**
+     * Send a request to the head of the chain only, which passes it on
+     * down the chain and acknowledges it once the tail applied it. The
+     * chain is skipped while one of its replicas is handed off. A request
+     * the chain did not acknowledge goes to each replica then, and only
+     * reaches the tail for sure at ALL.
+     *
+     * @return true once every replica of the chain applied it, false if the
+     * request is to be sent to each replica instead
+     */
+    private boolean forwardChain(List<KVServerDataReplication> chain, String cmd, String k, String v, long ts,
+                                 String host, int port, long lsn, String stamp) {
+        if (handoff) {
+            for (KVServerDataReplication r : chain) {
+                if (repair.isHandedOff(r)) {
+                    return false;
+                }
             }
         }
-        return ret;
+        KVServerDataReplication head = chain.get(0);
+        logger.debug(prompt + " chain replication from " + this.thisNode.getNodeName() + " to " + head.getServerName());
+        try {
+            return head.replicate(cmd, k, v, ts, host, port, recover, lsn, true, stamp)
+                    .get(Constants.REPLICATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn(prompt + "Chain of " + head.getServerName() + " did not acknowledge in time: " + e);
+            return false;
+        }
     }
 
-    public boolean forward_rollback(String cmd, String k, String v, long ts, int port) throws IOException {
-        boolean ret = true;
-        for (KVServerDataReplication r : replicationList) {
+    /**
+     * @return whether a hint of the key was kept to stand for the copy of
+     * the replica
+     */
+    private boolean hint(KVServerDataReplication r, String k, boolean unreachable) {
+        if (repair == null) {
+            return false;
+        }
+        boolean kept = unreachable ? repair.unreachable(r, k) : repair.lagging(r, k);
+        return kept && handoff;
+    }
+
+    /**
+     * Hand off the replicas that did not answer in time.
+     *
+     * @return whether the required replicas acknowledged the request or got a hint of it
+     */
+    private boolean handOffLate(List<KVServerDataReplication> replicas, List<CompletableFuture<Boolean>> acks,
+                                int required, String k) {
+        int acked = 0;
+        for (int i = 0; i < acks.size(); i++) {
+            CompletableFuture<Boolean> ack = acks.get(i);
+            if (ack.isDone() ? ack.join() : hint(replicas.get(i), k, true)) {
+                acked++;
+            }
+        }
+        return acked >= required;
+    }
+
+    /**
+     * @param repair  keeps the keys of the PUTs replicas missed and sends them again
+     * @param handoff whether a hint kept by the repair counts as the copy of
+     *                the replica, so a PUT at ONE or QUORUM does not fail
+     *                while a replica is down
+     */
+    public void setReplicaRepair(KVServerReplicaRepair repair, boolean handoff) {
+        this.repair = repair;
+        this.handoff = handoff && repair != null;
+    }
+
+    /**
+     * @param chain whether PUTs go to the head of the chain of replicas
+     *              only, which passes them on to the tail, rather than to
+     *              every replica from this server
+     */
+    public void setChainReplication(boolean chain) {
+        this.chain = chain;
+    }
+
+    public boolean isChainReplication() {
+        return chain;
+    }
+
+    /**
+     * @param log PUTs the replicas connected from now on catch up with
+     */
+    public void setReplicationLog(KVServerReplicationLog log) {
+        this.log = log;
+    }
+
+    private List<CompletableFuture<Boolean>> send(List<KVServerDataReplication> replicas,
+                                                  String cmd, String k, String v, long ts, String host, int port,
+                                                  long lsn, String stamp) {
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>(replicas.size());
+        for (KVServerDataReplication r : replicas) {
             logger.debug(prompt + " data replication from " + this.thisNode.getNodeName() + " to " + r.getServerName());
-            if (recover) {
-                ret &= r.dataReplication(cmd, k, v, ts, port, true);
-            } else {
-                ret &= r.dataReplication(cmd, k, v, ts, port, false);
+            acks.add(r.replicate(cmd, k, v, ts, host, port, recover, lsn, false, stamp));
+        }
+        return acks;
+    }
+
+    /**
+     * Wait until the given number of replicas acknowledged a request, or
+     * until enough of them failed that it can no longer happen.
+     */
+    private boolean await(List<CompletableFuture<Boolean>> acks, int required) {
+        if (required <= 0) {
+            return true;
+        }
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        AtomicInteger acked = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        for (CompletableFuture<Boolean> ack : acks) {
+            ack.whenComplete((ok, e) -> {
+                if (e == null && ok) {
+                    if (acked.incrementAndGet() == required) {
+                        done.complete(true);
+                    }
+                } else if (failed.incrementAndGet() > acks.size() - required) {
+                    done.complete(false);
+                }
+            });
+        }
+        try {
+            return done.get(Constants.REPLICATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn(prompt + "Replicas did not acknowledge in time: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Forward again a request whose replication failed, backing off between
+     * attempts within the retry budget of this server.
+     *
+     * @return true once every replica acknowledged it
+     */
+    public boolean retryForward(String cmd, String k, String v, long ts, String host, int port,
+                                WriteConsistency consistency, long lsn, String stamp)
+            throws IOException, InterruptedException {
+        RetryPolicy.Retry retry = retryPolicy.start();
+        while (retry.backoff()) {
+            if (forward(cmd, k, v, ts, host, port, consistency, lsn, stamp)) {
+                return true;
             }
         }
+        logger.error(prompt + "Giving up replication of " + k + " after " + retry.getAttempts() + " retries");
+        return false;
+    }
+
+    public boolean forward_rollback(String cmd, String k, String v, long ts, String host, int port, long lsn,
+                                    String stamp) throws IOException {
+        List<CompletableFuture<Boolean>> acks = send(new ArrayList<>(replicationList), cmd, k, v, ts, host, port, lsn,
+                stamp);
+        boolean ret = await(acks, acks.size());
         if (!ret) {
             logger.error("[KVServerDRManager] Failed to replicate from " + this.thisNode.getNodeName());
             //return ret;
@@ -114,6 +333,31 @@ public class KVServerDataReplicationManager {
             r.disconnect();
         }
         replicationList.clear();
+        synchronized (this) {
+            if (relay != null) {
+                relay.disconnect();
+                relay = null;
+            }
+        }
+    }
+
+    /**
+     * The PUTs this server passes on down a chain take a stream of their
+     * own rather than the replication stream of this server: a replica
+     * handles the batches of a stream in order, and a chained batch of this
+     * server waits until the next replica relayed it in turn, so relays
+     * queued behind it would wait around the ring.
+     *
+     * @return stream to the next replica of a chain this server is in
+     */
+    public synchronized KVServerDataReplication getRelay(ECSNode next) {
+        if (relay == null || !relay.getServerName().equals(next.getNodeName())) {
+            if (relay != null) {
+                relay.disconnect();
+            }
+            relay = new KVServerDataReplication(next);
+        }
+        return relay;
     }
 
 
@@ -0,0 +1,110 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hints a coordinator keeps on disk for its replicas: the keys of the PUTs
+ * a replica missed, one "replica port,key" line per hint, so they are still
+ * sent to it after the coordinator restarted. Hints are appended as they
+ * come, a key hinted several times appears once after the log is rewritten.
+ */
+public class KVServerHintLog {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final File file;
+    private long lines;
+
+    public KVServerHintLog(int port) {
+        this.file = new File("HINT-" + port + ".txt");
+    }
+
+    /**
+     * @return hinted keys by replica port, in the order they were hinted
+     */
+    public synchronized Map<Integer, Set<String>> load() {
+        Map<Integer, Set<String>> hints = new LinkedHashMap<>();
+        lines = 0;
+        if (!file.exists()) {
+            return hints;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.split(",", 2);
+                if (tokens.length < 2) {
+                    continue;
+                }
+                try {
+                    hints.computeIfAbsent(Integer.parseInt(tokens[0]), p -> new LinkedHashSet<>()).add(tokens[1]);
+                    lines++;
+                } catch (NumberFormatException e) {
+                    logger.warn("[KVServerHintLog] Skipping malformed hint: " + line);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("[KVServerHintLog] Unable to read the hints: " + e);
+        }
+        return hints;
+    }
+
+    /**
+     * @return false if the hint could not be written
+     */
+    public synchronized boolean append(int replica, String key) {
+        try (FileWriter fw = new FileWriter(file, true)) {
+            fw.write(replica + "," + key + System.lineSeparator());
+        } catch (IOException e) {
+            logger.error("[KVServerHintLog] Unable to write a hint for " + replica + ": " + e);
+            return false;
+        }
+        lines++;
+        return true;
+    }
+
+    /**
+     * @return number of lines of the log, hints sent since included
+     */
+    public synchronized long getLines() {
+        return lines;
+    }
+
+    /**
+     * Replace the log by the hints still to send.
+     */
+    public synchronized void rewrite(Map<Integer, ? extends Iterable<String>> hints) {
+        File tmp = new File(file.getPath() + ".tmp");
+        long written = 0;
+        try (PrintWriter pw = new PrintWriter(new FileWriter(tmp))) {
+            for (Map.Entry<Integer, ? extends Iterable<String>> replica : hints.entrySet()) {
+                for (String key : replica.getValue()) {
+                    pw.println(replica.getKey() + "," + key);
+                    written++;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("[KVServerHintLog] Unable to rewrite the hints: " + e);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            lines = written;
+        } catch (IOException e) {
+            logger.error("[KVServerHintLog] Unable to rewrite the hints: " + e);
+        }
+    }
+}
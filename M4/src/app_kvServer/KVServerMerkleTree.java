@@ -0,0 +1,172 @@
+package app_kvServer;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Merkle tree over the pairs of one hash range. The keys are spread over
+ * 2^depth buckets by the first bits of their MD5 hash, a leaf is the XOR
+ * of the digests of the pairs of its bucket and every other node a hash of
+ * its two children, so a PUT only updates the path from its leaf to the
+ * root. Two copies of a range whose roots differ find the buckets that
+ * differ by comparing the children of differing nodes only.
+ *
+ * Nodes are numbered as in a heap: the root is 1, the children of node i
+ * are 2i and 2i + 1, and the leaf of bucket b is 2^depth + b.
+ */
+public class KVServerMerkleTree {
+
+    private final int depth;
+    private final long[] nodes;
+    private final Map<String, Long>[] buckets; // digest by key, null for an empty bucket
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public KVServerMerkleTree(int depth) {
+        if (depth < 1 || depth > 20) {
+            throw new IllegalArgumentException("Merkle tree depth out of range: " + depth);
+        }
+        this.depth = depth;
+        this.nodes = new long[2 << depth];
+        this.buckets = new Map[1 << depth];
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return whether the node is a leaf, its bucket is node - 2^depth
+     */
+    public boolean isLeaf(int node) {
+        return node >= (1 << depth);
+    }
+
+    /**
+     * @param keyHash MD5 hash of the key
+     * @return bucket of the key
+     */
+    public int bucketOf(BigInteger keyHash) {
+        return keyHash.shiftRight(128 - depth).intValue();
+    }
+
+    /**
+     * Set the value of a key, an empty or null value removes it.
+     */
+    public void put(String key, BigInteger keyHash, String value) {
+        put(key, keyHash, value == null || value.isEmpty() ? 0 : digest(key, value));
+    }
+
+    /**
+     * @param digest digest of the pair, 0 to remove the key
+     */
+    synchronized void put(String key, BigInteger keyHash, long digest) {
+        int bucket = bucketOf(keyHash);
+        Map<String, Long> keys = buckets[bucket];
+        Long previous;
+        if (digest == 0) {
+            previous = keys == null ? null : keys.remove(key);
+            if (previous == null) {
+                return;
+            }
+            if (keys.isEmpty()) {
+                buckets[bucket] = null;
+            }
+        } else {
+            if (keys == null) {
+                keys = buckets[bucket] = new HashMap<>();
+            }
+            previous = keys.put(key, digest);
+        }
+        int node = (1 << depth) + bucket;
+        nodes[node] ^= (previous == null ? 0 : previous) ^ digest;
+        for (node >>= 1; node >= 1; node >>= 1) {
+            nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    public synchronized long getRoot() {
+        return nodes[1];
+    }
+
+    /**
+     * @return hash of each node
+     */
+    public synchronized long[] getHashes(int[] nodeIds) {
+        long[] hashes = new long[nodeIds.length];
+        for (int i = 0; i < nodeIds.length; i++) {
+            if (nodeIds[i] < 1 || nodeIds[i] >= nodes.length) {
+                throw new IllegalArgumentException("No Merkle tree node " + nodeIds[i]);
+            }
+            hashes[i] = nodes[nodeIds[i]];
+        }
+        return hashes;
+    }
+
+    /**
+     * @return digest by key of the pairs of the bucket
+     */
+    public synchronized Map<String, Long> getBucket(int bucket) {
+        if (bucket < 0 || bucket >= buckets.length) {
+            throw new IllegalArgumentException("No Merkle tree bucket " + bucket);
+        }
+        Map<String, Long> keys = buckets[bucket];
+        return keys == null ? new HashMap<>() : new HashMap<>(keys);
+    }
+
+    /**
+     * @return every key with its digest
+     */
+    public synchronized Map<String, Long> getKeys() {
+        Map<String, Long> keys = new HashMap<>();
+        for (Map<String, Long> bucket : buckets) {
+            if (bucket != null) {
+                keys.putAll(bucket);
+            }
+        }
+        return keys;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Map<String, Long> bucket : buckets) {
+            if (bucket != null) {
+                size += bucket.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return digest of a pair, never 0. The value is trimmed like the
+     * storage does when reading it back.
+     */
+    public static long digest(String key, String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(key.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(value.trim().getBytes(StandardCharsets.UTF_8));
+            long digest = new BigInteger(1, md.digest()).longValue();
+            return digest == 0 ? 1 : digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long combine(long left, long right) {
+        if (left == 0 && right == 0) {
+            return 0; // empty subtrees compare equal without a hash
+        }
+        long h = left * 0x9E3779B97F4A7C15L + Long.rotateLeft(right, 31);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,66 @@
+package app_kvServer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters and gauges of a KVServer, reported to clients
+ * through the METRICS command.
+ */
+public class KVServerMetrics {
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, n -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * Register a value that is read only when the metrics are reported.
+     */
+    public void register(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public long get(String name) {
+        LongSupplier gauge = gauges.get(name);
+        if (gauge != null) {
+            return gauge.getAsLong();
+        }
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return result;
+    }
+
+    /**
+     * @return all metrics as name=value pairs separated by ','
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,250 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.communication.RetryPolicy;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brings replicas that missed PUTs up to date in the background, so a
+ * coordinator can answer a PUT before all of its replicas acknowledged it.
+ * The keys a replica missed are kept as hints, in memory and in the hint
+ * log of the coordinator, and sent again with their current value: a key
+ * missed several times is sent once, and the value sent is never older
+ * than the last PUT of the key.
+ *
+ * A replica that could not be reached is handed off: the PUTs for it are
+ * not sent but hinted until all its hints were replayed, which the
+ * coordinator tries when the ECS updates the hash ring and every
+ * REPAIR_INTERVAL otherwise, until the replica is back or leaves the ring.
+ */
+public class KVServerReplicaRepair {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final KVServer server;
+    private final KVServerHintLog hints;
+    private final ScheduledExecutorService executor;
+    private final RetryPolicy retryPolicy = new RetryPolicy(Constants.RETRY_BASE_DELAY, Constants.RETRY_MAX_DELAY,
+            Constants.RETRY_MAX_ATTEMPTS, Constants.RETRY_DEADLINE,
+            Constants.RETRY_BUDGET, Constants.RETRY_BUDGET_RATIO);
+
+    // keys to send again by replica port, with the version of their last miss, guarded by this
+    private final Map<Integer, Map<String, Long>> backlog = new HashMap<>();
+    private final Set<Integer> unreachable = new HashSet<>(); // replicas handed off, guarded by this
+    private final Map<Integer, Long> generations = new HashMap<>(); // latest repair task by replica port, guarded by this
+    private final AtomicLong version = new AtomicLong();
+
+    public KVServerReplicaRepair(KVServer server) {
+        this.server = server;
+        this.hints = new KVServerHintLog(server.getPort());
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kv-repair-" + server.getPort());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Map.Entry<Integer, Set<String>> replica : hints.load().entrySet()) {
+            Map<String, Long> keys = new LinkedHashMap<>();
+            for (String key : replica.getValue()) {
+                keys.put(key, version.incrementAndGet());
+            }
+            int port = replica.getKey();
+            backlog.put(port, keys);
+            logger.info("[KVServerReplicaRepair] " + keys.size() + " hints left for " + port);
+            long generation = generations.merge(port, 1L, Long::sum);
+            executor.schedule(() -> repair(port, generation), Constants.REPAIR_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Record that a replica missed a PUT of the key. A replica whose
+     * connection is down is handed off.
+     *
+     * @return whether the hint was kept
+     */
+    public boolean lagging(KVServerDataReplication replica, String key) {
+        return hint(replica.getServerPort(), key, !replica.isRunning());
+    }
+
+    /**
+     * Record that a replica did not answer a PUT of the key in time and
+     * hand it off.
+     *
+     * @return whether the hint was kept
+     */
+    public boolean unreachable(KVServerDataReplication replica, String key) {
+        return hint(replica.getServerPort(), key, true);
+    }
+
+    /**
+     * Keep a PUT of the key as a hint instead of sending it, if the replica
+     * is handed off.
+     *
+     * @return whether the PUT was hinted, false if it is to be sent
+     */
+    public synchronized boolean handOff(KVServerDataReplication replica, String key) {
+        return unreachable.contains(replica.getServerPort()) && hint(replica.getServerPort(), key, true);
+    }
+
+    /**
+     * @return whether the PUTs for the replica are hinted instead of sent
+     */
+    public synchronized boolean isHandedOff(KVServerDataReplication replica) {
+        return unreachable.contains(replica.getServerPort());
+    }
+
+    private synchronized boolean hint(int port, String key, boolean handOff) {
+        if (executor.isShutdown()) {
+            return false;
+        }
+        Map<String, Long> keys = backlog.computeIfAbsent(port, r -> new LinkedHashMap<>());
+        if (keys.size() >= Constants.REPAIR_BACKLOG && !keys.containsKey(key)) {
+            logger.error("[KVServerReplicaRepair] Backlog of " + port + " full, " + key + " is not repaired");
+            return false;
+        }
+        if (!hints.append(port, key)) {
+            return false;
+        }
+        boolean idle = keys.isEmpty();
+        keys.put(key, version.incrementAndGet());
+        server.getMetrics().increment("hints_stored");
+        if (handOff && unreachable.add(port)) {
+            logger.warn("[KVServerReplicaRepair] " + port + " unreachable, hinting its PUTs until it is back");
+        }
+        if (hints.getLines() > 2 * getBacklog() + Constants.REPAIR_BACKLOG) {
+            hints.rewrite(keysByReplica());
+        }
+        if (idle) {
+            start(port);
+        }
+        return true;
+    }
+
+    /**
+     * Replay the hints now, the ECS reported a change of the replicas.
+     */
+    public synchronized void replay() {
+        if (executor.isShutdown()) {
+            return;
+        }
+        for (int port : backlog.keySet()) {
+            start(port);
+        }
+    }
+
+    /**
+     * Run a repair task for the replica now, in place of the one waiting to
+     * try again if any. Called under this.
+     */
+    private void start(int port) {
+        long generation = generations.merge(port, 1L, Long::sum);
+        executor.execute(() -> repair(port, generation));
+    }
+
+    /**
+     * @return number of keys waiting to be sent again to the replica
+     */
+    public synchronized int getBacklog(int port) {
+        Map<String, Long> keys = backlog.get(port);
+        return keys == null ? 0 : keys.size();
+    }
+
+    /**
+     * @return number of keys waiting to be sent again to any replica
+     */
+    public synchronized int getBacklog() {
+        int pending = 0;
+        for (Map<String, Long> keys : backlog.values()) {
+            pending += keys.size();
+        }
+        return pending;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void repair(int port, long generation) {
+        RetryPolicy.Retry retry = retryPolicy.start();
+        while (true) {
+            KVServerDataReplication replica;
+            String key;
+            long missed;
+            synchronized (this) {
+                if (!Long.valueOf(generation).equals(generations.get(port))) {
+                    return; // replaced by a later task
+                }
+                Map<String, Long> keys = backlog.get(port);
+                if (keys == null || keys.isEmpty()) {
+                    drained(port);
+                    return;
+                }
+                if (!server.isReplica(port)) {
+                    logger.info("[KVServerReplicaRepair] " + port + " is no replica anymore, dropping "
+                            + keys.size() + " hints");
+                    drained(port);
+                    return;
+                }
+                replica = server.getReplica(port);
+                Map.Entry<String, Long> next = keys.entrySet().iterator().next();
+                key = next.getKey();
+                missed = next.getValue();
+            }
+            if (replica != null && server.repairKey(replica, key, server.nextTimestamp())) {
+                synchronized (this) {
+                    // unless it missed a later PUT of the key meanwhile
+                    Map<String, Long> keys = backlog.get(port);
+                    if (keys != null && keys.remove(key, missed)) {
+                        server.getMetrics().increment("hints_replayed");
+                    }
+                }
+                retryPolicy.succeeded();
+                retry = retryPolicy.start();
+            } else {
+                try {
+                    if (replica == null || !retry.backoff()) {
+                        logger.warn("[KVServerReplicaRepair] " + port + " unreachable, "
+                                + getBacklog(port) + " keys left to repair");
+                        executor.schedule(() -> repair(port, generation), Constants.REPAIR_INTERVAL,
+                                TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop handing off a replica without hints left, its PUTs are sent again.
+     */
+    private void drained(int port) {
+        boolean hinted = backlog.remove(port) != null;
+        generations.remove(port);
+        if (unreachable.remove(port)) {
+            logger.info("[KVServerReplicaRepair] Hints of " + port + " replayed");
+        }
+        if (hinted) {
+            hints.rewrite(keysByReplica());
+        }
+    }
+
+    private Map<Integer, Iterable<String>> keysByReplica() {
+        Map<Integer, Iterable<String>> keys = new HashMap<>();
+        for (Map.Entry<Integer, Map<String, Long>> replica : backlog.entrySet()) {
+            keys.put(replica.getKey(), replica.getValue().keySet());
+        }
+        return keys;
+    }
+}
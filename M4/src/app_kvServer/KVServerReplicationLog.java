@@ -0,0 +1,115 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.messages.ReplicationBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The PUTs a coordinator ships to its replicas, numbered by the LSN of
+ * their WAL entry. A replica that connects tells the LSN up to which it
+ * applied them and gets the entries of the WAL after it, or a snapshot of
+ * the range of the coordinator when the WAL no longer goes back that far,
+ * so a replica that was down only receives what it missed.
+ */
+public class KVServerReplicationLog {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    /**
+     * PUTs a replica catches up with before the live ones.
+     */
+    public static class CatchUp {
+        final List<ReplicationBatch.Record> records = new ArrayList<>();
+        final List<Long> lsns = new ArrayList<>();
+        String[] snapshotRange; // range to replace on the replica, null for WAL entries
+        long synced = ReplicationBatch.UNKNOWN; // LSN the WAL entries follow, UNKNOWN for a snapshot
+
+        void add(ReplicationBatch.Record record, long lsn) {
+            records.add(record);
+            lsns.add(lsn);
+        }
+
+        boolean isSnapshot() {
+            return snapshotRange != null;
+        }
+    }
+
+    private final KVServer server;
+    // logged PUTs not yet handed to every replication stream
+    private final ConcurrentSkipListSet<Long> unforwarded = new ConcurrentSkipListSet<>();
+    private volatile long published;
+
+    public KVServerReplicationLog(KVServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Record that a PUT coordinated by this server was logged, before it is
+     * published. Called under the state lock of the server.
+     */
+    void logged(long lsn) {
+        unforwarded.add(lsn);
+    }
+
+    /**
+     * Make the entries up to the LSN visible to the replicas catching up.
+     * Called under the state lock of the server.
+     */
+    void publish(long lsn) {
+        published = lsn;
+    }
+
+    /**
+     * Record that a logged PUT was handed to every replication stream.
+     */
+    void forwarded(long lsn) {
+        unforwarded.remove(lsn);
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * @return LSN of the last PUT visible to the replicas catching up
+     */
+    long getPublished() {
+        return published;
+    }
+
+    /**
+     * @return LSN up to which every PUT is either in a replication stream
+     * or was sent to the replicas as part of a catch-up
+     */
+    long getForwarded() {
+        long lsn = published; // read first, what is logged after is beyond it
+        Long first = unforwarded.isEmpty() ? null : unforwarded.first();
+        return first == null ? lsn : Math.min(lsn, first - 1);
+    }
+
+    /**
+     * @param synced LSN up to which the replica applied every PUT, UNKNOWN if it may miss any
+     * @return the WAL entries after it, or a snapshot
+     */
+    CatchUp catchUp(long synced) {
+        long upTo = published;
+        if (synced != ReplicationBatch.UNKNOWN && synced >= server.getWALTruncatedLsn() && synced <= upTo) {
+            CatchUp entries = server.readWAL(synced, upTo);
+            if (entries != null) {
+                entries.synced = synced;
+                server.getMetrics().add("replica_catchup_entries", entries.records.size());
+                return entries;
+            }
+        }
+        CatchUp snapshot = server.snapshot();
+        if (snapshot != null) {
+            server.getMetrics().increment("replica_snapshots");
+            server.getMetrics().add("replica_snapshot_entries", snapshot.records.size());
+        }
+        logger.info("[KVServerReplicationLog] WAL does not cover LSN " + synced + ", sending a snapshot");
+        return snapshot;
+    }
+}
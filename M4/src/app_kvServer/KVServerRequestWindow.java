@@ -0,0 +1,261 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.messages.KVMessage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The PUTs a server logged lately, by client, so a PUT sent again after its
+ * answer was lost is not applied twice. A PUT is identified by the address
+ * and port of its client and its timestamp, which the client increases with
+ * every PUT; clients on different hosts may well use the same port.
+ * Each client has a window of its latest REQUEST_WINDOW PUTs with their
+ * LSN; the oldest leaves the window as a new one is logged, and the window
+ * of a client idle for REQUEST_WINDOW_IDLE or beyond the REQUEST_WINDOW_CLIENTS
+ * most recent ones is forgotten, so a retry older than that is applied again.
+ * A PUT rolled back leaves the window, so its retry is applied.
+ *
+ * The windows are checkpointed to a "client,timestamp,lsn,status" line per
+ * PUT when the WAL is compacted, the PUTs logged since are added back from
+ * the WAL, without the status they were answered with.
+ */
+public class KVServerRequestWindow {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final File file;
+    private final int size;
+    private final int maxClients;
+    private final long idle;
+    private final LongSupplier now;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+    private volatile long lastSweep;
+
+    private static class Request {
+        private final long lsn;
+        private KVMessage.StatusType status; // answered, null until stored or when only known from the WAL
+
+        private Request(long lsn, KVMessage.StatusType status) {
+            this.lsn = lsn;
+            this.status = status;
+        }
+    }
+
+    private static class Window {
+        // latest PUTs by timestamp, in the order they were logged; guarded by this
+        private final Map<Long, Request> requests;
+        private volatile long lastUsed;
+
+        private Window(int capacity, long lastUsed) {
+            this.requests = new LinkedHashMap<Long, Request>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Request> eldest) {
+                    return size() > capacity;
+                }
+            };
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    public KVServerRequestWindow(int port) {
+        this(port, Integer.getInteger("server.requestWindow", Constants.REQUEST_WINDOW),
+                Constants.REQUEST_WINDOW_CLIENTS, Constants.REQUEST_WINDOW_IDLE, System::currentTimeMillis);
+    }
+
+    /**
+     * @param now time in ms
+     */
+    public KVServerRequestWindow(int port, int size, int maxClients, long idle, LongSupplier now) {
+        this.file = new File("REQUESTS-" + port + ".txt");
+        this.size = size;
+        this.maxClients = maxClients;
+        this.idle = idle;
+        this.now = now;
+        this.lastSweep = now.getAsLong();
+    }
+
+    /**
+     * @param host address of the client, empty if unknown
+     * @return client a window belongs to
+     */
+    private static String clientOf(String host, int port) {
+        return host.isEmpty() ? Integer.toString(port) : host + Constants.HASH_DELIMITER + port;
+    }
+
+    /**
+     * @return LSN the PUT of the client was logged with, -1 if it is not in
+     * the window of the client
+     */
+    public long lookup(String host, int port, long timestamp) {
+        Window window = windows.get(clientOf(host, port));
+        if (window == null) {
+            return -1;
+        }
+        synchronized (window) {
+            Request request = window.requests.get(timestamp);
+            return request == null ? -1 : request.lsn;
+        }
+    }
+
+    /**
+     * @return status the PUT of the client was answered with, null if it is
+     * not in the window of the client or its status is unknown
+     */
+    public KVMessage.StatusType statusOf(String host, int port, long timestamp) {
+        Window window = windows.get(clientOf(host, port));
+        if (window == null) {
+            return null;
+        }
+        synchronized (window) {
+            Request request = window.requests.get(timestamp);
+            return request == null ? null : request.status;
+        }
+    }
+
+    /**
+     * Add a PUT of the client logged with the LSN to its window.
+     */
+    public void record(String host, int port, long timestamp, long lsn) {
+        record(clientOf(host, port), timestamp, lsn, null);
+    }
+
+    private void record(String client, long timestamp, long lsn, KVMessage.StatusType status) {
+        long time = now.getAsLong();
+        Window window = windows.computeIfAbsent(client, c -> new Window(size, time));
+        synchronized (window) {
+            window.requests.put(timestamp, new Request(lsn, status));
+        }
+        window.lastUsed = time;
+        if (windows.size() > maxClients || time - lastSweep > idle / 2) {
+            sweep(time);
+        }
+    }
+
+    /**
+     * Keep the status a PUT in the window was answered with, for its retries.
+     */
+    public void answered(String host, int port, long timestamp, KVMessage.StatusType status) {
+        Window window = windows.get(clientOf(host, port));
+        if (window == null) {
+            return;
+        }
+        synchronized (window) {
+            Request request = window.requests.get(timestamp);
+            if (request != null) {
+                request.status = status;
+            }
+        }
+    }
+
+    /**
+     * Drop a PUT of the client from its window, once it is undone.
+     */
+    public void forget(String host, int port, long timestamp) {
+        Window window = windows.get(clientOf(host, port));
+        if (window == null) {
+            return;
+        }
+        synchronized (window) {
+            window.requests.remove(timestamp);
+        }
+    }
+
+    /**
+     * Forget the idle clients, then the least recently active ones down to
+     * three quarters of the limit, so the next ones are not swept one by one.
+     */
+    private synchronized void sweep(long time) {
+        lastSweep = time;
+        windows.values().removeIf(w -> time - w.lastUsed > idle);
+        int excess = windows.size() - maxClients;
+        if (excess <= 0) {
+            return;
+        }
+        excess += maxClients / 4;
+        List<Map.Entry<String, Window>> byUse = new ArrayList<>(windows.entrySet());
+        byUse.sort((a, b) -> Long.compare(a.getValue().lastUsed, b.getValue().lastUsed));
+        for (int i = 0; i < excess && i < byUse.size(); i++) {
+            windows.remove(byUse.get(i).getKey(), byUse.get(i).getValue());
+        }
+        logger.info("[KVServerRequestWindow] Forgot the windows of " + excess + " clients, "
+                + windows.size() + " left");
+    }
+
+    /**
+     * @return number of clients with a window
+     */
+    public int getClients() {
+        return windows.size();
+    }
+
+    /**
+     * Read the windows checkpointed last.
+     */
+    public synchronized void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.split(",");
+                if (tokens.length != 3 && tokens.length != 4) {
+                    continue;
+                }
+                try {
+                    record(tokens[0], Long.parseLong(tokens[1]), Long.parseLong(tokens[2]),
+                            tokens.length == 4 ? KVMessage.StatusType.valueOf(tokens[3]) : null);
+                } catch (IllegalArgumentException e) {
+                    logger.warn("[KVServerRequestWindow] Skipping malformed request: " + line);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("[KVServerRequestWindow] Unable to read the requests: " + e);
+        }
+    }
+
+    /**
+     * Write the windows in place of the last checkpoint, before the WAL
+     * entries of their PUTs are dropped.
+     */
+    public synchronized void checkpoint() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(tmp)))) {
+            for (Map.Entry<String, Window> client : windows.entrySet()) {
+                Window window = client.getValue();
+                synchronized (window) {
+                    for (Map.Entry<Long, Request> put : window.requests.entrySet()) {
+                        Request request = put.getValue();
+                        pw.println(client.getKey() + "," + put.getKey() + "," + request.lsn
+                                + (request.status == null ? "" : "," + request.status));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("[KVServerRequestWindow] Unable to checkpoint the requests: " + e);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("[KVServerRequestWindow] Unable to replace the requests: " + e);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package client;
+
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.communication.ConnectionThreads;
+import shared.messages.TextMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedging state of a KVStore: the recent GET latencies of every server, the
+ * connections used to send duplicate GETs to replicas and the counters
+ * reported to tune the hedge delay.
+ *
+ * The GET that loses is not cancelled, it runs to the end and its reply is
+ * dropped: the servers have no command to cancel a request, and a GET
+ * changes nothing. A hedge that loses still reads its reply, so its
+ * connection can be used again.
+ */
+class GetHedger {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final String DELIMITER = Constants.DELIMITER;
+
+    private static ExecutorService executor;
+
+    private Map<String, Latencies> latencies = new ConcurrentHashMap<>();
+    private Map<String, Queue<KVStore>> connections = new ConcurrentHashMap<>();
+
+    private AtomicLong getCount = new AtomicLong();
+    private AtomicLong hedgeCount = new AtomicLong();
+    private AtomicLong winCount = new AtomicLong();
+
+    /**
+     * @return ms to wait for the server before hedging a GET, its recent p95
+     */
+    long delay(String server) {
+        Latencies l = latencies.get(server);
+        return l == null ? Constants.HEDGE_DELAY : l.p95();
+    }
+
+    /**
+     * Record the latency of a GET sent to the server, or the time it waited
+     * for the server before a replica answered.
+     */
+    void record(String server, long nanos) {
+        getCount.incrementAndGet();
+        latencies.computeIfAbsent(server, k -> new Latencies()).add(nanos);
+    }
+
+    /**
+     * Send a duplicate GET to a replica.
+     *
+     * @return future completed with the reply of the replica
+     */
+    CompletableFuture<String> hedge(ECSNode replica, String key) {
+        hedgeCount.incrementAndGet();
+        String server = replica.getNodeHost() + ":" + replica.getNodePort();
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        executor().execute(() -> {
+            Queue<KVStore> idle = connections.computeIfAbsent(server, k -> new ConcurrentLinkedQueue<>());
+            KVStore store = idle.poll();
+            try {
+                if (store == null) {
+                    store = new KVStore(replica.getNodeHost(), replica.getNodePort());
+                    store.connect();
+                }
+                store.sendMessage(new TextMessage("GET" + DELIMITER + key + DELIMITER));
+                reply.complete(store.receiveMessage().getMsg().trim());
+                idle.add(store);
+            } catch (Exception e) {
+                logger.warn("[GetHedger] Hedged GET to " + server + " failed: " + e.getMessage());
+                if (store != null) {
+                    store.disconnect();
+                }
+                reply.completeExceptionally(e);
+            }
+        });
+        return reply;
+    }
+
+    /**
+     * The hedged GET answered before the server it duplicated.
+     */
+    void won() {
+        winCount.incrementAndGet();
+    }
+
+    long getGetCount() {
+        return getCount.get();
+    }
+
+    long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    long getWinCount() {
+        return winCount.get();
+    }
+
+    /**
+     * Close the idle hedge connections, they are opened again when needed.
+     */
+    void close() {
+        for (Queue<KVStore> idle : connections.values()) {
+            KVStore store;
+            while ((store = idle.poll()) != null) {
+                store.disconnect();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            ThreadFactory threads = ConnectionThreads.factory(true, "kv-hedge-");
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread thread = threads.newThread(r);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Latencies of the last GETs answered by one server.
+     */
+    private static class Latencies {
+
+        private final long[] samples = new long[Constants.HEDGE_WINDOW];
+        private int count = 0;
+        private long p95 = Constants.HEDGE_DELAY;
+
+        synchronized void add(long nanos) {
+            samples[count % samples.length] = nanos;
+            count++;
+            if (count % 16 == 0 && count >= samples.length / 4) {
+                long[] sorted = Arrays.copyOf(samples, Math.min(count, samples.length));
+                Arrays.sort(sorted);
+                p95 = Math.max(Constants.HEDGE_MIN_DELAY, sorted[sorted.length * 95 / 100] / 1000000);
+            }
+        }
+
+        synchronized long p95() {
+            return p95;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package client;
+
+import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.messages.CorrelationId;
+import shared.messages.KVConvertMessage;
+import shared.messages.KVMessage;
+import shared.messages.TextMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of PUT and GET requests pipelined on the connection of a KVStore.
+ * Requests are tagged with correlation ids and sent without waiting for the
+ * replies, keeping up to Constants.PIPELINE_WINDOW of them in flight, so the
+ * throughput of one connection is no longer bounded by its round trip time.
+ * The server may process the requests of a batch in any order; a batch
+ * should not PUT the same key twice.
+ */
+public class KVPipeline {
+
+    private Logger logger = Logger.getRootLogger();
+
+    private static final String DELIMITER = Constants.DELIMITER;
+
+    private KVStore store;
+    private List<KVConvertMessage> requests = new ArrayList<>();
+
+    KVPipeline(KVStore store) {
+        this.store = store;
+    }
+
+    public KVPipeline put(String key, String value) {
+        requests.add(new KVConvertMessage(key, value == null ? "" : value, KVMessage.StatusType.PUT));
+        return this;
+    }
+
+    public KVPipeline get(String key) {
+        requests.add(new KVConvertMessage(key, "", KVMessage.StatusType.GET));
+        return this;
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * Send all requests and wait for their replies. Requests the connected
+     * server is not responsible for are retried one by one through the
+     * blocking KVStore API, which follows the hash ring.
+     *
+     * @return one reply per request, in the order the requests were added
+     */
+    public List<KVMessage> execute() throws Exception {
+        int n = requests.size();
+        KVMessage[] replies = new KVMessage[n];
+        Map<Long, Integer> inFlight = new HashMap<>();
+
+        int next = 0;
+        while (next < n || !inFlight.isEmpty()) {
+            List<TextMessage> batch = new ArrayList<>();
+            while (next < n && inFlight.size() < Constants.PIPELINE_WINDOW) {
+                KVConvertMessage req = requests.get(next);
+                if (!KVStore.checkKeyValue(req.getKey(), req.getValue())) {
+                    replies[next] = new KVConvertMessage(req.getKey(), req.getValue(),
+                            req.getStatus() == KVMessage.StatusType.PUT ? "PUT_ERROR" : "GET_ERROR");
+                } else {
+                    long id = store.nextRequestId();
+                    batch.add(new TextMessage(CorrelationId.tag(id, toMessage(req))));
+                    inFlight.put(id, next);
+                }
+                next++;
+            }
+            if (!batch.isEmpty()) {
+                store.sendMessages(batch);
+            }
+            if (inFlight.isEmpty()) {
+                continue;
+            }
+
+            String reply = store.receiveMessage().getMsg().trim();
+            Integer index = inFlight.remove(CorrelationId.idOf(reply));
+            if (index == null) {
+                logger.warn("[KVPipeline] Reply to unknown request: " + reply);
+                continue;
+            }
+            replies[index] = toReply(requests.get(index), CorrelationId.untag(reply));
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (replies[i].getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                KVConvertMessage req = requests.get(i);
+                replies[i] = req.getStatus() == KVMessage.StatusType.PUT
+                        ? store.put(req.getKey(), req.getValue())
+                        : store.get(req.getKey());
+            }
+        }
+
+        requests.clear();
+        List<KVMessage> result = new ArrayList<>(n);
+        for (KVMessage reply : replies) {
+            result.add(reply);
+        }
+        return result;
+    }
+
+    private String toMessage(KVConvertMessage req) {
+        if (req.getStatus() == KVMessage.StatusType.PUT) {
+            return store.putMessage(req.getKey(), req.getValue());
+        }
+        return "GET" + DELIMITER + req.getKey() + DELIMITER;
+    }
+
+    private KVMessage toReply(KVConvertMessage req, String msg) {
+        if (req.getStatus() == KVMessage.StatusType.PUT) {
+            return new KVConvertMessage(req.getKey(), req.getValue(), msg.split("\\" + DELIMITER)[0]);
+        }
+        return KVStore.getReply(msg);
+    }
+}
@@ -0,0 +1,356 @@
+package client;
+
+import ecs.ECSHashRing;
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.HashingFunction.MD5;
+import shared.messages.KVConvertMessage;
+import shared.messages.KVMessage;
+import shared.messages.TextMessage;
+import shared.messages.WriteConsistency;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client that sends every request straight to the server responsible for
+ * its key. It keeps a copy of the hash ring and a small pool of open
+ * connections per server, so a client touching keys all over the ring does
+ * not reconnect for each of them. The ring is refreshed only from the
+ * metadata sent with SERVER_NOT_RESPONSIBLE, and a server that cannot be
+ * reached is dropped from it until the next refresh.
+ *
+ * GETs may also be spread over the replicas of the key, which servers
+ * already accept, following the read policy. A PUT acknowledged at ALL was
+ * applied by every replica, one acknowledged at ONE or QUORUM may not have
+ * reached some of them yet. So GETs only go to replicas while this client
+ * writes at ALL, and a GET answered by a replica may miss a recent PUT of
+ * another client written at ONE or QUORUM. A replica answers the GETs of a
+ * range only once it applied every PUT its coordinator logged before it
+ * last connected to it; a GET_ERROR from a replica, catching up or missing
+ * the key, is retried on the coordinator.
+ *
+ * With chain replication GETs may go to the tail of the chain of the key,
+ * which takes the reads off the coordinator. The tail gives the same
+ * guarantee as any replica, not more: a PUT that went down the chain was
+ * applied by the tail before it was acknowledged, but when the chain does
+ * not answer in time or one of its replicas is handed off, the coordinator
+ * sends the PUT to each replica instead, and only at ALL does it wait for
+ * the tail then.
+ *
+ * Safe for use by several threads, each request borrows its own connection.
+ */
+public class KVRoutingStore implements KVCommInterface {
+
+    public enum ReadPolicy {
+        PRIMARY,            // every GET goes to the coordinator
+        ROUND_ROBIN,        // GETs rotate over the coordinator and its replicas
+        LEAST_OUTSTANDING,  // GETs go to the server of the replica set with the fewest requests in progress
+        TAIL                // GETs go to the last replica of the chain of the key, see the class comment
+    }
+
+    private Logger logger = Logger.getRootLogger();
+
+    private static final String DELIMITER = Constants.DELIMITER;
+    private static final int MAX_REDIRECTS = 3;
+
+    private String address;
+    private int port;
+    private int poolSize;
+    private volatile ReadPolicy readPolicy = ReadPolicy.PRIMARY;
+    private volatile WriteConsistency writeConsistency = null;
+
+    private volatile ECSHashRing hashRing = new ECSHashRing();
+    private Map<String, ServerPool> pools = new ConcurrentHashMap<>();
+
+    private AtomicLong connectCount = new AtomicLong();
+    private AtomicLong refreshCount = new AtomicLong();
+    private AtomicInteger nextReplica = new AtomicInteger();
+
+    /**
+     * @param address address of any server, used until the ring is known
+     * @param port    port of that server
+     */
+    public KVRoutingStore(String address, int port) {
+        this(address, port, Constants.CLIENT_POOL_SIZE);
+    }
+
+    /**
+     * @param poolSize max number of idle connections kept per server
+     */
+    public KVRoutingStore(String address, int port, int poolSize) {
+        this.address = address;
+        this.port = port;
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Open a first connection to the bootstrap server.
+     */
+    @Override
+    public void connect() throws Exception {
+        ServerPool pool = poolOf(address, port);
+        pool.release(pool.open());
+    }
+
+    @Override
+    public void disconnect() {
+        for (ServerPool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+    }
+
+    @Override
+    public KVMessage put(String key, String value) throws Exception {
+        if (value == null)
+            value = "";
+        return request(KVMessage.StatusType.PUT, key, value);
+    }
+
+    @Override
+    public KVMessage get(String key) throws Exception {
+        return request(KVMessage.StatusType.GET, key, "");
+    }
+
+    public void setReadPolicy(ReadPolicy readPolicy) {
+        this.readPolicy = readPolicy;
+    }
+
+    public ReadPolicy getReadPolicy() {
+        return readPolicy;
+    }
+
+    /**
+     * Write consistency of the PUTs sent from now on, on pooled connections
+     * too, null for the default level of the servers.
+     */
+    public void setWriteConsistency(WriteConsistency writeConsistency) {
+        this.writeConsistency = writeConsistency;
+    }
+
+    /**
+     * @return number of connections opened so far, constant in steady state
+     */
+    public long getConnectCount() {
+        return connectCount.get();
+    }
+
+    /**
+     * @return number of hash ring updates received with SERVER_NOT_RESPONSIBLE
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    public ECSHashRing getHashRing() {
+        return hashRing;
+    }
+
+    private KVMessage request(KVMessage.StatusType cmd, String key, String value) throws Exception {
+        if (!KVStore.checkKeyValue(key, value)) {
+            return new KVConvertMessage(key, value,
+                    cmd == KVMessage.StatusType.PUT ? "PUT_ERROR" : "GET_ERROR");
+        }
+        boolean primaryOnly = cmd == KVMessage.StatusType.PUT || readPolicy == ReadPolicy.PRIMARY
+                || !writesAtAll();
+        // a PUT sent again to the same server keeps its timestamp and port, so the server applies it once
+        String put = null;
+        ServerPool putPool = null;
+        for (int attempt = 0; ; attempt++) {
+            ECSHashRing ring = hashRing;
+            ECSNode owner = ring.getSize() == 0 ? null : ring.getNodeByHash(MD5.HashInBI(key));
+            ECSNode server = owner == null || primaryOnly ? owner : readTarget(ring, owner);
+            ServerPool pool = server == null
+                    ? poolOf(address, port)
+                    : poolOf(server.getNodeHost(), server.getNodePort());
+
+            String reply;
+            KVStore store = pool.poll();
+            boolean reused = store != null;
+            pool.outstanding.incrementAndGet();
+            try {
+                if (!reused) {
+                    store = pool.open();
+                }
+                store.setWriteConsistency(writeConsistency); // the level may have changed since it was pooled
+                String msg;
+                if (cmd != KVMessage.StatusType.PUT) {
+                    msg = "GET" + DELIMITER + key + DELIMITER;
+                } else {
+                    if (putPool != pool) {
+                        put = store.putMessage(key, value);
+                        putPool = pool;
+                    }
+                    msg = put;
+                }
+                store.sendMessage(new TextMessage(msg));
+                reply = store.receiveMessage().getMsg().trim();
+            } catch (IOException e) {
+                if (store != null) {
+                    store.disconnect();
+                }
+                if (reused) {
+                    pool.close(); // the server may have closed idle connections, retry on a new one
+                    continue;
+                }
+                if (server == null || !dropServer(ring, server)) {
+                    throw e;
+                }
+                continue;
+            } finally {
+                pool.outstanding.decrementAndGet();
+            }
+            pool.release(store);
+
+            String[] tokens = reply.split("\\" + DELIMITER, 2);
+            if (tokens[0].equals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE.name()) && attempt < MAX_REDIRECTS) {
+                hashRing = new ECSHashRing(tokens[1]);
+                refreshCount.incrementAndGet();
+                logger.debug("[KVRoutingStore] Hash ring refreshed, "
+                        + hashRing.getSize() + " servers");
+                continue;
+            }
+            if (server != owner && !tokens[0].equals(KVMessage.StatusType.GET_SUCCESS.name())) {
+                primaryOnly = true; // the replica may not have caught up yet
+                continue;
+            }
+            if (cmd == KVMessage.StatusType.GET) {
+                return KVStore.getReply(reply);
+            }
+            return new KVConvertMessage(key, value, tokens[0]);
+        }
+    }
+
+    /**
+     * @return whether the PUTs of this client are acknowledged at ALL, so a
+     * replica answering its GETs has every one of them; the default level
+     * of the servers is taken to be ALL
+     */
+    private boolean writesAtAll() {
+        WriteConsistency consistency = writeConsistency;
+        return consistency == null || consistency == WriteConsistency.ALL;
+    }
+
+    /**
+     * Pick the server of the replica set answering a GET.
+     */
+    private ECSNode readTarget(ECSHashRing ring, ECSNode owner) {
+        if (readPolicy == ReadPolicy.TAIL) {
+            List<ECSNode> chain = ring.getChain(owner);
+            return chain.isEmpty() ? owner : chain.get(chain.size() - 1);
+        }
+        List<ECSNode> candidates = new ArrayList<>();
+        candidates.add(owner);
+        for (ECSNode replica : ring.getReplicas(owner)) {
+            if (!replica.getNodeName().equals(owner.getNodeName())) {
+                candidates.add(replica);
+            }
+        }
+        if (readPolicy == ReadPolicy.ROUND_ROBIN) {
+            return candidates.get(Math.floorMod(nextReplica.getAndIncrement(), candidates.size()));
+        }
+        ECSNode target = owner;
+        int fewest = Integer.MAX_VALUE;
+        for (ECSNode candidate : candidates) {
+            int outstanding = poolOf(candidate.getNodeHost(), candidate.getNodePort()).outstanding.get();
+            if (outstanding < fewest) {
+                fewest = outstanding;
+                target = candidate;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Remove an unreachable server from the ring, so its keys go to the
+     * next server until fresh metadata arrives.
+     *
+     * @return false if no other server is left
+     */
+    private synchronized boolean dropServer(ECSHashRing ring, ECSNode server) {
+        ServerPool pool = pools.remove(server.getNodeHost() + ":" + server.getNodePort());
+        if (pool != null) {
+            pool.close();
+        }
+        if (ring != hashRing) {
+            return true; // already replaced by a concurrent refresh or drop
+        }
+        logger.info("[KVRoutingStore] removing " + server.getNodeName());
+        ECSHashRing remaining = new ECSHashRing(ring.getHashRingJson());
+        remaining.removeNode(remaining.getNodeByServerName(server.getNodeName()));
+        hashRing = remaining;
+        return remaining.getSize() > 0;
+    }
+
+    private ServerPool poolOf(String host, int port) {
+        return pools.computeIfAbsent(host + ":" + port, k -> new ServerPool(host, port));
+    }
+
+    /**
+     * Idle connections to one server.
+     */
+    private class ServerPool {
+
+        private final String host;
+        private final int port;
+        private final Queue<KVStore> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final AtomicInteger outstanding = new AtomicInteger(); // requests in progress
+
+        ServerPool(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * @return an idle connection, or null if there is none
+         */
+        KVStore poll() {
+            KVStore store = idle.poll();
+            if (store != null) {
+                idleCount.decrementAndGet();
+            }
+            return store;
+        }
+
+        KVStore open() throws IOException {
+            KVStore store = new KVStore(host, port);
+            try {
+                store.connect();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            connectCount.incrementAndGet();
+            logger.debug("[KVRoutingStore] connected to " + host + ":" + port);
+            return store;
+        }
+
+        void release(KVStore store) {
+            if (idleCount.incrementAndGet() <= poolSize) {
+                idle.add(store);
+            } else {
+                idleCount.decrementAndGet();
+                store.disconnect();
+            }
+        }
+
+        void close() {
+            KVStore store;
+            while ((store = idle.poll()) != null) {
+                idleCount.decrementAndGet();
+                store.disconnect();
+            }
+        }
+    }
+}
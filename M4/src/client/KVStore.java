@@ -6,19 +6,30 @@ import ecs.ECSNode;
 import org.apache.log4j.Logger;
 import shared.Constants;
 import shared.HashingFunction.MD5;
+import shared.communication.MessageCodec;
+import shared.communication.RetryPolicy;
+import shared.communication.Subscriptions;
+import shared.messages.BinaryProtocol;
+import shared.messages.CorrelationId;
 import shared.messages.KVConvertMessage;
 import shared.messages.KVMessage;
 import shared.messages.TextMessage;
+import shared.messages.WriteConsistency;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,7 +41,7 @@ public class KVStore implements KVCommInterface {
      * @param port the port of the KVServer
      */
 
-    private Logger logger = Logger.getRootLogger();
+    private static Logger logger = Logger.getRootLogger();
     private Set<IKVClient> listeners;
     private boolean running;
     private static final String DELIMITER = Constants.DELIMITER;
@@ -38,14 +49,32 @@ public class KVStore implements KVCommInterface {
     private Socket clientSocket;
     private OutputStream output;
     private InputStream input;
+    private MessageCodec codec;
 
     private static final int BUFFER_SIZE = Constants.BUFFER_SIZE;
     private static final int DROP_SIZE = Constants.DROP_SIZE;
+    private static final int MAX_REDIRECTS = 3;
 
     private String address;
     private int port;
 
     private long timestamp = 0;
+    private long requestId = 0;
+
+    private boolean binaryRequested = false;
+    private boolean binary = false; // the connected server accepted the binary protocol
+
+    private WriteConsistency writeConsistency = null; // null for the default of the server
+
+    private GetHedger hedger = null;
+    private Set<Long> abandoned = new HashSet<>(); // hedged GETs whose late reply is still to be skipped
+    private boolean ringRequested = false; // asked the connected server for the hash ring
+
+    private NearCache nearCache = null;
+    private long invalidations = 0; // invalidations received so far
+
+    private RetryPolicy retryPolicy = new RetryPolicy(Constants.RETRY_BASE_DELAY, Constants.RETRY_MAX_DELAY,
+            Constants.RETRY_MAX_ATTEMPTS, Constants.RETRY_DEADLINE, Constants.RETRY_BUDGET, Constants.RETRY_BUDGET_RATIO);
 
     ECSHashRing hashRing = new ECSHashRing();
 
@@ -64,9 +93,168 @@ public class KVStore implements KVCommInterface {
         logger.info("[KVStore] Connection established");
         this.output = clientSocket.getOutputStream();
         this.input = clientSocket.getInputStream();
+        this.codec = new MessageCodec();
         TextMessage reply = receiveMessage();
         setRunning(true);
         logger.info("[KVStore] " + reply.getMsg());
+
+        binary = false;
+        ringRequested = false;
+        if (binaryRequested) {
+            sendMessage(new TextMessage(BinaryProtocol.HANDSHAKE));
+            if (receiveMessage().getMsg().trim().equals(BinaryProtocol.HANDSHAKE)) {
+                codec.switchToBinary();
+                binary = true;
+            } else {
+                logger.warn("[KVStore] Server does not support the binary protocol, using text");
+            }
+        }
+        if (nearCache != null) {
+            nearCache.clear(); // entries read on another connection are not tracked by this server
+            if (!binary) {
+                subscribe();
+            }
+        }
+    }
+
+    /**
+     * Keep the values read by get in a near cache, so repeated reads of a
+     * key do not reach the server. The server pushes an invalidation when a
+     * cached key is written or its range moves, and entries expire after
+     * the TTL in any case. Applies to the text protocol.
+     *
+     * @param capacity max number of cached keys
+     * @param ttl      ms an entry is served without asking the server
+     */
+    public void enableNearCache(int capacity, long ttl) throws IOException {
+        nearCache = new NearCache(capacity, ttl);
+        if (clientSocket != null && !binary) {
+            subscribe();
+        }
+    }
+
+    public void disableNearCache() {
+        nearCache = null;
+    }
+
+    public long getNearCacheHits() {
+        return nearCache == null ? 0 : nearCache.getHits();
+    }
+
+    public long getNearCacheMisses() {
+        return nearCache == null ? 0 : nearCache.getMisses();
+    }
+
+    /**
+     * Ask the connected server to push invalidations of the keys read from now on.
+     */
+    private void subscribe() throws IOException {
+        sendMessage(new TextMessage(Subscriptions.SUBSCRIBE));
+        String reply = codec.readMessage(input).getMsg().trim();
+        if (!reply.equals(Subscriptions.SUBSCRIBE + "_SUCCESS")) {
+            logger.warn("[KVStore] Server does not push invalidations, near cache disabled");
+            nearCache = null;
+        }
+    }
+
+    /**
+     * Apply an invalidation pushed by the server.
+     *
+     * @return false if the message is not an invalidation
+     */
+    private boolean applyPush(String msg) {
+        if (msg.equals(Subscriptions.INVALIDATE_ALL)) {
+            if (nearCache != null) {
+                nearCache.clear();
+            }
+        } else if (msg.startsWith(Subscriptions.INVALIDATE + DELIMITER)) {
+            if (nearCache != null) {
+                nearCache.invalidate(msg.substring(Subscriptions.INVALIDATE.length() + 1));
+            }
+        } else {
+            return false;
+        }
+        invalidations++;
+        return true;
+    }
+
+    /**
+     * Apply the invalidations that arrived while the connection was idle.
+     */
+    private void drainPushes() throws IOException {
+        TextMessage msg;
+        while ((msg = codec.pollMessage(input)) != null) {
+            if (!applyPush(msg.getMsg().trim())) {
+                logger.warn("[KVStore] Unexpected message: " + msg.getMsg().trim());
+            }
+        }
+    }
+
+    /**
+     * Use the compact binary protocol for put and get on the next connect,
+     * if the server supports it.
+     */
+    public void setBinaryProtocol(boolean binaryRequested) {
+        this.binaryRequested = binaryRequested;
+    }
+
+    public boolean isBinaryProtocol() {
+        return binary;
+    }
+
+    /**
+     * Ask the server to answer PUTs once the given number of copies are
+     * written, null for the default level of the server. Binary protocol
+     * PUTs always use the default level.
+     */
+    public void setWriteConsistency(WriteConsistency writeConsistency) {
+        this.writeConsistency = writeConsistency;
+    }
+
+    public WriteConsistency getWriteConsistency() {
+        return writeConsistency;
+    }
+
+    /**
+     * Hedge GETs: when the server does not answer within its recent p95
+     * latency, send the same GET to a replica of the key and return the
+     * first answer. The late answer of the server is skipped when it comes,
+     * the GET is not cancelled on the server: the protocol has no way to
+     * take a request back, and a GET only reads. A GET won by the replica
+     * counts for the server with the time waited so far.
+     * Applies to text protocol GETs once the hash ring is known.
+     */
+    public void setHedging(boolean hedging) {
+        if (!hedging && hedger != null) {
+            hedger.close();
+        }
+        hedger = hedging ? (hedger == null ? new GetHedger() : hedger) : null;
+    }
+
+    public boolean isHedging() {
+        return hedger != null;
+    }
+
+    /**
+     * @return number of GETs duplicated to a replica
+     */
+    public long getHedgeCount() {
+        return hedger == null ? 0 : hedger.getHedgeCount();
+    }
+
+    /**
+     * @return number of hedged GETs answered by the replica first
+     */
+    public long getHedgeWinCount() {
+        return hedger == null ? 0 : hedger.getWinCount();
+    }
+
+    /**
+     * @return share of hedge eligible GETs that were duplicated
+     */
+    public double getHedgeRate() {
+        return hedger == null || hedger.getGetCount() == 0 ? 0
+                : hedger.getHedgeCount() / (double) hedger.getGetCount();
     }
 
     @Override
@@ -75,6 +263,13 @@ public class KVStore implements KVCommInterface {
 
         try {
             tearDownConnection();
+            abandoned.clear();
+            if (nearCache != null) {
+                nearCache.clear();
+            }
+            if (hedger != null) {
+                hedger.close();
+            }
             for (IKVClient listener : listeners) {
                 listener.handleStatus(IKVClient.SocketStatus.DISCONNECTED);
 
@@ -102,6 +297,10 @@ public class KVStore implements KVCommInterface {
         if (value == null)
             value = "";
 
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
+
         if (checkKeyValue(key, value)) {
 
             /*
@@ -120,9 +319,15 @@ public class KVStore implements KVCommInterface {
                 GET + DELIMITER + KEY
              */
 
-            String msg;
+            if (binary) {
+                try {
+                    return succeeded(binaryRequest(BinaryProtocol.OP_PUT, key, value));
+                } catch (Exception e) {
+                    return failureHandling(new KVConvertMessage(key, value, "PUT"));
+                }
+            }
 
-            msg = "PUT" + DELIMITER + key + DELIMITER + value + DELIMITER + new Date().getTime() + DELIMITER + clientSocket.getLocalPort();
+            String msg = putMessage(key, value);
 
             logger.debug("[KVStore] msg to send: " + msg);
 
@@ -140,7 +345,7 @@ public class KVStore implements KVCommInterface {
 
                 msg = msg_receive.getMsg().trim();
 
-                return new KVConvertMessage(key, value, msg);
+                return succeeded(new KVConvertMessage(key, value, msg));
             } catch (Exception e) {
                 return failureHandling(new KVConvertMessage(key, value, "PUT"));
             }
@@ -154,9 +359,61 @@ public class KVStore implements KVCommInterface {
 
     @Override
     public KVMessage get(String key) {
+        if (nearCache == null || binary || !abandoned.isEmpty() || !checkKeyValue(key, "")) {
+            return getFromServer(key);
+        }
+        try {
+            drainPushes();
+        } catch (IOException e) {
+            nearCache.clear(); // the GET below runs into the same failure and handles it
+        }
+        String cached = nearCache.get(key);
+        if (cached != null) {
+            return new KVConvertMessage(key, cached, KVMessage.StatusType.GET_SUCCESS.name());
+        }
+
+        long seen = invalidations;
+        KVMessage reply = getFromServer(key);
+        // a value read while invalidations arrived may be older than one of them
+        if (reply != null && reply.getStatus() == KVMessage.StatusType.GET_SUCCESS
+                && seen == invalidations && nearCache != null) {
+            nearCache.put(key, reply.getValue());
+        }
+        return reply;
+    }
+
+    private KVMessage getFromServer(String key) {
         if (checkKeyValue(key, "")) {
 
-            timestamp++;
+            if (binary) {
+                try {
+                    return succeeded(binaryRequest(BinaryProtocol.OP_GET, key, ""));
+                } catch (Exception e) {
+                    try {
+                        return failureHandling(new KVConvertMessage(key, "", "GET"));
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        return null;
+                    }
+                }
+            }
+
+            if (hedger != null) {
+                List<ECSNode> replicas = hedgeReplicas(key);
+                if (!replicas.isEmpty()) {
+                    try {
+                        return succeeded(hedgedGet(key, replicas));
+                    } catch (Exception e) {
+                        try {
+                            return failureHandling(new KVConvertMessage(key, "", "GET"));
+                        } catch (Exception ex) {
+                            ex.printStackTrace();
+                            return null;
+                        }
+                    }
+                }
+            }
+
             String msg = "GET" + DELIMITER + key + DELIMITER;
             logger.debug("[KVStore] GET msg to send: " + msg);
 
@@ -171,20 +428,9 @@ public class KVStore implements KVCommInterface {
                     KVMessage + DELIMITER + KEY + DELIMITER + VALUE (Optional)
                  */
 
-                String[] tokens = msg.split("\\" + DELIMITER);
                 logger.debug("[KVStore] KVMsg from KVStore.get: " + msg);
 
-                String value = "";
-
-                if (tokens.length == 1) {
-                    return new KVConvertMessage(null, value, tokens[0]);
-                }
-
-                if (tokens.length == 3) {
-                    value = tokens[2];
-                }
-
-                return new KVConvertMessage(tokens[1], value, tokens[0]);
+                return succeeded(getReply(msg));
             } catch (Exception e) {
 
                 try {
@@ -200,6 +446,186 @@ public class KVStore implements KVCommInterface {
         }
     }
 
+    /**
+     * @return replicas a GET for the key can be hedged to, empty if the
+     * connected server is not the coordinator of the key
+     */
+    private List<ECSNode> hedgeReplicas(String key) {
+        List<ECSNode> replicas = new ArrayList<>();
+        if (binary) {
+            return replicas;
+        }
+        ECSHashRing hashRing = getHashRing();
+        if (hashRing.getSize() == 0) {
+            return replicas;
+        }
+        ECSNode owner = hashRing.getNodeByHash(MD5.HashInBI(key));
+        if (owner == null || owner.getNodePort() != port || !owner.getNodeHost().equals(address)) {
+            return replicas;
+        }
+        for (ECSNode replica : hashRing.getReplicas(owner)) {
+            if (!replica.getNodeName().equals(owner.getNodeName())) {
+                replicas.add(replica);
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * @return the hash ring last received by this client, asked from the
+     * connected server once per connection while it is unknown; empty if
+     * the server has no ring
+     */
+    public ECSHashRing getHashRing() {
+        if (hashRing.getSize() == 0 && !ringRequested && !binary && clientSocket != null) {
+            ringRequested = true;
+            try {
+                sendMessage(new TextMessage("HASHRING"));
+                String[] tokens = receiveMessage().getMsg().trim().split("\\" + DELIMITER, 2);
+                if (tokens.length > 1 && !tokens[1].isEmpty()) {
+                    hashRing = new ECSHashRing(tokens[1]);
+                }
+            } catch (Exception e) {
+                logger.warn("[KVStore] Unable to get the hash ring: " + e.getMessage());
+            }
+        }
+        return hashRing;
+    }
+
+    private KVMessage hedgedGet(String key, List<ECSNode> replicas) throws Exception {
+        String server = address + ":" + port;
+        String msg = "GET" + DELIMITER + key + DELIMITER;
+        long id = nextRequestId();
+        long start = System.nanoTime();
+        sendMessage(new TextMessage(CorrelationId.tag(id, msg)));
+
+        String reply = receiveReply(id, hedger.delay(server));
+        CompletableFuture<String> hedge = null;
+        if (reply == null) {
+            hedge = hedger.hedge(replicas.get((int) (id % replicas.size())), key);
+        }
+        while (reply == null) {
+            if (hedge != null && hedge.isDone()) {
+                String hedged = hedge.isCompletedExceptionally() ? null : hedge.join();
+                if (hedged != null && hedged.startsWith(KVMessage.StatusType.GET_SUCCESS.name())) {
+                    abandoned.add(id);
+                    // the server took at least this long, leaving it out would pull its p95 down
+                    hedger.record(server, System.nanoTime() - start);
+                    hedger.won();
+                    logger.debug("[KVStore] Hedged GET " + key + " answered first by a replica");
+                    return getReply(hedged);
+                }
+                hedge = null; // the replica cannot answer, wait for the server
+            }
+            reply = receiveReply(id, hedge == null ? 0 : Constants.HEDGE_POLL);
+        }
+        hedger.record(server, System.nanoTime() - start);
+
+        reply = handleServerNotResponsible(new TextMessage(reply), new TextMessage(msg), key).getMsg().trim();
+        return getReply(reply);
+    }
+
+    /**
+     * @param timeout ms to wait, 0 to wait until the reply comes
+     * @return the untagged reply to the request, or null on timeout
+     */
+    private String receiveReply(long id, long timeout) throws Exception {
+        clientSocket.setSoTimeout((int) timeout);
+        try {
+            while (true) {
+                String reply = receiveMessage().getMsg().trim();
+                if (!CorrelationId.isTagged(reply)) {
+                    return reply;
+                }
+                if (CorrelationId.idOf(reply) == id) {
+                    return CorrelationId.untag(reply);
+                }
+                logger.warn("[KVStore] Unexpected reply: " + reply);
+            }
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            clientSocket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * PUT request of the client. The timestamp identifies the request at the
+     * server together with the client port, so it is unique per client even
+     * for PUTs sent within the same millisecond.
+     */
+    String putMessage(String key, String value) {
+        timestamp = Math.max(new Date().getTime(), timestamp + 1);
+        String msg = "PUT" + DELIMITER + key + DELIMITER + value + DELIMITER + timestamp + DELIMITER + clientSocket.getLocalPort();
+        return writeConsistency == null ? msg : msg + DELIMITER + writeConsistency;
+    }
+
+    /**
+     * Send a request as a binary frame and wait for its reply, following
+     * the hash ring sent with SERVER_NOT_RESPONSIBLE to the responsible server.
+     */
+    private KVMessage binaryRequest(byte opcode, String key, String value) throws Exception {
+        BinaryProtocol.Frame reply = null;
+        for (int attempt = 0; attempt <= MAX_REDIRECTS; attempt++) {
+            if (opcode == BinaryProtocol.OP_PUT) {
+                timestamp = Math.max(new Date().getTime(), timestamp + 1);
+            }
+            byte[] frame = BinaryProtocol.encodeRequest(opcode, nextRequestId(), key, value,
+                    timestamp, clientSocket.getLocalPort());
+            output.write(frame, 0, frame.length);
+            output.flush();
+
+            reply = BinaryProtocol.decodeReply(codec.readFrame(input));
+            if (reply.status != KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                break;
+            }
+
+            hashRing = reply.hashRing;
+            ECSNode newServer = hashRing.getNodeByHash(MD5.HashInBI(key));
+            logger.info("[KVStore] Now connect to: " + newServer.getNodeName());
+            this.address = newServer.getNodeHost();
+            this.port = newServer.getNodePort();
+            disconnect();
+            connect();
+            if (!binary) {
+                return opcode == BinaryProtocol.OP_PUT ? put(key, value) : get(key);
+            }
+        }
+        return new KVConvertMessage(key, reply.value, reply.status);
+    }
+
+    /**
+     * @param msg KVMessage + DELIMITER + KEY + DELIMITER + VALUE (Optional)
+     */
+    static KVMessage getReply(String msg) {
+        String[] tokens = msg.split("\\" + DELIMITER);
+
+        String value = "";
+
+        if (tokens.length == 1) {
+            return new KVConvertMessage(null, value, tokens[0]);
+        }
+
+        if (tokens.length == 3) {
+            value = tokens[2];
+        }
+
+        return new KVConvertMessage(tokens[1], value, tokens[0]);
+    }
+
+    /**
+     * Start a batch of requests that are sent without waiting for each reply.
+     *
+     * @return an empty pipeline on this connection
+     */
+    public KVPipeline pipeline() {
+        return new KVPipeline(this);
+    }
+
+    long nextRequestId() {
+        return ++requestId;
+    }
+
     public boolean isRunning() {
         return running;
     }
@@ -225,74 +651,33 @@ public class KVStore implements KVCommInterface {
         logger.info("[KVStore] Send message: " + msg.getMsg());
     }
 
-    private TextMessage receiveMessage() throws Exception {
-        logger.info("[KVStore] msg receiving...");
-        int index = 0;
-        byte[] msgBytes = null, tmp;
-        byte[] bufferBytes = new byte[BUFFER_SIZE];
-
-        /* read first char from stream */
-        byte read = (byte) input.read();
-        boolean reading = true;
-
-        int cnt = 0;
-
-        while (read != 13 && reading) {/* carriage return */
-            /* if buffer filled, copy to msg array */
-            if (index == BUFFER_SIZE) {
-                if (msgBytes == null) {
-                    tmp = new byte[BUFFER_SIZE];
-                    System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-                } else {
-                    tmp = new byte[msgBytes.length + BUFFER_SIZE];
-                    System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-                    System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-                            BUFFER_SIZE);
-                }
-
-                msgBytes = tmp;
-                bufferBytes = new byte[BUFFER_SIZE];
-                index = 0;
-            }
-
-            /* only read valid characters, i.e. letters and numbers */
-            if ((read > 31 && read < 127)) {
-                bufferBytes[index] = read;
-                index++;
-            }
-
-            /* stop reading is DROP_SIZE is reached */
-            if (msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-                reading = false;
-            }
-
-            /* read next char from stream */
-            read = (byte) input.read();
-            cnt++;
-
-            if (cnt >= DROP_SIZE) {
-                throw new Exception();
-            }
-        }
-
-        if (msgBytes == null) {
-            tmp = new byte[index];
-            System.arraycopy(bufferBytes, 0, tmp, 0, index);
-        } else {
-            tmp = new byte[msgBytes.length + index];
-            System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-            System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
+    /**
+     * Write several messages with a single flush.
+     */
+    void sendMessages(List<TextMessage> msgs) throws IOException {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (TextMessage msg : msgs) {
+            batch.write(msg.getMsgBytes());
         }
+        batch.writeTo(output);
+        output.flush();
+        logger.info("[KVStore] Send " + msgs.size() + " messages");
+    }
 
-        msgBytes = tmp;
+    TextMessage receiveMessage() throws Exception {
+        logger.info("[KVStore] msg receiving...");
 
-        /* build final String */
-        TextMessage msg = new TextMessage(msgBytes);
+        TextMessage msg = codec.readMessage(input);
+        while (applyPush(msg.getMsg().trim())
+                || !abandoned.isEmpty() && CorrelationId.isTagged(msg.getMsg().trim())
+                && abandoned.remove(CorrelationId.idOf(msg.getMsg().trim()))) {
+            msg = codec.readMessage(input); // invalidation, or late reply to a GET answered by a replica
+        }
         logger.debug("[KVStore] Received message from server: " + msg.getMsg().trim());
         return msg;
     }
 
-    private boolean checkKeyValue(String key, String value) {
+    static boolean checkKeyValue(String key, String value) {
 
         if (key.length() > BUFFER_SIZE) {
             logger.error("[KVStore] KEY size exceeds limit: " + BUFFER_SIZE);
@@ -326,6 +711,21 @@ public class KVStore implements KVCommInterface {
         return true;
     }
 
+    /**
+     * @return the metrics of the connected server as name=value pairs separated by ','
+     */
+    public String getServerMetrics() throws Exception {
+        if (binary) {
+            byte[] frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_METRICS, nextRequestId(), "", "", 0, 0);
+            output.write(frame, 0, frame.length);
+            output.flush();
+            return BinaryProtocol.decodeReply(codec.readFrame(input)).value;
+        }
+        sendMessage(new TextMessage("METRICS"));
+        String[] tokens = receiveMessage().getMsg().trim().split("\\" + DELIMITER, 2);
+        return tokens.length > 1 ? tokens[1] : "";
+    }
+
     public TextMessage sendMovedData(String movedData) throws Exception {
         logger.debug("[KVStore] sending transferred data: " + movedData);
         sendMessage(new TextMessage("Transferring_Data" + DELIMITER + movedData));
@@ -394,10 +794,10 @@ public class KVStore implements KVCommInterface {
             return new_msg_receive;
 
         } else if (tokens[0].trim().equals(KVMessage.StatusType.PUT_ERROR.name())) {
-            int retry = 8;
+            RetryPolicy.Retry retry = retryPolicy.start();
             logger.debug("[KVStore] retry for put: ");
             TextMessage new_msg_receive = msg_received;
-            while (retry > 0) {
+            while (retry.backoff()) {
                 logger.debug("[KVStore] retry for put: ");
                 sendMessage(msg_sent);
                 new_msg_receive = receiveMessage();
@@ -417,11 +817,8 @@ public class KVStore implements KVCommInterface {
                         tokens[0].trim().equals(KVMessage.StatusType.PUT_UPDATE.name())) {
                     return new_msg_receive;
                 }
-
-                Thread.sleep(2000);
-                retry--;
-
             }
+            logger.warn("[KVStore] PUT " + key + " failed after " + retry.getAttempts() + " retries");
             return new_msg_receive;
 
         } else assert tokens.length <= 1 || tokens[1].equals(key);
@@ -435,29 +832,86 @@ public class KVStore implements KVCommInterface {
         disconnect();
 
         BigInteger hash = MD5.HashInBI(req.getKey());
-        if (hashRing.getSize() == 0 || hashRing == null) {
-            logger.warn("[KVStore] No server information available...");
-            return null;
-        }
+        RetryPolicy.Retry retry = retryPolicy.start();
+        while (retry.backoff()) {
+            if (hashRing.getSize() == 0 || hashRing == null) {
+                logger.warn("[KVStore] No server information available...");
+                return null;
+            }
 
-        ECSNode toRemove = hashRing.getNodeByHash(hash);
-        logger.info("[KVStore] removing " + toRemove.getNodeName());
-        hashRing.removeNode(toRemove);
-        ECSNode newServer = hashRing.getNodeByHash(hash);
-        try {
-            if (newServer != null) {
-                this.address = newServer.getNodeHost();
-                this.port = newServer.getNodePort();
-                logger.info("[KVStore] connecting to " + this.address + ":" + this.port);
+            ECSNode toRemove = hashRing.getNodeByHash(hash);
+            logger.info("[KVStore] removing " + toRemove.getNodeName());
+            hashRing.removeNode(toRemove);
+            ECSNode newServer = hashRing.getNodeByHash(hash);
+            if (newServer == null) {
+                return null;
+            }
+            this.address = newServer.getNodeHost();
+            this.port = newServer.getNodePort();
+            logger.info("[KVStore] connecting to " + this.address + ":" + this.port);
+            try {
                 connect();
-                if (req.getStatus().equals(KVMessage.StatusType.PUT)) {
-                    return this.put(req.getKey(), req.getValue());
-                }
-                return this.get(req.getKey());
+                // a failure here is the next attempt of this retry, the limits hold for the request as a whole
+                return resend(req);
+            } catch (Exception e) {
+                logger.warn("[KVStore] " + req.getStatus() + " " + req.getKey() + " failed on "
+                        + this.address + ":" + this.port + ": " + e.getMessage());
+                disconnect();
+            }
+        }
+        logger.warn("[KVStore] Giving up on " + req.getStatus() + " " + req.getKey()
+                + " after " + retry.getAttempts() + " retries");
+        return null;
+    }
+
+    /**
+     * Send a request again on the connection just opened after a failure.
+     */
+    private KVMessage resend(KVMessage req) throws Exception {
+        String key = req.getKey();
+        if (req.getStatus() == KVMessage.StatusType.PUT) {
+            if (binary) {
+                return succeeded(binaryRequest(BinaryProtocol.OP_PUT, key, req.getValue()));
+            }
+            TextMessage msg_send = new TextMessage(putMessage(key, req.getValue()));
+            sendMessage(msg_send);
+            String reply = handleServerNotResponsible(receiveMessage(), msg_send, key).getMsg().trim();
+            return succeeded(new KVConvertMessage(key, req.getValue(), reply));
+        }
+        if (binary) {
+            return succeeded(binaryRequest(BinaryProtocol.OP_GET, key, ""));
+        }
+        TextMessage msg_send = new TextMessage("GET" + DELIMITER + key + DELIMITER);
+        sendMessage(msg_send);
+        return succeeded(getReply(handleServerNotResponsible(receiveMessage(), msg_send, key).getMsg().trim()));
+    }
+
+    /**
+     * Refill the retry budget if the request succeeded, error replies and
+     * pushed invalidations do not.
+     *
+     * @return the reply
+     */
+    private KVMessage succeeded(KVMessage reply) {
+        if (reply != null && reply.getStatus() != null) {
+            switch (reply.getStatus()) {
+                case GET_SUCCESS:
+                case PUT_SUCCESS:
+                case PUT_UPDATE:
+                case DELETE_SUCCESS:
+                    retryPolicy.succeeded();
+                    break;
+                default:
+                    break;
             }
-            return null;
-        } catch (IOException e) {
-            return failureHandling(req);
         }
+        return reply;
+    }
+
+    /**
+     * @return retries this client may still make before its budget is refilled
+     */
+    public double getRetryTokens() {
+        return retryPolicy.getTokens();
     }
 }
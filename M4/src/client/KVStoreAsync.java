@@ -0,0 +1,443 @@
+package client;
+
+import ecs.ECSHashRing;
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.HashingFunction.MD5;
+import shared.communication.MessageCodec;
+import shared.messages.CorrelationId;
+import shared.messages.KVConvertMessage;
+import shared.messages.KVMessage;
+import shared.messages.TextMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Non-blocking client returning a CompletableFuture per request. One
+ * selector thread keeps a single connection per server and pipelines the
+ * requests to it with correlation ids, so a few application threads can
+ * keep thousands of operations in flight. Requests go straight to the
+ * server responsible for their key, following the hash ring sent with
+ * SERVER_NOT_RESPONSIBLE.
+ *
+ * At most maxInFlight requests are sent at a time, further requests wait in
+ * submission order. A request not answered within its timeout fails with a
+ * TimeoutException, and a lost connection fails the requests sent on it.
+ * Futures are completed on the I/O thread, so dependent stages that block
+ * should use the async variants of CompletableFuture.
+ *
+ * The server processes the requests in flight on a connection in any
+ * order, so two PUTs of the same key in flight together may be applied in
+ * either order, and a GET in flight with a PUT of its key may or may not
+ * see it. A PUT that must follow another one of its key should be sent
+ * once the future of the first one completed, e.g. with thenCompose.
+ */
+public class KVStoreAsync {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final String DELIMITER = Constants.DELIMITER;
+    private static final int MAX_REDIRECTS = 3;
+    private static final long TICK = 10; // ms between two timeout checks
+
+    private String address;
+    private int port;
+    private int maxInFlight;
+    private int maxQueued;
+    private long timeout;
+
+    private Selector selector;
+    private Thread ioThread;
+    private volatile boolean running;
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // state below is only touched by the I/O thread
+    private ECSHashRing hashRing = new ECSHashRing();
+    private Map<String, Connection> connections = new HashMap<>();
+    private Deque<Request> waiting = new ArrayDeque<>();
+    private int inFlight = 0;
+    private long nextId = 0;
+    private long timestamp = 0;
+    private long lastTimeoutCheck = 0;
+
+    public KVStoreAsync(String address, int port) {
+        this(address, port, Constants.ASYNC_MAX_IN_FLIGHT, Constants.ASYNC_MAX_QUEUED, Constants.ASYNC_TIMEOUT);
+    }
+
+    /**
+     * @param address     address of any server, used until the ring is known
+     * @param port        port of that server
+     * @param maxInFlight max number of requests sent and not yet answered
+     * @param maxQueued   max number of requests waiting to be sent, more are rejected
+     * @param timeout     ms after submission before a request fails
+     */
+    public KVStoreAsync(String address, int port, int maxInFlight, int maxQueued, long timeout) {
+        this.address = address;
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.timeout = timeout;
+    }
+
+    public void connect() throws IOException {
+        selector = Selector.open();
+        running = true;
+        ioThread = new Thread(this::run, "kv-async-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+        execute(() -> connectionTo(address, port));
+    }
+
+    public void disconnect() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (ioThread != null) {
+            try {
+                ioThread.join(Constants.TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Not ordered with the other requests of the key in flight, see the
+     * class comment.
+     */
+    public CompletableFuture<KVMessage> putAsync(String key, String value) {
+        return submit(KVMessage.StatusType.PUT, key, value == null ? "" : value);
+    }
+
+    public CompletableFuture<KVMessage> getAsync(String key) {
+        return submit(KVMessage.StatusType.GET, key, "");
+    }
+
+    private CompletableFuture<KVMessage> submit(KVMessage.StatusType cmd, String key, String value) {
+        if (!KVStore.checkKeyValue(key, value)) {
+            return CompletableFuture.completedFuture(new KVConvertMessage(key, value,
+                    cmd == KVMessage.StatusType.PUT ? "PUT_ERROR" : "GET_ERROR"));
+        }
+        Request request = new Request(cmd, key, value, System.currentTimeMillis() + timeout);
+        if (!running) {
+            request.future.completeExceptionally(new IOException("Client not connected"));
+            return request.future;
+        }
+        execute(() -> {
+            if (inFlight < maxInFlight) {
+                send(request);
+            } else if (waiting.size() < maxQueued) {
+                waiting.add(request);
+            } else {
+                request.future.completeExceptionally(
+                        new RejectedExecutionException(maxQueued + " requests already waiting"));
+            }
+        });
+        return request.future;
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select(TICK);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            connection.onConnectable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        logger.error("[KVStoreAsync] Connection to " + connection.name() + " lost: " + e.getMessage());
+                        close(connection, e);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastTimeoutCheck >= TICK) {
+                    lastTimeoutCheck = now;
+                    expire(now);
+                }
+            } catch (IOException e) {
+                logger.error("[KVStoreAsync] Selector failed", e);
+                break;
+            }
+        }
+
+        IOException closed = new IOException("Client disconnected");
+        for (Connection connection : new ArrayList<>(connections.values())) {
+            close(connection, closed);
+        }
+        for (Request request : waiting) {
+            request.future.completeExceptionally(closed);
+        }
+        waiting.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("[KVStoreAsync] Unable to close selector", e);
+        }
+    }
+
+    /**
+     * Send a request to the server responsible for its key.
+     */
+    private void send(Request request) {
+        ECSNode owner = hashRing.getSize() == 0 ? null : hashRing.getNodeByHash(MD5.HashInBI(request.key));
+        Connection connection = owner == null
+                ? connectionTo(address, port)
+                : connectionTo(owner.getNodeHost(), owner.getNodePort());
+        if (connection == null) {
+            if (request.sent) {
+                inFlight--;
+            }
+            request.future.completeExceptionally(new IOException("Unable to connect to "
+                    + (owner == null ? address + ":" + port : owner.getNodeName())));
+            return;
+        }
+
+        String msg;
+        if (request.cmd == KVMessage.StatusType.PUT) {
+            timestamp = Math.max(System.currentTimeMillis(), timestamp + 1);
+            msg = "PUT" + DELIMITER + request.key + DELIMITER + request.value
+                    + DELIMITER + timestamp + DELIMITER + connection.localPort;
+        } else {
+            msg = "GET" + DELIMITER + request.key + DELIMITER;
+        }
+        long id = ++nextId;
+        if (!request.sent) {
+            request.sent = true;
+            inFlight++;
+        }
+        connection.inFlight.put(id, request);
+        connection.write(new TextMessage(CorrelationId.tag(id, msg)).getMsgBytes());
+    }
+
+    private void onReply(Connection connection, String reply) {
+        if (!CorrelationId.isTagged(reply)) {
+            if (!connection.greeted) {
+                connection.greeted = true; // "Connection established"
+            } else {
+                logger.warn("[KVStoreAsync] Untagged reply from " + connection.name() + ": " + reply);
+            }
+            return;
+        }
+        Request request = connection.inFlight.remove(CorrelationId.idOf(reply));
+        if (request == null) {
+            return; // timed out already
+        }
+        reply = CorrelationId.untag(reply);
+
+        String[] tokens = reply.split("\\" + DELIMITER, 2);
+        if (tokens[0].equals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE.name())
+                && tokens.length > 1 && request.redirects < MAX_REDIRECTS) {
+            hashRing = new ECSHashRing(tokens[1]);
+            request.redirects++;
+            send(request);
+            return;
+        }
+
+        KVMessage msg = request.cmd == KVMessage.StatusType.GET
+                ? KVStore.getReply(reply)
+                : new KVConvertMessage(request.key, request.value, tokens[0]);
+        inFlight--;
+        request.future.complete(msg);
+        startWaiting();
+    }
+
+    private void startWaiting() {
+        while (inFlight < maxInFlight && !waiting.isEmpty()) {
+            send(waiting.poll());
+        }
+    }
+
+    private void expire(long now) {
+        TimeoutException timedOut = null;
+        for (Connection connection : connections.values()) {
+            Iterator<Request> requests = connection.inFlight.values().iterator();
+            while (requests.hasNext()) {
+                Request request = requests.next();
+                if (request.deadline <= now) {
+                    requests.remove();
+                    inFlight--;
+                    if (timedOut == null) {
+                        timedOut = new TimeoutException("No reply within " + timeout + " ms");
+                    }
+                    request.future.completeExceptionally(timedOut);
+                }
+            }
+        }
+        while (!waiting.isEmpty() && waiting.peek().deadline <= now) {
+            waiting.poll().future.completeExceptionally(new TimeoutException("Not sent within " + timeout + " ms"));
+        }
+        startWaiting();
+    }
+
+    /**
+     * @return the connection to the server, opened if needed, or null if it cannot be opened
+     */
+    private Connection connectionTo(String host, int port) {
+        String name = host + ":" + port;
+        Connection connection = connections.get(name);
+        if (connection != null) {
+            return connection;
+        }
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean connected = channel.connect(new InetSocketAddress(host, port));
+            connection = new Connection(name, channel);
+            connection.key = channel.register(selector,
+                    connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+            connection.connected = connected;
+            connections.put(name, connection);
+            logger.debug("[KVStoreAsync] Connecting to " + name);
+            return connection;
+        } catch (IOException e) {
+            logger.error("[KVStoreAsync] Unable to connect to " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void close(Connection connection, IOException cause) {
+        connections.remove(connection.name);
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            logger.error("[KVStoreAsync] Unable to close connection", e);
+        }
+        for (Request request : connection.inFlight.values()) {
+            inFlight--;
+            request.future.completeExceptionally(cause);
+        }
+        connection.inFlight.clear();
+        startWaiting();
+    }
+
+    private static class Request {
+        final KVMessage.StatusType cmd;
+        final String key;
+        final String value;
+        final long deadline;
+        final CompletableFuture<KVMessage> future = new CompletableFuture<>();
+        int redirects = 0;
+        boolean sent = false;
+
+        Request(KVMessage.StatusType cmd, String key, String value, long deadline) {
+            this.cmd = cmd;
+            this.key = key;
+            this.value = value;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * A pipelined connection to one server.
+     */
+    private class Connection {
+        final String name;
+        final SocketChannel channel;
+        SelectionKey key;
+        final MessageCodec codec = new MessageCodec();
+        final Queue<ByteBuffer> writes = new ArrayDeque<>();
+        final Map<Long, Request> inFlight = new HashMap<>();
+        final int localPort;
+        boolean connected;
+        boolean greeted = false;
+
+        Connection(String name, SocketChannel channel) {
+            this.name = name;
+            this.channel = channel;
+            this.localPort = channel.socket().getLocalPort();
+        }
+
+        String name() {
+            return name;
+        }
+
+        void onConnectable() throws IOException {
+            channel.finishConnect();
+            connected = true;
+            updateInterest();
+            flush();
+        }
+
+        void onReadable() throws IOException {
+            if (codec.fill(channel) < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            String reply;
+            while ((reply = codec.nextMessage()) != null) {
+                reply = reply.trim();
+                if (!reply.isEmpty()) {
+                    onReply(this, reply);
+                }
+            }
+        }
+
+        void write(byte[] bytes) {
+            writes.add(ByteBuffer.wrap(bytes));
+            if (connected) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    logger.error("[KVStoreAsync] Unable to write to " + name + ": " + e.getMessage());
+                    close(this, e);
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            ByteBuffer head;
+            while ((head = writes.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    break;
+                }
+                writes.poll();
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if (key.isValid() && connected) {
+                key.interestOps(writes.isEmpty()
+                        ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Values recently read by a KVStore, kept coherent by the invalidations the
+ * server pushes over the same connection. Entries are dropped least recently
+ * used first, and expire after a TTL in case an invalidation was lost.
+ * Not thread-safe, like the KVStore owning it.
+ */
+class NearCache {
+
+    private static class Entry {
+        final String value;
+        final long expiry;
+
+        Entry(String value, long expiry) {
+            this.value = value;
+            this.expiry = expiry;
+        }
+    }
+
+    private final long ttl;
+    private final Map<String, Entry> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    NearCache(int capacity, long ttl) {
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cached value, or null if the key has to be read from the server
+     */
+    String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiry < System.currentTimeMillis()) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    void put(String key, String value) {
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+    }
+
+    void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+}
@@ -287,6 +287,27 @@ public class ECSHashRing {
         return result;
     }
 
+    /**
+     * @return replicas of the coordinator in ring order, the order PUTs
+     * travel along in chain replication; the last one is the tail
+     */
+    public List<ECSNode> getChain(ECSNode coordinator) {
+
+        List<ECSNode> chain = new ArrayList<>();
+
+        ECSNode currNode = this.getNodeByServerName(coordinator.name);
+
+        for (int i = 0; i < REPLICA_SIZE && currNode != null; ++i) {
+            ECSNode next = getNextNode(currNode.getNodeHash());
+            if (next.getNodeName().equals(coordinator.getNodeName())) {
+                break;
+            }
+            chain.add(next);
+            currNode = next;
+        }
+        return chain;
+    }
+
     public Collection<ECSNode> getPredecessors(ECSNode replica) {
 
         Set<ECSNode> result = new HashSet<>();
@@ -0,0 +1,263 @@
+package shared;
+
+import client.KVPipeline;
+import client.KVStore;
+import ecs.ECSHashRing;
+import ecs.ECSNode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import shared.HashingFunction.MD5;
+import shared.messages.KVMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the messages of an Enron maildir into the storage service. Files
+ * are listed lazily and parsed by a pool of threads, each record is queued
+ * for the server responsible for its key, and every server is written by
+ * several connections sending pipelined batches of PUTs. Only a bounded
+ * number of files and records is held in memory at any time.
+ *
+ * Usage: BulkLoader maildir [host] [port] [connections per server] [batch size]
+ */
+public class BulkLoader {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final String[] END = new String[0]; // queued after the last record, passed on by each writer
+
+    private File root;
+    private String host;
+    private int port;
+    private int connections;
+    private int batchSize;
+
+    private ECSHashRing hashRing;
+    private Map<String, ServerWriter> writers = new HashMap<>();
+
+    private AtomicLong files = new AtomicLong();
+    private AtomicLong records = new AtomicLong();
+    private AtomicLong bytes = new AtomicLong();
+    private AtomicLong skipped = new AtomicLong();
+    private AtomicLong failed = new AtomicLong();
+
+    public BulkLoader(File root, String host, int port, int connections, int batchSize) {
+        this.root = root;
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Load every message under the root directory and wait for the servers
+     * to acknowledge them.
+     */
+    public void load() throws Exception {
+        KVStore bootstrap = new KVStore(host, port);
+        bootstrap.connect();
+        hashRing = bootstrap.getHashRing();
+        bootstrap.disconnect();
+        if (hashRing.getSize() == 0) {
+            writers.put(host + ":" + port, new ServerWriter(host, port));
+        } else {
+            for (ECSNode node : hashRing.getActiveNodes().values()) {
+                writers.put(node.getNodeName(), new ServerWriter(node.getNodeHost(), node.getNodePort()));
+            }
+        }
+        for (ServerWriter writer : writers.values()) {
+            writer.start();
+        }
+
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        ExecutorService parsers = Executors.newFixedThreadPool(parallelism);
+        Semaphore parsing = new Semaphore(parallelism * Constants.BULK_PARSE_AHEAD);
+
+        Iterator<File> it = DataParser.iterateFiles(root);
+        while (it.hasNext()) {
+            File file = it.next();
+            parsing.acquire();
+            parsers.execute(() -> {
+                try {
+                    route(DataParser.parseFile(file));
+                } catch (IOException e) {
+                    logger.error("[BulkLoader] Unable to read " + file.getAbsolutePath());
+                    skipped.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    parsing.release();
+                }
+            });
+        }
+        parsers.shutdown();
+        parsers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        for (ServerWriter writer : writers.values()) {
+            writer.finish();
+        }
+    }
+
+    private void route(String record) throws InterruptedException {
+        files.incrementAndGet();
+        if (record == null) {
+            skipped.incrementAndGet();
+            return;
+        }
+        String[] kv = record.split("\\" + Constants.DELIMITER, 2);
+        ServerWriter writer = hashRing.getSize() == 0
+                ? writers.values().iterator().next()
+                : writers.get(hashRing.getNodeByHash(MD5.HashInBI(kv[0])).getNodeName());
+        writer.queue.put(kv);
+    }
+
+    /**
+     * Connections writing the records of one server.
+     */
+    private class ServerWriter {
+
+        private final String host;
+        private final int port;
+        private final BlockingQueue<String[]> queue;
+        private final List<Thread> threads = new ArrayList<>();
+        private final AtomicInteger writing = new AtomicInteger(); // connections that did not fail
+
+        ServerWriter(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.queue = new ArrayBlockingQueue<>(connections * batchSize * 2);
+        }
+
+        void start() throws Exception {
+            for (int i = 0; i < connections; i++) {
+                KVStore store = new KVStore(host, port);
+                store.connect();
+                Thread thread = new Thread(() -> write(store), "bulk-" + host + ":" + port);
+                thread.setDaemon(true);
+                threads.add(thread);
+                writing.incrementAndGet();
+                thread.start();
+            }
+        }
+
+        void finish() throws InterruptedException {
+            queue.put(END);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        private void write(KVStore store) {
+            List<String[]> batch = new ArrayList<>(batchSize);
+            boolean done = false;
+            try {
+                while (!done) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, batchSize - 1);
+                    KVPipeline pipeline = store.pipeline();
+                    for (String[] kv : batch) {
+                        if (kv == END) {
+                            done = true;
+                        } else {
+                            pipeline.put(kv[0], kv[1]);
+                        }
+                    }
+                    if (done) {
+                        queue.put(END); // for the other writers of this server
+                    }
+                    if (pipeline.size() > 0) {
+                        send(pipeline, batch);
+                    }
+                    batch.clear();
+                }
+            } catch (Exception e) {
+                logger.error("[BulkLoader] Writer to " + host + ":" + port + " failed: " + e.getMessage());
+                for (String[] kv : batch) {
+                    if (kv != END) {
+                        failed.incrementAndGet();
+                    }
+                }
+                // the records of the server would fill its queue and block the parsers
+                if (writing.decrementAndGet() == 0 && !done) {
+                    drop();
+                }
+            } finally {
+                store.disconnect();
+            }
+        }
+
+        /**
+         * Count the records still routed to the server as failed, until the
+         * last one is queued.
+         */
+        private void drop() {
+            logger.error("[BulkLoader] No connection left to " + host + ":" + port + ", dropping its records");
+            try {
+                while (queue.take() != END) {
+                    failed.incrementAndGet();
+                }
+                queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void send(KVPipeline pipeline, List<String[]> batch) throws Exception {
+            List<KVMessage> replies = pipeline.execute();
+            int i = 0;
+            for (String[] kv : batch) {
+                if (kv == END) {
+                    continue;
+                }
+                KVMessage.StatusType status = replies.get(i++).getStatus();
+                if (status == KVMessage.StatusType.PUT_SUCCESS || status == KVMessage.StatusType.PUT_UPDATE) {
+                    records.incrementAndGet();
+                    bytes.addAndGet(kv[0].length() + kv[1].length());
+                } else {
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: BulkLoader maildir [host] [port] [connections per server] [batch size]");
+            System.exit(1);
+        }
+        new LogSetup("logs/bulkloader.log", Level.ERROR);
+        File root = new File(args[0]);
+        String host = args.length > 1 ? args[1] : "localhost";
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+        int connections = args.length > 3 ? Integer.parseInt(args[3]) : Constants.BULK_CONNECTIONS;
+        int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : Constants.PIPELINE_WINDOW;
+
+        BulkLoader loader = new BulkLoader(root, host, port, connections, batchSize);
+        long start = System.nanoTime();
+        loader.load();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("Servers: " + loader.writers.size()
+                + ", connections per server: " + connections + ", batch size: " + batchSize);
+        System.out.println("Files: " + loader.files.get() + ", loaded: " + loader.records.get()
+                + ", skipped: " + loader.skipped.get() + ", failed: " + loader.failed.get());
+        System.out.printf("Elapsed: %.2f s, %.0f records/s, %.2f MB/s%n", seconds,
+                loader.records.get() / seconds, loader.bytes.get() / seconds / (1024 * 1024));
+        System.exit(0);
+    }
+}
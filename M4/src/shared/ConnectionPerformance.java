@@ -0,0 +1,190 @@
+package shared;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ECS;
+import ecs.ECSHashRing;
+import ecs.ECSNode;
+import ecs.ZK;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import shared.communication.ConnectionThreads;
+import shared.communication.MessageCodec;
+import shared.messages.KVMessage;
+
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the per-connection front end on platform threads and on virtual
+ * threads. A server is started in this JVM for each mode, holds a large
+ * number of idle connections and serves GETs from a few active clients at
+ * the same time. Needs a local ZooKeeper, like the servers started by ECS.
+ *
+ * Usage: ConnectionPerformance [idle connections] [active clients] [GETs per client]
+ */
+public class ConnectionPerformance {
+
+    private static final String KEY = "benchKey";
+    private static final String VALUE = "benchValue";
+
+    private String mode;
+    private int port;
+    private int idleConnections;
+    private int activeClients;
+    private int requestNum;
+
+    private KVServer server;
+    private List<Socket> idle = new ArrayList<>();
+
+    private long connectLatency;
+    private long heapPerConnection;
+    private int serverThreads;
+    private long totalGetLatency;
+    private long elapsed;
+
+    public ConnectionPerformance(String mode, int port, int idleConnections, int activeClients, int requestNum) {
+        this.mode = mode;
+        this.port = port;
+        this.idleConnections = idleConnections;
+        this.activeClients = activeClients;
+        this.requestNum = requestNum;
+    }
+
+    private void startServer(ZooKeeper zk) throws Exception {
+        ECSHashRing hashRing = new ECSHashRing();
+        hashRing.addNode(new ECSNode("server" + (port - 49999), ECS.LOCAL_HOST, port));
+        zk.setData(ECS.ZK_HASH_TREE, hashRing.getHashRingJson().getBytes(), -1);
+
+        System.setProperty("server.io", mode);
+        server = new KVServer(port, 100, "LRU");
+        server.clearStorage();
+        server.start();
+        new Thread(server).start();
+        Thread.sleep(1000);
+
+        KVStore client = new KVStore(ECS.LOCAL_HOST, port);
+        client.connect();
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, client.put(KEY, VALUE).getStatus());
+        client.disconnect();
+    }
+
+    public void startTest(ZooKeeper zk) throws Exception {
+        startServer(zk);
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heapBefore = usedHeap();
+
+        /* ----- IDLE CONNECTIONS ----- */
+        long start = System.nanoTime();
+        for (int i = 0; i < idleConnections; i++) {
+            Socket socket = new Socket(ECS.LOCAL_HOST, port);
+            new MessageCodec().readMessage(socket.getInputStream()); // greeting
+            idle.add(socket);
+        }
+        connectLatency = System.nanoTime() - start;
+        Thread.sleep(1000);
+
+        heapPerConnection = (usedHeap() - heapBefore) / Math.max(1, idleConnections);
+        serverThreads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+        /* ----- GET ----- */
+        AtomicLong latency = new AtomicLong();
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] clients = new Thread[activeClients];
+        start = System.nanoTime();
+        for (int i = 0; i < activeClients; i++) {
+            clients[i] = new Thread(() -> {
+                try {
+                    KVStore client = new KVStore(ECS.LOCAL_HOST, port);
+                    client.connect();
+                    for (int j = 0; j < requestNum; j++) {
+                        long t = System.nanoTime();
+                        KVMessage ret = client.get(KEY);
+                        latency.addAndGet(System.nanoTime() - t);
+                        if (ret == null || ret.getStatus() != KVMessage.StatusType.GET_SUCCESS) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    client.disconnect();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    errors.addAndGet(requestNum);
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        elapsed = System.nanoTime() - start;
+        totalGetLatency = latency.get();
+        assertEquals(0, errors.get());
+
+        for (Socket socket : idle) {
+            socket.close();
+        }
+        server.kill();
+        Thread.sleep(1000);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public void report() {
+        int requests = activeClients * requestNum;
+        System.out.println("\tMode: " + mode);
+        System.out.println("\tConnect " + idleConnections + " idle clients: " + connectLatency / 1000000 + " ms");
+        System.out.println("\tPlatform threads added: " + serverThreads);
+        System.out.println("\tHeap per idle connection: " + heapPerConnection + " bytes");
+        System.out.println("\tAverage GET Latency: " + totalGetLatency / (float) requests / 1000000 + " ms");
+        System.out.println("\tThroughput: " + (long) (requests / (elapsed / 1e9)) + " GET/s");
+    }
+
+    public static void main(String[] args) {
+
+        int idleConnections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int activeClients = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int requestNum = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        if (!ConnectionThreads.virtualThreadsSupported()) {
+            System.out.println("Virtual threads need Java 21, the virtual mode runs on platform threads");
+        }
+
+        try {
+            ZooKeeper zk = new ZK(ECS.LOCAL_HOST).connect();
+            for (String path : new String[]{ECS.ZK_SERVER_PATH, ECS.ZK_HASH_TREE}) {
+                if (zk.exists(path, false) == null) {
+                    zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                }
+            }
+
+            String[] modes = {"thread", "virtual"};
+            for (int i = 0; i < modes.length; i++) {
+                ConnectionPerformance performance = new ConnectionPerformance(
+                        modes[i], 50000 + i, idleConnections, activeClients, requestNum);
+                performance.startTest(zk);
+
+                System.out.println("\n********** " + modes[i] + " connections **********");
+                performance.report();
+            }
+            System.exit(0);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
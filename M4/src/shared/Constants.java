@@ -15,4 +15,60 @@ public interface Constants {
 
     int TIMEOUT = 2000;
 
+    int MAX_MESSAGE_SIZE = 64 * DROP_SIZE; // largest request accepted by the selector front end
+    int IO_THREADS = 2; // selector threads of the server front end
+    int WORKER_THREADS = 64; // threads processing client requests
+    int WORKER_QUEUE_SIZE = 4096; // requests waiting for a worker thread
+    int PIPELINE_WINDOW = 64; // pipelined requests in flight on one connection
+    int CLIENT_POOL_SIZE = 4; // idle connections a routing client keeps per server
+    int ASYNC_MAX_IN_FLIGHT = 1024; // requests an async client has sent and not yet seen answered
+    int ASYNC_MAX_QUEUED = 65536; // requests an async client holds back before rejecting more
+    long ASYNC_TIMEOUT = TIMEOUT; // ms before an async request fails
+    int BULK_CONNECTIONS = 4; // connections the bulk loader opens per server
+    int BULK_PARSE_AHEAD = 16; // files a bulk loader parsing thread may have queued
+    long HEDGE_DELAY = 10; // ms before hedging a GET to a server without recent latencies
+    long HEDGE_MIN_DELAY = 1; // ms, lower bound of the p95 based hedge delay
+    long HEDGE_POLL = 1; // ms between two checks of a hedged GET
+    int HEDGE_WINDOW = 256; // latest GET latencies per server the hedge delay is based on
+
+    int NEAR_CACHE_SIZE = 1024; // entries of a client near cache
+    long NEAR_CACHE_TTL = 30000; // ms a near cache entry is served without asking the server
+    int SUBSCRIPTION_LIMIT = 4 * NEAR_CACHE_SIZE; // keys the server tracks per near cache client
+    int PUSH_QUEUE = 1024; // messages queued to one connection before a client not reading them is dropped
+    long PUSH_TIMEOUT = 5000; // ms an invalidation may take to write before its connection is dropped
+
+    long RETRY_BASE_DELAY = 50; // ms, backoff cap of the first retry, doubled for each further retry
+    long RETRY_MAX_DELAY = 2000; // ms, largest backoff cap
+    int RETRY_MAX_ATTEMPTS = 8; // retries of one request
+    long RETRY_DEADLINE = 10000; // ms after the first failure of a request before giving up
+    long REPLICATION_RETRY_DEADLINE = 2000; // ms a PUT waits for its replicas before it is rolled back
+    int REPLICATION_WINDOW = 4096; // requests queued or in flight to one replica
+    int REPLICATION_BATCH_SIZE = 256; // most PUTs in one replication batch
+    int REPLICATION_BATCH_BYTES = DROP_SIZE; // approximate largest replication batch
+    long REPLICATION_LINGER = 2; // ms a PUT may wait for others to share its batch while one is in flight
+    long REPLICATION_POSITION_INTERVAL = 100; // ms between two checks of an idle stream whether to tell the replica how far it got
+    boolean CHAIN_REPLICATION = false; // PUTs go coordinator, first replica, second replica, rather than to both replicas at once
+    String WRITE_CONSISTENCY = "ALL"; // copies of a PUT written before the client gets its answer: ONE, QUORUM or ALL
+    int REPAIR_BACKLOG = 65536; // keys a coordinator remembers to send again to a lagging replica
+    long REPAIR_INTERVAL = 5000; // ms between two attempts to repair an unreachable replica
+    boolean HINTED_HANDOFF = true; // at ONE or QUORUM a durable hint stands for the copy of an unreachable replica until it is back
+    String CLOCK = "vector"; // clock stamping the writes: vector (dot of the server) or hlc (hybrid logical clock)
+    long CLOCK_MAX_OFFSET = 10000; // ms a hybrid logical clock follows a stamp ahead of its physical time
+    int CLOCK_RECENT_WRITES = 65536; // keys whose last stamp a replica remembers to skip writes arriving late
+    int REQUEST_WINDOW = 256; // latest PUTs of a client remembered to skip a retry of one already handled
+    int REQUEST_WINDOW_CLIENTS = 4096; // clients with a window, the one idle longest is forgotten beyond
+    long REQUEST_WINDOW_IDLE = 600000; // ms after which the window of an idle client is forgotten
+    String ROLLBACK = "ROLLBACK"; // WAL command of the value put back when the replication of a PUT failed
+    int PUT_LOCK_STRIPES = 64; // locks serializing the client PUTs of a coordinator by key
+    long REPLICATION_TIMEOUT = TIMEOUT; // ms a coordinator waits for its replicas to acknowledge a request
+    long REPLICA_POSITION_SAVE_INTERVAL = 1000; // ms between two saves of the replica positions, a crash replays what came after
+    long WAL_RETENTION = 100000; // WAL entries kept for replicas to catch up from, older ones need a snapshot
+    int MERKLE_DEPTH = 10; // levels below the root of the Merkle tree of a hash range, 2^depth buckets by MD5 prefix
+    long ANTI_ENTROPY_INTERVAL = 60000; // ms between two comparisons of the range of a coordinator with its replicas
+    double RETRY_BUDGET = 10; // retries a client or replication link may make in a burst
+    double RETRY_BUDGET_RATIO = 0.1; // retries earned back by every successful exchange
+
+    long CACHE_SNAPSHOT_INTERVAL = 30000; // ms between two hot key snapshots
+    long CACHE_WARMUP_BUDGET = 5000; // max ms spent prefetching hot keys at start
+
 }
@@ -1,14 +1,13 @@
 package shared;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.DirectoryFileFilter;
-import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.log4j.Logger;
 import shared.HashingFunction.MD5;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.regex.Matcher;
@@ -22,6 +21,9 @@ public class DataParser {
     private static Logger logger = Logger.getRootLogger();
     public static final String DATA_ROOT = "/nfs/ug/homes-2/c/chenxu23/ECE419/maildir";
 
+    private static final Pattern NOT_ALPHANUMERIC = Pattern.compile("[^A-Za-z0-9]");
+    private static final Pattern MESSAGE_FILE = Pattern.compile("^(\\d*?)\\.");
+
     /**
      * Convert all data files under certain dir under DATA_ROOT
      * to KVMessage format
@@ -30,31 +32,15 @@ public class DataParser {
      * @return List of KVMessages
      */
     public static List<String> parseDataFrom(String dir) {
-        Collection<File> files = FileUtils.listFiles(new File(DATA_ROOT + "/" + dir),
-                new RegexFileFilter("^(\\d*?)\\."),
-                DirectoryFileFilter.DIRECTORY);
-
         ArrayList<String> result = new ArrayList<>();
 
-        for (File file : files) {
+        Iterator<File> files = iterateFiles(new File(DATA_ROOT + "/" + dir));
+        while (files.hasNext()) {
+            File file = files.next();
             try {
-                StringBuilder val = new StringBuilder();
-                FileReader fileReader = new FileReader(file);
-                BufferedReader reader = new BufferedReader(fileReader);
-                String line;
-
-                while ((line = reader.readLine()) != null) {
-                    val.append(line);
-                }
-
-                reader.close();
-                fileReader.close();
-
-                String key = Objects.requireNonNull(MD5.HashInBI(val.toString())).toString();
-                String value = val.toString().replaceAll("[^a-zA-Z0-9]", "");
-
-                if (checkKeyValue(key, value))
-                    result.add(key + Constants.DELIMITER + value);
+                String record = parseFile(file);
+                if (record != null)
+                    result.add(record);
 
             } catch (FileNotFoundException e) {
                 logger.error(file.getAbsolutePath() + " not found!");
@@ -67,6 +53,50 @@ public class DataParser {
         return result;
     }
 
+    /**
+     * Iterate over the message files under a maildir directory, without
+     * reading them. The directories are listed as the iteration reaches
+     * them, each is closed once the iteration leaves it.
+     *
+     * @param root maildir, user or folder directory
+     * @return iterator over the files
+     */
+    public static Iterator<File> iterateFiles(File root) {
+        try {
+            return Files.walk(root.toPath())
+                    .filter(path -> MESSAGE_FILE.matcher(path.getFileName().toString()).matches())
+                    .filter(Files::isRegularFile)
+                    .map(Path::toFile)
+                    .iterator();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Convert one message file to KVMessage format
+     *
+     * @param file message file
+     * @return key and value separated by the delimiter, null if they are not a valid pair
+     */
+    public static String parseFile(File file) throws IOException {
+        StringBuilder val = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                val.append(line);
+            }
+        }
+
+        String key = Objects.requireNonNull(MD5.HashInBI(val.toString())).toString();
+        String value = NOT_ALPHANUMERIC.matcher(val).replaceAll("");
+
+        if (checkKeyValue(key, value))
+            return key + Constants.DELIMITER + value;
+        return null;
+    }
+
     /**
      * Convert all data files under dirs under DATA_ROOT which start with
      * the starting char to KVMessage format
@@ -99,8 +129,7 @@ public class DataParser {
             return false;
         }
 
-        Pattern p = Pattern.compile("[^A-Za-z0-9]");
-        Matcher m = p.matcher(key);
+        Matcher m = NOT_ALPHANUMERIC.matcher(key);
 
         if (m.find()) {
             return false;
@@ -108,7 +137,7 @@ public class DataParser {
 
         // not delete
         if (!value.isEmpty()) {
-            m = p.matcher(value);
+            m = NOT_ALPHANUMERIC.matcher(value);
             return !m.find();
         }
         return true;
@@ -1,10 +1,8 @@
 package shared.communication;
 
-import app_kvServer.IKVServer;
-import app_kvServer.KVServerDataReplicationManager;
-import ecs.ECSNode;
 import shared.Constants;
-import shared.messages.KVMessage;
+import shared.messages.BinaryProtocol;
+import shared.messages.CorrelationId;
 import shared.messages.TextMessage;
 import app_kvServer.KVServer;
 
@@ -12,8 +10,15 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Collection;
-import java.util.stream.Collectors;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.*;
 
@@ -25,31 +30,47 @@ import org.apache.log4j.*;
  * The class also implements the echo functionality. Thus whenever a message
  * is received it is going to be echoed back to the client.
  */
-public class ClientConnection implements Runnable {
+public class ClientConnection implements Runnable, Subscriptions.Subscriber {
 
     private static Logger logger = Logger.getRootLogger();
 
+    // write the invalidations of a connection, one connection per thread at a time
+    private static final ExecutorService pushes = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "kv-push");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // drop the connections whose client stopped reading in the middle of a push
+    private static final ScheduledExecutorService pushTimeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "kv-push-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final BlockingQueue<TextMessage> pushQueue = new ArrayBlockingQueue<>(Constants.PUSH_QUEUE);
+    private final AtomicBoolean pushing = new AtomicBoolean(false); // a thread drains pushQueue
+
     private boolean isOpen;
-    private static final int BUFFER_SIZE = 1024;
-    private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+    private boolean subscribed = false; // the client keeps a near cache
+    private MessageCodec codec = new MessageCodec();
 
     private KVServer server;
-    private KVServerDataReplicationManager dataReplicationManager;
+    private KVRequestHandler handler;
     private Socket clientSocket;
+    private String host; // address of the client
     private InputStream input;
     private OutputStream output;
 
-    private static final String DELIMITER = "+";
-
     /**
      * Constructs a new CientConnection object for a given TCP socket.
      *
      * @param clientSocket the Socket object for the client connection.
      */
-    public ClientConnection(KVServer server, Socket clientSocket) {
+    public ClientConnection(KVServer server, KVRequestHandler handler, Socket clientSocket) {
         this.server = server;
-        this.dataReplicationManager = server.getDataReplicationManager();
+        this.handler = handler;
         this.clientSocket = clientSocket;
+        this.host = clientSocket.getInetAddress().getHostAddress();
         this.isOpen = true;
     }
 
@@ -80,17 +101,25 @@ public class ClientConnection implements Runnable {
                         return;
                     }
 
-                    String[] tokens = msg_received.split("\\" + DELIMITER);
-
-                    String cmd = tokens[0];
-                    String key = tokens[1];
+                    if (msg_received.equals(BinaryProtocol.HANDSHAKE)) {
+                        subscribed = false; // invalidations are text messages
+                        server.getSubscriptions().remove(this);
+                        sendMessage(new TextMessage(BinaryProtocol.HANDSHAKE));
+                        codec.switchToBinary();
+                        serveBinary();
+                        return;
+                    }
 
-                    TextMessage msg_send;
-                    logger.debug("[ClientConnection] CMD: " + cmd);
-                    logger.debug("[ClientConnection] key: " + key);
+                    if (msg_received.equals(Subscriptions.SUBSCRIBE)) {
+                        subscribed = true;
+                    } else if (subscribed) {
+                        String key = Subscriptions.keyOfGet(CorrelationId.untag(msg_received));
+                        if (key != null) {
+                            server.getSubscriptions().subscribe(this, key);
+                        }
+                    }
 
-                    // checks for distributed servers
-                    handleClientRequest(cmd, key, tokens, msg_received);
+                    sendMessage(handler.handle(msg_received, host));
 
                 } catch (IOException ioe) {
                     logger.error("[ClientConnection] Error! Connection lost!");
@@ -102,6 +131,8 @@ public class ClientConnection implements Runnable {
             logger.error("[ClientConnection] Error! Connection could not be established!", ioe);
 
         } finally {
+            server.connectionClosed(this);
+            server.getSubscriptions().remove(this);
 
             try {
                 if (clientSocket != null) {
@@ -115,64 +146,35 @@ public class ClientConnection implements Runnable {
         }
     }
 
-    private String cmdPut(String cmd, String key, String value, String ts, int clientPort) {
-    	/*
-    		return msg should be a StatusType string
-    	 */
-
-        boolean inStorage = server.inStorage(key);
-
-        try {
-            server.putKV(key, value, cmd, Long.parseLong(ts), clientPort);
-
-//            if (cmd.equals("PUT")) {
-//                boolean ret = dataReplicationManager.forward(cmd, key, value);
-//            }
-
-            if (inStorage && value.equals("")) {
-                return "DELETE_SUCCESS";
-            } else if (inStorage) {
-                return "PUT_UPDATE";
-            } else if (value.equals("")) {
-                return "DELETE_ERROR";
-            } else {
-                return "PUT_SUCCESS";
-            }
-
-
-        } catch (Exception e) {
-            logger.error("[ClientConnection] Error! " + e);
-            e.printStackTrace();
-            e.getCause();
-            if (value.equals("")) {
-                return "DELETE_ERROR + " + e;
-            } else {
-                return "PUT_ERROR + " + e;
+    /**
+     * Serves binary frames until the connection is closed.
+     */
+    private void serveBinary() {
+        while (isOpen) {
+            try {
+                ByteBuffer frame = codec.readFrame(input);
+                if (!server.isRunning()) {
+                    logger.info("Server not running");
+                    disconnect();
+                    return;
+                }
+                byte[] reply = handler.handleBinary(frame, host);
+                output.write(reply, 0, reply.length);
+                output.flush();
+            } catch (IOException ioe) {
+                logger.error("[ClientConnection] Error! Connection lost!");
+                isOpen = false;
             }
         }
     }
 
-    private String cmdGet(String key) {
-    	/*
-            return msg should be
-            KVMessage + KEY + DELIMITER + VALUE (Optional)
-        */
-
-        try {
-            return server.getKV(key);
-        } catch (Exception e) {
-            return "GET_ERROR";
-        }
-
-    }
-
     /**
      * Method sends a TextMessage using this socket.
      *
      * @param msg the message that is to be sent.
      * @throws IOException some I/O error regarding the output stream
      */
-    public void sendMessage(TextMessage msg) throws IOException {
+    public synchronized void sendMessage(TextMessage msg) throws IOException {
         byte[] msgBytes = msg.getMsgBytes();
         output.write(msgBytes, 0, msgBytes.length);
         output.flush();
@@ -182,67 +184,57 @@ public class ClientConnection implements Runnable {
                 + msg.getMsg() + "'");
     }
 
-    private TextMessage receiveMessage() throws IOException {
+    /**
+     * Queue an invalidation. A client that lets PUSH_QUEUE of them pile up,
+     * or does not take one within PUSH_TIMEOUT, is disconnected, which
+     * flushes its near cache.
+     */
+    @Override
+    public void push(TextMessage msg) {
+        if (!pushQueue.offer(msg)) {
+            drop("too many invalidations queued");
+            return;
+        }
+        if (pushing.compareAndSet(false, true)) {
+            pushes.execute(this::drainPushes);
+        }
+    }
 
-        int index = 0;
-        byte[] msgBytes = null, tmp;
-        byte[] bufferBytes = new byte[BUFFER_SIZE];
-
-        /* read first char from stream */
-        byte read = (byte) input.read();
-        boolean reading = true;
-
-//		logger.info("First Char: " + read);
-//		Check if stream is closed (read returns -1)
-//		if (read == -1){
-//			TextMessage msg = new TextMessage("");
-//			return msg;
-//		}
-
-        while (/*read != 13  && */ read != 10 && read != -1 && reading) {/* CR, LF, error */
-            /* if buffer filled, copy to msg array */
-            if (index == BUFFER_SIZE) {
-                if (msgBytes == null) {
-                    tmp = new byte[BUFFER_SIZE];
-                    System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-                } else {
-                    tmp = new byte[msgBytes.length + BUFFER_SIZE];
-                    System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-                    System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-                            BUFFER_SIZE);
+    private void drainPushes() {
+        do {
+            TextMessage msg;
+            while ((msg = pushQueue.poll()) != null) {
+                ScheduledFuture<?> timeout = pushTimeouts.schedule(() -> drop("push timed out"),
+                        Constants.PUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+                try {
+                    sendMessage(msg);
+                } catch (IOException e) {
+                    logger.debug("[ClientConnection] Unable to push " + msg.getMsg());
+                } finally {
+                    timeout.cancel(false);
                 }
-
-                msgBytes = tmp;
-                bufferBytes = new byte[BUFFER_SIZE];
-                index = 0;
-            }
-
-            /* only read valid characters, i.e. letters and constants */
-            bufferBytes[index] = read;
-            index++;
-
-            /* stop reading is DROP_SIZE is reached */
-            if (msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-                reading = false;
             }
+            pushing.set(false);
+            // a push queued after the last poll may have seen pushing still set
+        } while (!pushQueue.isEmpty() && pushing.compareAndSet(false, true));
+    }
 
-            /* read next char from stream */
-            read = (byte) input.read();
-        }
-
-        if (msgBytes == null) {
-            tmp = new byte[index];
-            System.arraycopy(bufferBytes, 0, tmp, 0, index);
-        } else {
-            tmp = new byte[msgBytes.length + index];
-            System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-            System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
-        }
+    /**
+     * Disconnect a subscriber that does not read its invalidations.
+     */
+    private void drop(String reason) {
+        logger.warn("[ClientConnection] Dropping subscriber <"
+                + clientSocket.getInetAddress().getHostAddress() + ":"
+                + clientSocket.getPort() + ">: " + reason);
+        server.getSubscriptions().remove(this);
+        pushQueue.clear();
+        isOpen = false;
+        disconnect();
+    }
 
-        msgBytes = tmp;
+    private TextMessage receiveMessage() throws IOException {
 
-        /* build final String */
-        TextMessage msg = new TextMessage(msgBytes);
+        TextMessage msg = codec.readMessage(input);
         logger.info("[ClientConnection] RECEIVE \t<"
                 + clientSocket.getInetAddress().getHostAddress() + ":"
                 + clientSocket.getPort() + ">: '"
@@ -251,114 +243,6 @@ public class ClientConnection implements Runnable {
     }
 
 
-    private void handleClientRequest(String cmd, String key, String[] tokens, String msg_received) throws IOException {
-
-        TextMessage msg_send;
-        boolean WALsynch = false;
-
-        // checks for distributed servers
-        if (cmd.equals("Transferring_Data")) {
-            try {
-                String data = msg_received.split("\\" + DELIMITER, 2)[1];
-                logger.debug("[ClientConnection] receiving transferred data: " + data);
-                boolean result = cmdTransfer(data);
-                if (result) {
-                    msg_send = new TextMessage("Transferring_Data_SUCCESS");
-                } else {
-                    msg_send = new TextMessage("Transferring_Data_ERROR");
-                }
-            } catch (Exception e) {
-                logger.error("[ClientConnection] Exception in data transfer");
-                msg_send = new TextMessage("Transferring_Data_ERROR");
-            }
-
-        } else {
-
-            if (this.server.getServerState() == IKVServer.ServerStateType.STOPPED && !cmd.equals("RECOVER_REPLICATE")) {
-                // TODO: also needs to check if it is a ECS request
-
-                logger.debug("[ClientConnection] current server state is:" + this.server.getServerState().name());
-                msg_send = new TextMessage(KVMessage.StatusType.SERVER_STOPPED.name());
-
-            } else if (!server.isResponsible(key, cmd)) {
-
-                String hashRingStr = server.getHashRingStr();
-                logger.debug("[ClientConnection] Server not responsible!");
-                msg_send = new TextMessage(
-                        KVMessage.StatusType.SERVER_NOT_RESPONSIBLE.name() + Constants.DELIMITER + hashRingStr);
-
-            } else if (this.server.isWriteLocked() &&
-                    (cmd.equals(KVMessage.StatusType.PUT.name()) || cmd.equals(KVMessage.StatusType.PUT_REPLICATE.name()))
-            ) {
-                //TODO: PUT_REPLICATE
-                msg_send = new TextMessage(KVMessage.StatusType.SERVER_WRITE_LOCK.name());
-
-            } else {
-                switch (cmd) {
-                    case "RECOVER_REPLICATE":
-                    case "PUT_REPLICATE":
-                        logger.info("[ClientConnection] processing for PUT_REPLICATE");
-                    case "PUT":
-                        String value = "";
-                        String ts = "";
-                        int port = 0;
-                        if (tokens.length >= 3) {
-                            value = tokens[2];
-                            if (tokens.length > 3) {
-                                ts = tokens[3];
-                                port = Integer.parseInt(tokens[4]);
-                            }
-                        }
-                        try {
-
-                            logger.debug("[ClientConnection] ts = " + ts);
-
-                            String stat = cmdPut(cmd, key, value, ts, port);
-
-                            msg_send = new TextMessage(stat);
-                            if (stat.equals("PUT_UPDATE") || stat.equals("PUT_SUCCESS") || stat.equals("DELETE_ERROR")) {
-                                WALsynch = true;
-                            }
-
-                        } catch (Exception e) {
-                            logger.error("[ClientConnection] Error! " + e);
-                            e.printStackTrace();
-                            msg_send = new TextMessage("PUT_ERROR+exception");
-                        }
-                        break;
-                    case "GET":
-                        try {
-                            String value_return = cmdGet(key);
-
-                            if (value_return.equals("GET_ERROR")) {
-                                msg_send = new TextMessage("GET_ERROR");
-                            } else {
-                                msg_send = new TextMessage("GET_SUCCESS" + Constants.DELIMITER + key + Constants.DELIMITER + value_return);
-                            }
-                        } catch (Exception e) {
-                            msg_send = new TextMessage("GET_ERROR+exception");
-
-                        }
-                        break;
-
-                    default:
-                        msg_send = new TextMessage("CMD NOT RECOGNIZED: " + cmd);
-                }
-            }
-        }
-        sendMessage(msg_send);
-        if (WALsynch) {
-            //server.WAL_fsynch();
-        }
-    }
-
-    public boolean cmdTransfer(String transferred_data) {
-        // TODO
-        return server.receiveTransferredData(transferred_data);
-
-    }
-
-
     public void disconnect() {
         try {
             if (clientSocket != null) {
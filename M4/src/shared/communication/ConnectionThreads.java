@@ -0,0 +1,59 @@
+package shared.communication;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the threads running blocking connections: client connections in
+ * the per-connection front end and links to other servers. Virtual threads
+ * let thousands of mostly idle connections keep the blocking code style at
+ * the cost of a few hundred bytes of stack each.
+ *
+ * The build targets Java 8, so virtual threads are created reflectively and
+ * the factory falls back to platform threads on JVMs older than 21.
+ */
+public final class ConnectionThreads {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private ConnectionThreads() {
+    }
+
+    /**
+     * @return true if this JVM can create virtual threads
+     */
+    public static boolean virtualThreadsSupported() {
+        return virtualFactory("probe-") != null;
+    }
+
+    /**
+     * @param virtual use virtual threads if the JVM supports them
+     * @param prefix  thread names are the prefix followed by a counter
+     */
+    public static ThreadFactory factory(boolean virtual, String prefix) {
+        if (virtual) {
+            ThreadFactory factory = virtualFactory(prefix);
+            if (factory != null) {
+                return factory;
+            }
+            logger.warn("[ConnectionThreads] Virtual threads need Java 21, using platform threads");
+        }
+        AtomicLong id = new AtomicLong();
+        return r -> new Thread(r, prefix + id.getAndIncrement());
+    }
+
+    private static ThreadFactory virtualFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
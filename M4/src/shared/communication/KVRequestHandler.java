@@ -0,0 +1,406 @@
+package shared.communication;
+
+import app_kvServer.IKVServer;
+import app_kvServer.KVServer;
+import app_kvServer.KVServerMerkleTree;
+import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.messages.BinaryProtocol;
+import shared.messages.CorrelationId;
+import shared.messages.KVMessage;
+import shared.messages.MerkleMessage;
+import shared.messages.ReplicationBatch;
+import shared.messages.TextMessage;
+import shared.messages.WriteConsistency;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Processes the requests received by a KVServer, independently of the
+ * transport the request arrived on. One handler is shared by all connections.
+ */
+public class KVRequestHandler {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final String DELIMITER = Constants.DELIMITER;
+
+    private KVServer server;
+
+    public KVRequestHandler(KVServer server) {
+        this.server = server;
+    }
+
+    /**
+     * @param msg_received the request, without line delimiters
+     * @param host         address of the client, a PUT is identified by it
+     *                     with the port and timestamp the PUT carries
+     * @return the reply to send back to the client
+     */
+    public TextMessage handle(String msg_received, String host) {
+
+        if (CorrelationId.isTagged(msg_received)) {
+            long id = CorrelationId.idOf(msg_received);
+            TextMessage reply = handle(CorrelationId.untag(msg_received), host);
+            return new TextMessage(CorrelationId.tag(id, reply.getMsg()));
+        }
+
+        if (ReplicationBatch.isBatch(msg_received)) {
+            return handleBatch(msg_received);
+        }
+
+        if (ReplicationBatch.isReplication(msg_received)) {
+            return handleSync(msg_received);
+        }
+
+        if (MerkleMessage.isMerkle(msg_received)) {
+            return handleMerkle(msg_received);
+        }
+
+        String[] tokens = msg_received.split("\\" + DELIMITER);
+
+        if (tokens[0].equals("METRICS")) {
+            return new TextMessage("METRICS" + DELIMITER + server.getMetrics().report());
+        }
+
+        if (tokens[0].equals("HASHRING")) {
+            return new TextMessage("HASHRING" + DELIMITER + server.getHashRingStr());
+        }
+
+        if (tokens[0].equals(Subscriptions.SUBSCRIBE)) {
+            // the connection records the keys it reads from now on
+            return new TextMessage(Subscriptions.SUBSCRIBE + "_SUCCESS");
+        }
+
+        if (tokens.length < 2) {
+            return new TextMessage("CMD NOT RECOGNIZED: " + tokens[0]);
+        }
+
+        String cmd = tokens[0];
+        String key = tokens[1];
+
+        logger.debug("[KVRequestHandler] CMD: " + cmd);
+        logger.debug("[KVRequestHandler] key: " + key);
+
+        return handleClientRequest(cmd, key, tokens, msg_received, host);
+    }
+
+    private TextMessage handleClientRequest(String cmd, String key, String[] tokens, String msg_received,
+                                            String host) {
+
+        TextMessage msg_send;
+
+        // checks for distributed servers
+        if (cmd.equals("Transferring_Data")) {
+            try {
+                String data = msg_received.split("\\" + DELIMITER, 2)[1];
+                logger.debug("[KVRequestHandler] receiving transferred data: " + data);
+                boolean result = cmdTransfer(data);
+                if (result) {
+                    msg_send = new TextMessage("Transferring_Data_SUCCESS");
+                } else {
+                    msg_send = new TextMessage("Transferring_Data_ERROR");
+                }
+            } catch (Exception e) {
+                logger.error("[KVRequestHandler] Exception in data transfer");
+                msg_send = new TextMessage("Transferring_Data_ERROR");
+            }
+
+        } else {
+
+            KVMessage.StatusType rejection = reject(cmd, key);
+
+            if (rejection == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                msg_send = new TextMessage(rejection.name() + Constants.DELIMITER + server.getHashRingStr());
+
+            } else if (rejection != null) {
+                msg_send = new TextMessage(rejection.name());
+
+            } else {
+                switch (cmd) {
+                    case "RECOVER_REPLICATE":
+                    case "PUT_REPLICATE":
+                        logger.info("[KVRequestHandler] processing for PUT_REPLICATE");
+                    case "PUT":
+                        String value = "";
+                        String ts = "";
+                        int port = 0;
+                        WriteConsistency consistency = null;
+                        try {
+                            // a malformed PUT is answered with an error like a failed one
+                            if (tokens.length >= 3) {
+                                value = tokens[2];
+                                if (tokens.length > 3) {
+                                    ts = tokens[3];
+                                    port = Integer.parseInt(tokens[4]);
+                                }
+                                if (tokens.length > 5) {
+                                    consistency = WriteConsistency.parse(tokens[5], null);
+                                }
+                            }
+
+                            logger.debug("[KVRequestHandler] ts = " + ts);
+
+                            // a replicated PUT comes from a server, not from its client
+                            String stat = cmdPut(cmd, key, value, ts, cmd.equals("PUT") ? host : "", port,
+                                    consistency);
+
+                            msg_send = new TextMessage(stat);
+
+                        } catch (Exception e) {
+                            logger.error("[KVRequestHandler] Error! " + e);
+                            e.printStackTrace();
+                            msg_send = new TextMessage("PUT_ERROR+exception");
+                        }
+                        break;
+                    case "GET":
+                        try {
+                            String value_return = cmdGet(key);
+
+                            if (value_return.equals("GET_ERROR")) {
+                                msg_send = new TextMessage("GET_ERROR");
+                            } else {
+                                msg_send = new TextMessage("GET_SUCCESS" + Constants.DELIMITER + key + Constants.DELIMITER + value_return);
+                            }
+                        } catch (Exception e) {
+                            msg_send = new TextMessage("GET_ERROR+exception");
+
+                        }
+                        break;
+
+                    default:
+                        msg_send = new TextMessage("CMD NOT RECOGNIZED: " + cmd);
+                }
+            }
+        }
+        return msg_send;
+    }
+
+    /**
+     * Apply the records of a replication batch in order, stopping at the
+     * first one refused. The records of a chained batch are passed on down
+     * the chain, and acknowledged once the rest of the chain applied them.
+     *
+     * @return acknowledgement of the last record applied
+     */
+    private TextMessage handleBatch(String msg_received) {
+        ReplicationBatch batch;
+        try {
+            batch = ReplicationBatch.decode(msg_received);
+        } catch (IllegalArgumentException e) {
+            logger.error("[KVRequestHandler] " + e.getMessage());
+            return new TextMessage(ReplicationBatch.ack(-1));
+        }
+        List<ReplicationBatch.Record> accepted = new ArrayList<>(batch.size());
+        for (ReplicationBatch.Record r : batch.getRecords()) {
+            KVMessage.StatusType rejection = reject(r.cmd, r.key);
+            if (rejection != null) {
+                logger.warn("[KVRequestHandler] Replicated " + r.key + " refused: " + rejection);
+                break;
+            }
+            accepted.add(r);
+        }
+        long applied = batch.getFirst() - 1;
+        try {
+            for (KVMessage.StatusType status : server.applyPuts(accepted)) {
+                // deleting a key the replica does not have leaves it as wanted,
+                // a PUT already handled is sent again by a catch-up
+                if (status != null && status != KVMessage.StatusType.PUT_SUCCESS && status != KVMessage.StatusType.PUT_UPDATE
+                        && status != KVMessage.StatusType.DELETE_SUCCESS && status != KVMessage.StatusType.DELETE_ERROR) {
+                    logger.warn("[KVRequestHandler] Replicated PUT " + (applied + 1) + " failed: " + status);
+                    break;
+                }
+                applied++;
+            }
+        } catch (Exception e) {
+            logger.error("[KVRequestHandler] Error! " + e);
+        }
+        if (batch.isChained() && applied >= batch.getFirst()) {
+            int local = (int) (applied - batch.getFirst() + 1);
+            applied = batch.getFirst() - 1 + server.relayDownChain(accepted.subList(0, local));
+        }
+        if (batch.getSynced() != ReplicationBatch.UNKNOWN) {
+            server.advanceReplicaPosition(batch.getSource(), batch.getSynced());
+        }
+        return new TextMessage(ReplicationBatch.ack(applied));
+    }
+
+    /**
+     * Tell a coordinator where this replica catches up from, or drop its
+     * range for the snapshot it sends next.
+     */
+    private TextMessage handleSync(String msg_received) {
+        String[] tokens = msg_received.split("\\" + DELIMITER);
+        try {
+            int source = Integer.parseInt(tokens[1]);
+            if (tokens[0].equals(ReplicationBatch.SYNC)) {
+                server.catchingUp(source, tokens.length > 2 ? Long.parseLong(tokens[2]) : ReplicationBatch.UNKNOWN);
+                return new TextMessage(ReplicationBatch.from(server.getReplicaPosition(source)));
+            }
+            if (tokens.length == 4 && server.installSnapshot(source, new String[]{tokens[2], tokens[3]})) {
+                return new TextMessage(ReplicationBatch.SNAPSHOT_SUCCESS);
+            }
+        } catch (NumberFormatException e) {
+            logger.error("[KVRequestHandler] Malformed replication request: " + msg_received);
+        }
+        return new TextMessage(ReplicationBatch.SNAPSHOT_ERROR);
+    }
+
+    /**
+     * Answer a coordinator comparing the Merkle tree of its range with the
+     * one of this replica.
+     */
+    private TextMessage handleMerkle(String msg_received) {
+        try {
+            MerkleMessage.Request request = MerkleMessage.decode(msg_received);
+            KVServerMerkleTree tree = server.getMerkleTree(request.source, request.range);
+            if (tree == null) {
+                logger.warn("[KVRequestHandler] Not a replica of the range of " + request.source);
+            } else if (request.type.equals(MerkleMessage.HASHES)) {
+                return new TextMessage(MerkleMessage.hashesReply(tree.getHashes(request.ids)));
+            } else {
+                Map<String, Long> digests = new HashMap<>();
+                for (int bucket : request.ids) {
+                    digests.putAll(tree.getBucket(bucket));
+                }
+                return new TextMessage(MerkleMessage.keysReply(digests));
+            }
+        } catch (IllegalArgumentException e) {
+            logger.error("[KVRequestHandler] " + e.getMessage());
+        }
+        return new TextMessage(MerkleMessage.ERROR);
+    }
+
+    /**
+     * @param body a binary request frame, without its length prefix
+     * @param host address of the client
+     * @return the encoded reply frame
+     * @throws IOException if the frame is malformed, the connection should be closed
+     */
+    public byte[] handleBinary(ByteBuffer body, String host) throws IOException {
+        BinaryProtocol.Frame request = BinaryProtocol.decodeRequest(body);
+        String cmd = BinaryProtocol.commandOf(request.opcode);
+        if (cmd == null) {
+            throw new IOException("Unknown opcode " + request.opcode);
+        }
+        logger.debug("[KVRequestHandler] binary CMD: " + cmd);
+
+        if (request.opcode == BinaryProtocol.OP_METRICS) {
+            return BinaryProtocol.encodeMetricsReply(request.id, server.getMetrics().report());
+        }
+
+        KVMessage.StatusType rejection = reject(cmd, request.key);
+        if (rejection != null) {
+            return BinaryProtocol.encodeReply(request.id, rejection, "",
+                    server.getHashRing().getActiveNodes().values());
+        }
+
+        if (request.opcode == BinaryProtocol.OP_GET) {
+            String value = cmdGet(request.key);
+            if (value == null || value.equals("GET_ERROR")) {
+                return BinaryProtocol.encodeReply(request.id, KVMessage.StatusType.GET_ERROR, "", null);
+            }
+            return BinaryProtocol.encodeReply(request.id, KVMessage.StatusType.GET_SUCCESS, value, null);
+        }
+
+        String stat = cmdPut(cmd, request.key, request.value, Long.toString(request.timestamp),
+                cmd.equals("PUT") ? host : "", request.port, null);
+        KVMessage.StatusType status = KVMessage.StatusType.valueOf(stat.split(" ")[0]);
+        return BinaryProtocol.encodeReply(request.id, status, "", null);
+    }
+
+    /**
+     * @return the status refusing the request in the current server state,
+     * or null if the request can be processed
+     */
+    private KVMessage.StatusType reject(String cmd, String key) {
+        if (this.server.getServerState() == IKVServer.ServerStateType.STOPPED && !cmd.equals("RECOVER_REPLICATE")) {
+            // TODO: also needs to check if it is a ECS request
+
+            logger.debug("[KVRequestHandler] current server state is:" + this.server.getServerState().name());
+            return KVMessage.StatusType.SERVER_STOPPED;
+
+        } else if (!server.isResponsible(key, cmd)) {
+
+            logger.debug("[KVRequestHandler] Server not responsible!");
+            return KVMessage.StatusType.SERVER_NOT_RESPONSIBLE;
+
+        } else if (this.server.isWriteLocked() &&
+                (cmd.equals(KVMessage.StatusType.PUT.name()) || cmd.equals(KVMessage.StatusType.PUT_REPLICATE.name()))
+        ) {
+            //TODO: PUT_REPLICATE
+            return KVMessage.StatusType.SERVER_WRITE_LOCK;
+        }
+        return null;
+    }
+
+    /**
+     * @param consistency write consistency asked by the client, null for the default of the server
+     */
+    private String cmdPut(String cmd, String key, String value, String ts, String clientHost, int clientPort,
+                          WriteConsistency consistency) {
+    	/*
+    		return msg should be a StatusType string
+    	 */
+
+        boolean inStorage = server.inStorage(key);
+
+        try {
+            KVMessage.StatusType status = server.putKV(key, value, cmd, Long.parseLong(ts), clientHost, clientPort,
+                    consistency);
+
+            if (status != null) {
+                return status.name();
+            } else if (inStorage && value.equals("")) {
+                return "DELETE_SUCCESS";
+            } else if (inStorage) {
+                return "PUT_UPDATE";
+            } else if (value.equals("")) {
+                return "DELETE_ERROR";
+            } else {
+                return "PUT_SUCCESS";
+            }
+
+
+        } catch (Exception e) {
+            logger.error("[KVRequestHandler] Error! " + e);
+            e.printStackTrace();
+            e.getCause();
+            if (value.equals("")) {
+                return "DELETE_ERROR + " + e;
+            } else {
+                return "PUT_ERROR + " + e;
+            }
+        }
+    }
+
+    private String cmdGet(String key) {
+    	/*
+            return msg should be
+            KVMessage + KEY + DELIMITER + VALUE (Optional)
+        */
+
+        if (!server.isReadable(key)) {
+            // a replica catching up, the client asks the coordinator instead
+            server.getMetrics().increment("replica_reads_refused");
+            return "GET_ERROR";
+        }
+        try {
+            return server.getKV(key);
+        } catch (Exception e) {
+            return "GET_ERROR";
+        }
+
+    }
+
+    public boolean cmdTransfer(String transferred_data) {
+        // TODO
+        return server.receiveTransferredData(transferred_data);
+
+    }
+}
@@ -0,0 +1,218 @@
+package shared.communication;
+
+import shared.Constants;
+import shared.messages.TextMessage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Splits the byte stream of a connection into messages. Every message is
+ * terminated by LF, followed by a CR that is dropped from the next message.
+ * Bytes are read in bulk into a reusable buffer and delimiters are searched
+ * in place, so a message is copied only once, into its String.
+ * Used by the server, the client and the replication links alike.
+ * After the binary protocol handshake the same buffer is read as
+ * length-prefixed frames instead.
+ */
+public class MessageCodec {
+
+    private static final byte LINE_FEED = 0x0A;
+    private static final byte RETURN = 0x0D;
+
+    private byte[] buffer;
+    private int start = 0; // first byte of the next message
+    private int scanned = 0; // bytes before this index contain no delimiter
+    private int end = 0; // end of the received bytes
+    private int maxMessageSize;
+    private boolean dropReturn = false; // CR trailing the last text message, before the first frame
+
+    public MessageCodec() {
+        this(8 * Constants.BUFFER_SIZE, Constants.MAX_MESSAGE_SIZE);
+    }
+
+    public MessageCodec(int initialSize, int maxMessageSize) {
+        this.buffer = new byte[initialSize];
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * @return the next complete message in the buffer, or null if more bytes are needed
+     */
+    public String nextMessage() {
+        for (int i = Math.max(scanned, start); i < end; i++) {
+            if (buffer[i] == LINE_FEED) {
+                int from = start;
+                int to = i;
+                while (from < to && buffer[from] == RETURN) {
+                    from++;
+                }
+                while (to > from && buffer[to - 1] == RETURN) {
+                    to--;
+                }
+                String msg = new String(buffer, from, to - from);
+                start = i + 1;
+                scanned = start;
+                return msg;
+            }
+        }
+        if (start == end) {
+            start = end = 0;
+        }
+        scanned = end;
+        return null;
+    }
+
+    /**
+     * Switch from text messages to length-prefixed binary frames, after the
+     * binary protocol handshake.
+     */
+    public void switchToBinary() {
+        dropReturn = true;
+    }
+
+    /**
+     * @return the body of the next complete binary frame in the buffer,
+     * or null if more bytes are needed
+     * @throws IOException if the frame is malformed or too large
+     */
+    public ByteBuffer nextFrame() throws IOException {
+        if (dropReturn) {
+            if (start == end) {
+                return null;
+            }
+            if (buffer[start] == RETURN) {
+                start++;
+            }
+            dropReturn = false;
+        }
+
+        long length = 0;
+        int pos = start;
+        for (int shift = 0; ; shift += 7) {
+            if (pos == end) {
+                return null;
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed frame length");
+            }
+            byte b = buffer[pos++];
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > maxMessageSize) {
+            throw new IOException("Frame exceeds " + maxMessageSize + " bytes");
+        }
+        if (end - pos < length) {
+            return null;
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOfRange(buffer, pos, pos + (int) length));
+        start = pos + (int) length;
+        scanned = start;
+        if (start == end) {
+            start = end = scanned = 0;
+        }
+        return frame;
+    }
+
+    /**
+     * Block until the next binary frame arrives on the stream.
+     *
+     * @throws EOFException if the stream ends before a complete frame
+     */
+    public ByteBuffer readFrame(InputStream input) throws IOException {
+        ByteBuffer frame;
+        while ((frame = nextFrame()) == null) {
+            ensureSpace();
+            int read = input.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                throw new EOFException("Connection closed by peer");
+            }
+            end += read;
+        }
+        return frame;
+    }
+
+    /**
+     * Block until the next message arrives on the stream.
+     *
+     * @throws EOFException if the stream ends before a complete message
+     */
+    public TextMessage readMessage(InputStream input) throws IOException {
+        String msg;
+        while ((msg = nextMessage()) == null) {
+            ensureSpace();
+            int read = input.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                throw new EOFException("Connection closed by peer");
+            }
+            end += read;
+        }
+        return new TextMessage(msg);
+    }
+
+    /**
+     * @return the next message if it arrived already, null if reading it would block
+     * @throws EOFException if the stream ended
+     */
+    public TextMessage pollMessage(InputStream input) throws IOException {
+        String msg;
+        while ((msg = nextMessage()) == null) {
+            int available = input.available();
+            if (available <= 0) {
+                return null;
+            }
+            ensureSpace();
+            int read = input.read(buffer, end, Math.min(available, buffer.length - end));
+            if (read < 0) {
+                throw new EOFException("Connection closed by peer");
+            }
+            end += read;
+        }
+        return new TextMessage(msg);
+    }
+
+    /**
+     * Read the bytes available on a non-blocking channel.
+     *
+     * @return number of bytes read, -1 at the end of the stream
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        ensureSpace();
+        int read = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+        if (read > 0) {
+            end += read;
+        }
+        return read;
+    }
+
+    /**
+     * Make room after the received bytes, dropping consumed messages first
+     * and growing the buffer only for a message larger than it.
+     */
+    private void ensureSpace() throws IOException {
+        if (end < buffer.length) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+            return;
+        }
+        if (buffer.length >= maxMessageSize) {
+            throw new IOException("Message exceeds " + maxMessageSize + " bytes");
+        }
+        byte[] larger = new byte[Math.min(buffer.length * 2, maxMessageSize)];
+        System.arraycopy(buffer, 0, larger, 0, end);
+        buffer = larger;
+    }
+}
@@ -0,0 +1,234 @@
+package shared.communication;
+
+import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.messages.BinaryProtocol;
+import shared.messages.CorrelationId;
+import shared.messages.TextMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * A non-blocking client connection served by a SelectorServer. Untagged
+ * requests are processed one at a time and answered in order, requests with
+ * a correlation id and binary frames may be answered out of order. All methods are called from
+ * the selector thread owning the connection.
+ */
+class NioConnection implements Subscriptions.Subscriber {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int MAX_PENDING = 64; // stop reading when this many requests wait
+    private static final int MAX_IN_FLIGHT = 64; // tagged requests processed concurrently
+
+    private SelectorServer frontEnd;
+    private SelectorServer.IOLoop loop;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private final String host; // address of the client
+
+    private MessageCodec codec = new MessageCodec();
+    private Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private Queue<Object> pending = new ArrayDeque<>(); // text messages or binary frames
+    private boolean binary = false; // the client switched to the binary protocol
+    private int inFlight = 0;
+    private boolean ordered = false; // an untagged request is being processed
+    private boolean open = true;
+    private boolean subscribed = false; // the client keeps a near cache
+
+    NioConnection(SelectorServer frontEnd, SelectorServer.IOLoop loop, SocketChannel channel, SelectionKey key) {
+        this.frontEnd = frontEnd;
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.host = channel.socket().getInetAddress().getHostAddress();
+    }
+
+    SelectorServer.IOLoop getLoop() {
+        return loop;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    void greet() {
+        write(new TextMessage("Connection established: "
+                + channel.socket().getLocalAddress() + " / "
+                + channel.socket().getLocalPort()).getMsgBytes());
+    }
+
+    void onReadable() {
+        try {
+            if (codec.fill(channel) < 0) {
+                close();
+                return;
+            }
+        } catch (IOException e) {
+            logger.error("[NioConnection] Error! Connection lost! " + e.getMessage());
+            close();
+            return;
+        }
+
+        try {
+            String request;
+            while (!binary && (request = codec.nextMessage()) != null) {
+                request = request.trim();
+                if (request.equals(BinaryProtocol.HANDSHAKE)) {
+                    if (subscribed) {
+                        subscribed = false; // invalidations are text messages
+                        frontEnd.getSubscriptions().remove(this);
+                    }
+                    write(new TextMessage(BinaryProtocol.HANDSHAKE).getMsgBytes());
+                    codec.switchToBinary();
+                    binary = true;
+                } else if (!request.isEmpty()) {
+                    subscribe(request);
+                    pending.add(request);
+                }
+            }
+            ByteBuffer frame;
+            while (binary && (frame = codec.nextFrame()) != null) {
+                pending.add(frame);
+            }
+        } catch (IOException e) {
+            logger.error("[NioConnection] Error! Malformed frame, closing connection: " + e.getMessage());
+            close();
+            return;
+        }
+
+        dispatchNext();
+    }
+
+    /**
+     * Record the key of a GET before it is read, so a PUT racing with the
+     * GET still invalidates the value the client is about to cache.
+     */
+    private void subscribe(String request) {
+        if (request.equals(Subscriptions.SUBSCRIBE)) {
+            subscribed = true;
+        } else if (subscribed) {
+            String key = Subscriptions.keyOfGet(CorrelationId.untag(request));
+            if (key != null) {
+                frontEnd.getSubscriptions().subscribe(this, key);
+            }
+        }
+    }
+
+    /**
+     * Queue an invalidation, or close the connection of a client that lets
+     * PUSH_QUEUE writes pile up, which flushes its near cache.
+     */
+    @Override
+    public void push(TextMessage msg) {
+        byte[] bytes = msg.getMsgBytes();
+        loop.execute(() -> {
+            if (writeQueue.size() >= Constants.PUSH_QUEUE) {
+                logger.warn("[NioConnection] Dropping a subscriber that does not read its invalidations");
+                close();
+                return;
+            }
+            write(bytes);
+        });
+    }
+
+    /**
+     * Hand pending requests to the worker pool. Binary frames and requests
+     * tagged with a correlation id run concurrently, an untagged request waits for all
+     * earlier ones and holds back later ones, so its reply stays in order.
+     */
+    void dispatchNext() {
+        if (!open) {
+            return;
+        }
+        while (!pending.isEmpty() && !ordered) {
+            Object request = pending.peek();
+            boolean tagged = request instanceof ByteBuffer || CorrelationId.isTagged((String) request);
+            if (tagged ? inFlight >= MAX_IN_FLIGHT : inFlight > 0) {
+                break;
+            }
+            if (!frontEnd.dispatch(this, request)) {
+                loop.retryLater(this);
+                break;
+            }
+            pending.poll();
+            inFlight++;
+            ordered = !tagged;
+        }
+        updateInterest();
+    }
+
+    /**
+     * Called once a worker finished a request of this connection.
+     */
+    void complete(byte[] reply) {
+        inFlight--;
+        ordered = false;
+        if (reply != null) {
+            write(reply);
+        }
+        dispatchNext();
+    }
+
+    private void write(byte[] bytes) {
+        if (!open) {
+            return;
+        }
+        writeQueue.add(ByteBuffer.wrap(bytes));
+        onWritable();
+    }
+
+    void onWritable() {
+        try {
+            ByteBuffer head;
+            while ((head = writeQueue.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    break;
+                }
+                writeQueue.poll();
+            }
+        } catch (IOException e) {
+            logger.error("[NioConnection] Error! Unable to write, closing connection");
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (!open || !key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (pending.size() < MAX_PENDING) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!writeQueue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        loop.closed(this);
+        if (subscribed) {
+            frontEnd.getSubscriptions().remove(this);
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("[NioConnection] Unable to tear down connection!", e);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package shared.communication;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Paces the retries of a client or of a replication link. Each retry waits
+ * a random time between 0 and an exponentially growing cap (full jitter),
+ * so clients failing together do not retry together, and an operation
+ * gives up after a number of attempts or once its deadline has passed.
+ *
+ * Retries also draw from a budget shared by all operations of the owner:
+ * every retry takes one token and every successful exchange gives back a
+ * fraction of one, so a failing server sees at most that fraction of extra
+ * load once the initial tokens are spent.
+ */
+public class RetryPolicy {
+
+    private final long baseDelay;
+    private final long maxDelay;
+    private final int maxAttempts;
+    private final long deadline;
+    private final double maxTokens;
+    private final double tokenRatio;
+
+    private double tokens;
+
+    /**
+     * @param baseDelay   ms cap of the first backoff, doubled for every retry
+     * @param maxDelay    ms, largest backoff cap
+     * @param maxAttempts retries of one operation
+     * @param deadline    ms after the first failure of an operation before it gives up
+     * @param maxTokens   retries allowed in a burst, the budget starts full
+     * @param tokenRatio  tokens given back by every successful exchange
+     */
+    public RetryPolicy(long baseDelay, long maxDelay, int maxAttempts, long deadline,
+                       double maxTokens, double tokenRatio) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = maxAttempts;
+        this.deadline = deadline;
+        this.maxTokens = maxTokens;
+        this.tokenRatio = tokenRatio;
+        this.tokens = maxTokens;
+    }
+
+    /**
+     * @return the retry state of an operation that just failed
+     */
+    public Retry start() {
+        return new Retry(System.currentTimeMillis() + deadline);
+    }
+
+    /**
+     * Record a successful exchange, refilling the budget.
+     */
+    public synchronized void succeeded() {
+        tokens = Math.min(maxTokens, tokens + tokenRatio);
+    }
+
+    /**
+     * @return retries left in the budget
+     */
+    public synchronized double getTokens() {
+        return tokens;
+    }
+
+    private synchronized boolean takeToken() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Retries of a single operation.
+     */
+    public class Retry {
+
+        private final long end;
+        private int attempts = 0;
+
+        private Retry(long end) {
+            this.end = end;
+        }
+
+        /**
+         * Wait before the next attempt.
+         *
+         * @return false if the operation should give up: no attempts or
+         * budget left, or the deadline passed
+         */
+        public boolean backoff() throws InterruptedException {
+            long left = end - System.currentTimeMillis();
+            if (attempts >= maxAttempts || left <= 0 || !takeToken()) {
+                return false;
+            }
+            long cap = Math.min(maxDelay, baseDelay << Math.min(attempts, 20));
+            attempts++;
+            long delay = Math.min(left, ThreadLocalRandom.current().nextLong(cap + 1));
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            return true;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+}
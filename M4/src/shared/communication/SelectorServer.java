@@ -0,0 +1,275 @@
+package shared.communication;
+
+import app_kvServer.KVServer;
+import org.apache.log4j.Logger;
+import shared.messages.ReplicationBatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-driven network front end of a KVServer. Connections are accepted on
+ * the calling thread and spread over a fixed number of selector threads that
+ * do all socket I/O without blocking. Decoded requests are processed by a
+ * bounded worker pool, so the thread count does not depend on the number of
+ * connected clients. PUTs forwarded by other servers get threads of their
+ * own: a client PUT occupies a worker until its replicas acknowledge it, so
+ * with every worker of two servers waiting on each other, the forwarded
+ * PUTs would never run.
+ */
+public class SelectorServer implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final long RETRY_INTERVAL = 10; // ms before re-submitting rejected requests
+
+    private KVServer server;
+    private KVRequestHandler handler;
+    private ServerSocketChannel serverChannel;
+
+    private IOLoop[] loops;
+    private ThreadPoolExecutor workers;
+    private ExecutorService peers; // one thread per replication link in use
+    private volatile boolean running;
+    private int nextLoop = 0;
+
+    /**
+     * @param ioThreads     number of selector threads
+     * @param workerThreads number of threads processing requests
+     * @param queueSize     max number of requests waiting for a worker
+     */
+    public SelectorServer(KVServer server, KVRequestHandler handler, ServerSocketChannel serverChannel,
+                          int ioThreads, int workerThreads, int queueSize) throws IOException {
+        this.server = server;
+        this.handler = handler;
+        this.serverChannel = serverChannel;
+
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                r -> new Thread(r, "kv-worker-" + workerId.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        AtomicInteger peerId = new AtomicInteger();
+        this.peers = Executors.newCachedThreadPool(
+                r -> new Thread(r, "kv-peer-" + peerId.incrementAndGet()));
+
+        this.loops = new IOLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IOLoop(i);
+        }
+    }
+
+    /**
+     * Accepts connections until the server socket is closed.
+     */
+    public void run() {
+        running = true;
+        for (IOLoop loop : loops) {
+            loop.thread.start();
+        }
+
+        while (running && server.isRunning()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                IOLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.execute(() -> loop.register(channel));
+
+                logger.info("[SelectorServer] Connected to "
+                        + channel.socket().getInetAddress().getHostName()
+                        + " on port " + channel.socket().getPort());
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                logger.error("[SelectorServer] Error! Unable to establish connection.", e);
+            }
+        }
+        stop();
+        logger.info("[SelectorServer] Front end stopped.");
+    }
+
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.error("[SelectorServer] Unable to close server channel", e);
+        }
+        for (IOLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdownNow();
+        peers.shutdownNow();
+    }
+
+    public int getConnectionCount() {
+        int count = 0;
+        for (IOLoop loop : loops) {
+            count += loop.connectionCount;
+        }
+        return count;
+    }
+
+    Subscriptions getSubscriptions() {
+        return server.getSubscriptions();
+    }
+
+    /**
+     * Submit a request of the connection to the worker pool.
+     *
+     * @param request a text message or a binary frame
+     * @return false if the pool is saturated, the request should be retried later
+     */
+    boolean dispatch(NioConnection connection, Object request) {
+        Executor executor = isReplication(request) ? peers : workers;
+        try {
+            executor.execute(() -> {
+                if (!server.isRunning()) {
+                    logger.info("[SelectorServer] Server not running");
+                    connection.getLoop().execute(connection::close);
+                    return;
+                }
+                byte[] reply;
+                try {
+                    if (request instanceof ByteBuffer) {
+                        reply = handler.handleBinary((ByteBuffer) request, connection.getHost());
+                    } else {
+                        reply = handler.handle((String) request, connection.getHost()).getMsgBytes();
+                    }
+                } catch (IOException e) {
+                    logger.error("[SelectorServer] Malformed binary request, closing connection", e);
+                    connection.getLoop().execute(connection::close);
+                    return;
+                } catch (RuntimeException e) {
+                    // without a reply the replies of the next requests would answer the wrong ones
+                    logger.error("[SelectorServer] Error handling " + request + ", closing connection", e);
+                    connection.getLoop().execute(connection::close);
+                    return;
+                }
+                byte[] toSend = reply;
+                connection.getLoop().execute(() -> connection.complete(toSend));
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private static boolean isReplication(Object request) {
+        return request instanceof String
+                && (((String) request).startsWith("PUT_REPLICATE")
+                || ((String) request).startsWith("RECOVER_REPLICATE")
+                || ReplicationBatch.isReplication((String) request));
+    }
+
+    /**
+     * A selector thread owning a subset of the connections. All state of
+     * these connections is only touched from this thread.
+     */
+    class IOLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<NioConnection> retries = new HashSet<>();
+        private volatile int connectionCount = 0;
+
+        IOLoop(int id) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "kv-io-" + id);
+            this.thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void retryLater(NioConnection connection) {
+            retries.add(connection);
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(SelectorServer.this, this, channel, key);
+                key.attach(connection);
+                connectionCount++;
+                connection.greet();
+            } catch (IOException e) {
+                logger.error("[SelectorServer] Unable to register connection", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        void closed(NioConnection connection) {
+            retries.remove(connection);
+            connectionCount--;
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    if (retries.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.select(RETRY_INTERVAL);
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    if (!retries.isEmpty()) {
+                        List<NioConnection> toRetry = new ArrayList<>(retries);
+                        retries.clear();
+                        for (NioConnection connection : toRetry) {
+                            connection.dispatchNext();
+                        }
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                } catch (IOException | ClosedSelectorException e) {
+                    logger.error("[SelectorServer] Selector failure", e);
+                    break;
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((NioConnection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("[SelectorServer] Unable to close selector", e);
+            }
+        }
+    }
+}
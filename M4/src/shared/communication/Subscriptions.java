@@ -0,0 +1,128 @@
+package shared.communication;
+
+import org.apache.log4j.Logger;
+import shared.Constants;
+import shared.messages.TextMessage;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keys read by connections whose client keeps a near cache. A connection
+ * subscribes with the SUBSCRIBE command, after which every key it GETs is
+ * recorded, and a PUT of that key pushes INVALIDATE+key to it. A change of
+ * the hash ring may move any key, so it pushes INVALIDATE_ALL.
+ *
+ * A subscription ends with its first invalidation, the next GET renews it.
+ * A connection holding more than SUBSCRIPTION_LIMIT keys is sent
+ * INVALIDATE_ALL and starts over, which keeps the registry bounded when the
+ * client evicts entries without telling the server.
+ */
+public class Subscriptions {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final String SUBSCRIBE = "SUBSCRIBE";
+    public static final String INVALIDATE = "INVALIDATE";
+    public static final String INVALIDATE_ALL = "INVALIDATE_ALL";
+
+    /**
+     * A connection that can be sent invalidations.
+     */
+    public interface Subscriber {
+        /**
+         * Queue a message for the client, without blocking the caller. A
+         * client that does not keep up is disconnected.
+         */
+        void push(TextMessage msg);
+    }
+
+    private Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private Map<Subscriber, Set<String>> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Record that the connection is about to read the key.
+     */
+    public void subscribe(Subscriber subscriber, String key) {
+        Set<String> own = keys.computeIfAbsent(subscriber, s -> ConcurrentHashMap.newKeySet());
+        own.add(key);
+        subscribers.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        if (own.size() > Constants.SUBSCRIPTION_LIMIT) {
+            logger.debug("[Subscriptions] Too many keys subscribed by one connection, resetting them");
+            remove(subscriber);
+            subscriber.push(new TextMessage(INVALIDATE_ALL));
+        }
+    }
+
+    /**
+     * Push an invalidation to the connections that read the key.
+     */
+    public void invalidate(String key) {
+        Set<Subscriber> readers = subscribers.remove(key);
+        if (readers == null) {
+            return;
+        }
+        TextMessage msg = new TextMessage(INVALIDATE + Constants.DELIMITER + key);
+        for (Subscriber subscriber : readers) {
+            Set<String> own = keys.get(subscriber);
+            if (own != null) {
+                own.remove(key);
+            }
+            subscriber.push(msg);
+        }
+    }
+
+    /**
+     * Push INVALIDATE_ALL to every subscribed connection.
+     */
+    public void invalidateAll() {
+        TextMessage msg = new TextMessage(INVALIDATE_ALL);
+        for (Subscriber subscriber : keys.keySet()) {
+            Set<String> own = keys.get(subscriber);
+            if (own != null) {
+                own.clear();
+            }
+            subscriber.push(msg);
+        }
+        subscribers.clear();
+    }
+
+    /**
+     * Forget a closed connection.
+     */
+    public void remove(Subscriber subscriber) {
+        Set<String> own = keys.remove(subscriber);
+        if (own == null) {
+            return;
+        }
+        for (String key : own) {
+            Set<Subscriber> readers = subscribers.get(key);
+            if (readers != null) {
+                readers.remove(subscriber);
+                if (readers.isEmpty()) {
+                    subscribers.remove(key, readers);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of subscribed connections
+     */
+    public int getSubscriberCount() {
+        return keys.size();
+    }
+
+    /**
+     * @param request an untagged text request
+     * @return the key of a GET request, null for any other request
+     */
+    static String keyOfGet(String request) {
+        if (!request.startsWith("GET" + Constants.DELIMITER)) {
+            return null;
+        }
+        String[] tokens = request.split("\\" + Constants.DELIMITER);
+        return tokens.length > 1 ? tokens[1] : null;
+    }
+}
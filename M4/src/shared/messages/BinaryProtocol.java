@@ -0,0 +1,196 @@
+package shared.messages;
+
+import ecs.ECSHashRing;
+import ecs.ECSNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Compact binary encoding of client requests and server replies, used
+ * instead of the text protocol once a client sent HANDSHAKE on a new
+ * connection and the server acknowledged it.
+ *
+ * Frame:   varint body length, body
+ * Request: opcode, varint id, key, value, varint timestamp, varint client port
+ * Reply:   REPLY | status ordinal, varint id, value
+ *          [, varint node count, (name, host, varint port) per node]
+ *          where the hash ring follows only for SERVER_NOT_RESPONSIBLE
+ * Strings are a varint byte length followed by raw UTF-8 bytes, so keys
+ * and values need no escaping.
+ */
+public final class BinaryProtocol {
+
+    public static final String HANDSHAKE = "PROTOCOL+BINARY";
+
+    public static final byte OP_GET = 1;
+    public static final byte OP_PUT = 2;
+    public static final byte OP_PUT_REPLICATE = 3;
+    public static final byte OP_RECOVER_REPLICATE = 4;
+    public static final byte OP_METRICS = 5;
+
+    public static final byte OP_REPLY = (byte) 0x80;
+
+    /**
+     * A decoded request or reply. Only the fields of its opcode are set.
+     */
+    public static class Frame {
+        public byte opcode;
+        public long id;
+        public String key = "";
+        public String value = "";
+        public long timestamp;
+        public int port;
+        public KVMessage.StatusType status;
+        public ECSHashRing hashRing;
+    }
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * @return the text protocol command of a request opcode, or null if unknown
+     */
+    public static String commandOf(byte opcode) {
+        switch (opcode) {
+            case OP_GET:
+                return "GET";
+            case OP_PUT:
+                return "PUT";
+            case OP_PUT_REPLICATE:
+                return "PUT_REPLICATE";
+            case OP_RECOVER_REPLICATE:
+                return "RECOVER_REPLICATE";
+            case OP_METRICS:
+                return "METRICS";
+            default:
+                return null;
+        }
+    }
+
+    public static byte[] encodeRequest(byte opcode, long id, String key, String value, long timestamp, int port) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16 + key.length() + value.length());
+        body.write(opcode);
+        writeVarLong(body, id);
+        writeString(body, key);
+        writeString(body, value);
+        writeVarLong(body, timestamp);
+        writeVarLong(body, port);
+        return frame(body);
+    }
+
+    public static Frame decodeRequest(ByteBuffer body) throws IOException {
+        try {
+            Frame frame = new Frame();
+            frame.opcode = body.get();
+            frame.id = readVarLong(body);
+            frame.key = readString(body);
+            frame.value = readString(body);
+            frame.timestamp = readVarLong(body);
+            frame.port = (int) readVarLong(body);
+            return frame;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated binary request");
+        }
+    }
+
+    /**
+     * @param hashRing nodes of the hash ring, sent with SERVER_NOT_RESPONSIBLE only
+     */
+    public static byte[] encodeReply(long id, KVMessage.StatusType status, String value, Collection<ECSNode> hashRing) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16 + (value == null ? 0 : value.length()));
+        body.write(OP_REPLY | status.ordinal());
+        writeVarLong(body, id);
+        writeString(body, value == null ? "" : value);
+        if (status == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+            writeVarLong(body, hashRing.size());
+            for (ECSNode node : hashRing) {
+                writeString(body, node.getNodeName());
+                writeString(body, node.getNodeHost());
+                writeVarLong(body, node.getNodePort());
+            }
+        }
+        return frame(body);
+    }
+
+    public static byte[] encodeMetricsReply(long id, String report) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16 + report.length());
+        body.write(OP_METRICS);
+        writeVarLong(body, id);
+        writeString(body, report);
+        return frame(body);
+    }
+
+    public static Frame decodeReply(ByteBuffer body) throws IOException {
+        try {
+            Frame frame = new Frame();
+            frame.opcode = body.get();
+            frame.id = readVarLong(body);
+            frame.value = readString(body);
+            if (frame.opcode == OP_METRICS) {
+                return frame;
+            }
+            frame.status = KVMessage.StatusType.values()[frame.opcode & ~OP_REPLY];
+            if (frame.status == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                frame.hashRing = new ECSHashRing();
+                long count = readVarLong(body);
+                for (long i = 0; i < count; i++) {
+                    String name = readString(body);
+                    String host = readString(body);
+                    int port = (int) readVarLong(body);
+                    frame.hashRing.addNode(new ECSNode(name, host, port));
+                }
+            }
+            return frame;
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed binary reply");
+        }
+    }
+
+    private static byte[] frame(ByteArrayOutputStream body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() + 5);
+        writeVarLong(out, body.size());
+        out.write(body.toByteArray(), 0, body.size());
+        return out.toByteArray();
+    }
+
+    public static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = (int) readVarLong(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Malformed string length " + length);
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+}
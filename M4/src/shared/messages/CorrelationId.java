@@ -0,0 +1,53 @@
+package shared.messages;
+
+import shared.Constants;
+
+/**
+ * Optional request id carried in front of a message, as in "#42+GET+key".
+ * A server answers a tagged request with the same tag, which lets a client
+ * pipeline several requests on one connection and match the replies in any
+ * order. Untagged messages are unchanged and answered in order.
+ */
+public final class CorrelationId {
+
+    public static final String PREFIX = "#";
+
+    public static final long NONE = -1;
+
+    private CorrelationId() {
+    }
+
+    public static String tag(long id, String msg) {
+        return PREFIX + id + Constants.DELIMITER + msg;
+    }
+
+    public static boolean isTagged(String msg) {
+        return msg.startsWith(PREFIX);
+    }
+
+    /**
+     * @return the request id of the message, or NONE if it is not tagged
+     */
+    public static long idOf(String msg) {
+        if (!isTagged(msg)) {
+            return NONE;
+        }
+        int end = msg.indexOf(Constants.DELIMITER);
+        try {
+            return Long.parseLong(end < 0 ? msg.substring(1) : msg.substring(1, end));
+        } catch (NumberFormatException e) {
+            return NONE;
+        }
+    }
+
+    /**
+     * @return the message without its tag
+     */
+    public static String untag(String msg) {
+        if (!isTagged(msg)) {
+            return msg;
+        }
+        int end = msg.indexOf(Constants.DELIMITER);
+        return end < 0 ? "" : msg.substring(end + 1);
+    }
+}
@@ -0,0 +1,140 @@
+package shared.messages;
+
+import shared.Constants;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Anti-entropy requests a coordinator sends to a replica to compare the
+ * Merkle trees of its hash range, and their replies. The coordinator asks
+ * for the hashes of the root first, then for the children of the nodes
+ * that differ only, and finally for the keys of the buckets that differ.
+ * The replica refuses both if it does not replicate the range.
+ *
+ * Hashes: MERKLE_HASHES+coordinator port+range start+range end+node,node,...
+ * reply: MERKLE_HASHES+hash,hash,... in hex, or MERKLE_ERROR
+ * Keys: MERKLE_KEYS+coordinator port+range start+range end+bucket,bucket,...
+ * reply: MERKLE_KEYS then key+digest per pair, or MERKLE_ERROR
+ */
+public final class MerkleMessage {
+
+    public static final String HASHES = "MERKLE_HASHES";
+    public static final String KEYS = "MERKLE_KEYS";
+    public static final String ERROR = "MERKLE_ERROR";
+
+    private static final String DELIMITER = Constants.DELIMITER;
+
+    public static class Request {
+        public final String type;
+        public final int source;
+        public final String[] range;
+        public final int[] ids; // nodes, or buckets
+
+        public Request(String type, int source, String[] range, int[] ids) {
+            this.type = type;
+            this.source = source;
+            this.range = range;
+            this.ids = ids;
+        }
+
+        public String encode() {
+            StringBuilder msg = new StringBuilder(type).append(DELIMITER).append(source)
+                    .append(DELIMITER).append(range[0]).append(DELIMITER).append(range[1]).append(DELIMITER);
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0) {
+                    msg.append(',');
+                }
+                msg.append(ids[i]);
+            }
+            return msg.toString();
+        }
+    }
+
+    private MerkleMessage() {
+    }
+
+    public static boolean isMerkle(String msg) {
+        return msg.startsWith(HASHES + DELIMITER) || msg.startsWith(KEYS + DELIMITER);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the message is not a well formed request
+     */
+    public static Request decode(String msg) {
+        String[] tokens = msg.split("\\" + DELIMITER, -1);
+        if (tokens.length != 5 || !(tokens[0].equals(HASHES) || tokens[0].equals(KEYS))) {
+            throw new IllegalArgumentException("Not a Merkle request");
+        }
+        try {
+            String[] ids = tokens[4].split(",");
+            int[] parsed = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                parsed[i] = Integer.parseInt(ids[i]);
+            }
+            return new Request(tokens[0], Integer.parseInt(tokens[1]), new String[]{tokens[2], tokens[3]}, parsed);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed Merkle request", e);
+        }
+    }
+
+    public static String hashesReply(long[] hashes) {
+        StringBuilder msg = new StringBuilder(HASHES).append(DELIMITER);
+        for (int i = 0; i < hashes.length; i++) {
+            if (i > 0) {
+                msg.append(',');
+            }
+            msg.append(Long.toHexString(hashes[i]));
+        }
+        return msg.toString();
+    }
+
+    /**
+     * @return the hashes of a reply, null if the replica refused the request
+     */
+    public static long[] hashesOf(String reply) {
+        if (!reply.startsWith(HASHES + DELIMITER)) {
+            return null;
+        }
+        String[] tokens = reply.substring(HASHES.length() + DELIMITER.length()).trim().split(",");
+        long[] hashes = new long[tokens.length];
+        try {
+            for (int i = 0; i < tokens.length; i++) {
+                hashes[i] = Long.parseUnsignedLong(tokens[i], 16);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return hashes;
+    }
+
+    public static String keysReply(Map<String, Long> digests) {
+        StringBuilder msg = new StringBuilder(KEYS);
+        for (Map.Entry<String, Long> entry : digests.entrySet()) {
+            msg.append(DELIMITER).append(entry.getKey()).append(DELIMITER).append(Long.toHexString(entry.getValue()));
+        }
+        return msg.toString();
+    }
+
+    /**
+     * @return digest by key of a reply, null if the replica refused the request
+     */
+    public static Map<String, Long> keysOf(String reply) {
+        if (!reply.equals(KEYS) && !reply.startsWith(KEYS + DELIMITER)) {
+            return null;
+        }
+        String[] tokens = reply.split("\\" + DELIMITER, -1);
+        if (tokens.length % 2 != 1) {
+            return null;
+        }
+        Map<String, Long> digests = new LinkedHashMap<>();
+        try {
+            for (int i = 1; i < tokens.length; i += 2) {
+                digests.put(tokens[i], Long.parseUnsignedLong(tokens[i + 1].trim(), 16));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return digests;
+    }
+}
@@ -0,0 +1,251 @@
+package shared.messages;
+
+import shared.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several replicated PUTs sent to a replica as one text message. Every
+ * record of the replication stream of a coordinator carries a sequence
+ * number, the records of a batch are consecutive and the replica answers
+ * with the sequence number of the last record it applied, which also
+ * acknowledges all earlier records. A batch also carries the LSN up to
+ * which the replica applied every PUT of the coordinator, the point it
+ * catches up from after it was down.
+ *
+ * Batch: REPLICATE_BATCH+first+count+coordinator port+synced LSN, then
+ * cmd+key+value+timestamp+client host+client port+stamp per record
+ * Reply: REPLICATE_ACK+last applied
+ *
+ * In chain replication a batch is tagged REPLICATE_CHAIN instead: the
+ * replica passes its records on to the next replica of the chain of their
+ * key, and acknowledges a record only once the rest of the chain applied it.
+ *
+ * A coordinator starts every connection to a replica by asking it where to
+ * catch up from, and may first have it drop the range of the coordinator
+ * to send a snapshot of it instead of the entries of its WAL.
+ *
+ * Sync: REPLICATE_SYNC+coordinator port+LSN of the coordinator, reply: REPLICATE_FROM+synced LSN, -1 if unknown
+ * Snapshot: REPLICATE_SNAPSHOT+coordinator port+range start+range end,
+ * reply: REPLICATE_SNAPSHOT_SUCCESS or REPLICATE_SNAPSHOT_ERROR
+ */
+public final class ReplicationBatch {
+
+    public static final String BATCH = "REPLICATE_BATCH";
+    public static final String CHAIN = "REPLICATE_CHAIN";
+    public static final String ACK = "REPLICATE_ACK";
+    public static final String SYNC = "REPLICATE_SYNC";
+    public static final String FROM = "REPLICATE_FROM";
+    public static final String SNAPSHOT = "REPLICATE_SNAPSHOT";
+    public static final String SNAPSHOT_SUCCESS = SNAPSHOT + "_SUCCESS";
+    public static final String SNAPSHOT_ERROR = SNAPSHOT + "_ERROR";
+
+    /**
+     * Synced LSN of a replica that may miss any PUT of the coordinator.
+     */
+    public static final long UNKNOWN = -1;
+
+    private static final String DELIMITER = Constants.DELIMITER;
+    private static final int HEADER = 5;
+    private static final int FIELDS = 7;
+
+    public static class Record {
+        public final String cmd;
+        public final String key;
+        public final String value;
+        public final long timestamp;
+        public final String host; // address of the client, empty if unknown
+        public final int port;
+        public final String stamp; // clock stamp of the write, empty if it has none
+
+        public Record(String cmd, String key, String value, long timestamp, int port) {
+            this(cmd, key, value, timestamp, port, "");
+        }
+
+        public Record(String cmd, String key, String value, long timestamp, int port, String stamp) {
+            this(cmd, key, value, timestamp, "", port, stamp);
+        }
+
+        public Record(String cmd, String key, String value, long timestamp, String host, int port, String stamp) {
+            this.cmd = cmd;
+            this.key = key;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.host = host;
+            this.port = port;
+            this.stamp = stamp;
+        }
+    }
+
+    private final long first;
+    private final int source;
+    private final long synced;
+    private final boolean chained;
+    private final List<Record> records = new ArrayList<>();
+    private int length;
+
+    /**
+     * @param first  sequence number of the first record of the batch
+     * @param source port of the coordinator sending it
+     * @param synced LSN up to which the replica applied every PUT of the coordinator
+     */
+    public ReplicationBatch(long first, int source, long synced) {
+        this(first, source, synced, false);
+    }
+
+    /**
+     * @param chained whether the replica passes the records on down the chain
+     */
+    public ReplicationBatch(long first, int source, long synced, boolean chained) {
+        this.first = first;
+        this.source = source;
+        this.synced = synced;
+        this.chained = chained;
+    }
+
+    public void add(Record record) {
+        records.add(record);
+        length += record.cmd.length() + record.key.length() + record.value.length() + record.host.length()
+                + record.stamp.length() + 32;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    /**
+     * @return sequence number of the last record, first - 1 if empty
+     */
+    public long getLast() {
+        return first + records.size() - 1;
+    }
+
+    public int getSource() {
+        return source;
+    }
+
+    public long getSynced() {
+        return synced;
+    }
+
+    public boolean isChained() {
+        return chained;
+    }
+
+    public List<Record> getRecords() {
+        return records;
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * @return approximate length of the encoded batch
+     */
+    public int length() {
+        return length;
+    }
+
+    public String encode() {
+        StringBuilder msg = new StringBuilder(length + 64);
+        msg.append(chained ? CHAIN : BATCH).append(DELIMITER).append(first).append(DELIMITER).append(records.size())
+                .append(DELIMITER).append(source).append(DELIMITER).append(synced);
+        for (Record r : records) {
+            msg.append(DELIMITER).append(r.cmd)
+                    .append(DELIMITER).append(r.key)
+                    .append(DELIMITER).append(r.value)
+                    .append(DELIMITER).append(r.timestamp)
+                    .append(DELIMITER).append(r.host)
+                    .append(DELIMITER).append(r.port)
+                    .append(DELIMITER).append(r.stamp);
+        }
+        return msg.toString();
+    }
+
+    public static boolean isBatch(String msg) {
+        return msg.startsWith(BATCH + DELIMITER) || msg.startsWith(CHAIN + DELIMITER);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the message is not a well formed batch
+     */
+    public static ReplicationBatch decode(String msg) {
+        String[] tokens = msg.split("\\" + DELIMITER, -1);
+        if (tokens.length < HEADER || !(tokens[0].equals(BATCH) || tokens[0].equals(CHAIN))) {
+            throw new IllegalArgumentException("Not a replication batch");
+        }
+        try {
+            ReplicationBatch batch = new ReplicationBatch(Long.parseLong(tokens[1]),
+                    Integer.parseInt(tokens[3]), Long.parseLong(tokens[4]), tokens[0].equals(CHAIN));
+            int count = Integer.parseInt(tokens[2]);
+            if (tokens.length != HEADER + count * FIELDS) {
+                throw new IllegalArgumentException("Expected " + count + " records in replication batch");
+            }
+            for (int i = HEADER; i < tokens.length; i += FIELDS) {
+                batch.add(new Record(tokens[i], tokens[i + 1], tokens[i + 2],
+                        Long.parseLong(tokens[i + 3]), tokens[i + 4], Integer.parseInt(tokens[i + 5]), tokens[i + 6]));
+            }
+            return batch;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed replication batch", e);
+        }
+    }
+
+    /**
+     * @return whether a message belongs to the replication protocol, so
+     * it is handled in order with the other messages of the stream
+     */
+    public static boolean isReplication(String msg) {
+        return isBatch(msg) || msg.startsWith(SYNC + DELIMITER) || msg.startsWith(SNAPSHOT + DELIMITER);
+    }
+
+    public static String ack(long last) {
+        return ACK + DELIMITER + last;
+    }
+
+    /**
+     * @return sequence number acknowledged by a reply, or -1 if it is not an acknowledgement
+     */
+    public static long ackOf(String reply) {
+        if (!reply.startsWith(ACK + DELIMITER)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(reply.substring(ACK.length() + DELIMITER.length()).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param head LSN of the coordinator, the replica answers GETs of its
+     *             range once it applied every PUT up to it
+     */
+    public static String sync(int source, long head) {
+        return SYNC + DELIMITER + source + DELIMITER + head;
+    }
+
+    public static String from(long synced) {
+        return FROM + DELIMITER + synced;
+    }
+
+    /**
+     * @return LSN a replica catches up from, UNKNOWN if the reply does not tell
+     */
+    public static long fromOf(String reply) {
+        if (!reply.startsWith(FROM + DELIMITER)) {
+            return UNKNOWN;
+        }
+        try {
+            return Long.parseLong(reply.substring(FROM.length() + DELIMITER.length()).trim());
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    public static String snapshot(int source, String[] range) {
+        return SNAPSHOT + DELIMITER + source + DELIMITER + range[0] + DELIMITER + range[1];
+    }
+}
@@ -33,7 +33,6 @@ public class TextMessage implements Serializable {
      */
     public TextMessage(String msg) {
         this.msg = msg;
-        this.msgBytes = toByteArray(msg);
     }
 
 
@@ -53,6 +52,10 @@ public class TextMessage implements Serializable {
      * in ASCII coding.
      */
     public byte[] getMsgBytes() {
+        // received messages are only read as String, encode on first send
+        if (msgBytes == null) {
+            msgBytes = toByteArray(msg);
+        }
         return msgBytes;
     }
 
@@ -0,0 +1,47 @@
+package shared.messages;
+
+/**
+ * How many copies of a PUT must be written before the coordinator answers
+ * the client. The coordinator counts as one copy, the replicas it does not
+ * wait for are repaired in the background. With hinted handoff, a hint the
+ * coordinator keeps for a replica that is down counts as its copy at ONE
+ * and QUORUM, not at ALL.
+ *
+ * A client picks a level per PUT by appending it to the request, as in
+ * "PUT+key+value+timestamp+port+QUORUM". Without it the default level of
+ * the server applies.
+ */
+public enum WriteConsistency {
+    ONE,        // the coordinator only
+    QUORUM,     // a majority of the coordinator and its replicas
+    ALL;        // the coordinator and every replica, a hint of a replica down does not count
+
+    /**
+     * @param replicas number of replicas of the coordinator
+     * @return acknowledgements of replicas to wait for
+     */
+    public int requiredAcks(int replicas) {
+        switch (this) {
+            case ONE:
+                return 0;
+            case QUORUM:
+                return (replicas + 1) / 2; // majority of replicas + 1 copies, minus the coordinator
+            default:
+                return replicas;
+        }
+    }
+
+    /**
+     * @return the level named, or the fallback if the name is not a level
+     */
+    public static WriteConsistency parse(String name, WriteConsistency fallback) {
+        if (name == null) {
+            return fallback;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package shared.workload;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the record a request goes to. Instances keep state and are used by
+ * one thread.
+ */
+public abstract class KeyChooser {
+
+    public enum Distribution {
+        UNIFORM,    // every record equally likely
+        ZIPFIAN,    // a few popular records, spread over the key space
+        LATEST      // the most recently inserted records are the most popular
+    }
+
+    private static final double ZIPFIAN_CONSTANT = 0.99;
+
+    /**
+     * @return a record number in [0, number of records)
+     */
+    public abstract long next(Random random);
+
+    /**
+     * @param records number of records, read at every call since inserts may add some
+     */
+    public static KeyChooser create(Distribution distribution, AtomicLong records) {
+        switch (distribution) {
+            case UNIFORM:
+                return new KeyChooser() {
+                    @Override
+                    public long next(Random random) {
+                        return Math.floorMod(random.nextLong(), records.get());
+                    }
+                };
+            case LATEST:
+                Zipfian latest = new Zipfian(records.get());
+                return new KeyChooser() {
+                    @Override
+                    public long next(Random random) {
+                        long count = records.get();
+                        return count - 1 - latest.next(random, count);
+                    }
+                };
+            default:
+                Zipfian zipfian = new Zipfian(records.get());
+                return new KeyChooser() {
+                    @Override
+                    public long next(Random random) {
+                        long count = records.get();
+                        // hash the rank, so the popular records are not neighbours
+                        return Math.floorMod(fnv(zipfian.next(random, count)), count);
+                    }
+                };
+        }
+    }
+
+    /**
+     * FNV-1a hash of a long, as used by YCSB to scatter record numbers.
+     */
+    static long fnv(long value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < 8; i++) {
+            hash ^= value & 0xFF;
+            hash *= 0x100000001B3L;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * Zipfian ranks in [0, n), rank 0 being the most popular, computed as in
+     * Gray et al., "Quickly Generating Billion-Record Synthetic Databases".
+     * The zeta constant is extended incrementally when n grows.
+     */
+    static class Zipfian {
+
+        private final double theta = ZIPFIAN_CONSTANT;
+        private final double alpha = 1.0 / (1.0 - theta);
+        private final double zeta2 = zeta(0, 2, 0);
+
+        private long n;
+        private double zetan;
+        private double eta;
+
+        Zipfian(long n) {
+            this.n = n;
+            this.zetan = zeta(0, n, 0);
+            this.eta = eta();
+        }
+
+        long next(Random random, long count) {
+            if (count > n) {
+                zetan = zeta(n, count, zetan);
+                n = count;
+                eta = eta();
+            }
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) {
+                return 0;
+            }
+            if (uz < 1.0 + Math.pow(0.5, theta)) {
+                return Math.min(1, n - 1);
+            }
+            return Math.min((long) (n * Math.pow(eta * u - eta + 1, alpha)), n - 1);
+        }
+
+        private double eta() {
+            return (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        private double zeta(long from, long to, double sum) {
+            for (long i = from; i < to; i++) {
+                sum += 1 / Math.pow(i + 1, theta);
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package shared.workload;
+
+/**
+ * Histogram of latencies in the style of HdrHistogram: values below 128 are
+ * counted exactly, larger values in buckets of 64 linear sub-buckets per
+ * power of two, so every recorded value is reported within 1.6% at a fixed
+ * memory cost. Not thread-safe, each thread records into its own histogram
+ * and they are merged at the end.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final long[] counts = new long[SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF];
+    private long count = 0;
+    private long total = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        count++;
+        total += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        total += other.total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * @param percentile in [0, 100]
+     * @return the largest value equivalent to the one at the percentile
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+    }
+
+    static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,437 @@
+package shared.workload;
+
+import client.KVRoutingStore;
+import com.google.gson.GsonBuilder;
+import ecs.ECS;
+import ecs.ECSNode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+import shared.messages.WriteConsistency;
+
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * YCSB-style load generator. Inserts the records of the data set, then runs
+ * one of the core workloads A to F from several threads sharing a routing
+ * client, and writes the throughput and a latency histogram per operation
+ * type as JSON.
+ *
+ * In the closed-loop mode every thread sends its next request as soon as
+ * the previous one is answered. In the open-loop mode requests are sent on
+ * a fixed schedule at the target rate, and latencies are measured from the
+ * scheduled time, so a stalled server is not hidden by requests that were
+ * never sent (coordinated omission).
+ *
+ * Runs against running servers reached through -host and -port, or starts
+ * -servers nodes with ECS from -config first and shuts them down after.
+ *
+ * Usage: LoadGenerator [-workload A..F] [-distribution uniform|zipfian|latest]
+ * [-threads n] [-mode closed|open] [-target ops/s] [-records n]
+ * [-operations n | -duration s] [-valuesize bytes] [-maxscan n] [-skipload]
+ * [-consistency one|quorum|all]
+ * [-host h] [-port p] [-servers n] [-config file] [-cachesize n]
+ * [-strategy FIFO|LRU|LFU] [-out file]
+ */
+public class LoadGenerator {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final char[] ALPHANUMERIC =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+    private Map<String, String> options;
+    private Workload workload;
+    private KeyChooser.Distribution distribution;
+    private int threads;
+    private boolean open;
+    private double target;
+    private long recordCount;
+    private long operationCount;
+    private long duration;
+    private int valueSize;
+    private int maxScan;
+    private WriteConsistency consistency; // null for the default of the servers
+
+    private KVRoutingStore store;
+    private AtomicLong records = new AtomicLong(); // records 0 to records - 1 are all acknowledged
+    private AtomicLong nextInsert = new AtomicLong();
+    private Set<Long> acknowledged = new HashSet<>(); // inserts acknowledged past the first gap
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.workload = Workload.valueOf(option("workload", "A").toUpperCase());
+        this.distribution = options.containsKey("distribution")
+                ? KeyChooser.Distribution.valueOf(options.get("distribution").toUpperCase())
+                : workload.getDistribution();
+        this.threads = Integer.parseInt(option("threads", "8"));
+        this.open = option("mode", "closed").equals("open");
+        this.target = Double.parseDouble(option("target", "0"));
+        this.recordCount = Long.parseLong(option("records", "1000"));
+        this.operationCount = Long.parseLong(option("operations", "10000"));
+        this.duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "0")));
+        this.valueSize = Integer.parseInt(option("valuesize", "100"));
+        this.maxScan = Integer.parseInt(option("maxscan", "10"));
+        this.consistency = options.containsKey("consistency")
+                ? WriteConsistency.valueOf(options.get("consistency").toUpperCase())
+                : null;
+
+        if (open && target <= 0) {
+            throw new IllegalArgumentException("The open-loop mode needs a -target rate");
+        }
+        if (recordCount < 1) {
+            throw new IllegalArgumentException("-records must be positive");
+        }
+    }
+
+    private String option(String name, String fallback) {
+        return options.getOrDefault(name, fallback);
+    }
+
+    /**
+     * Results of one phase.
+     */
+    private static class Phase {
+        long elapsed;
+        Map<Workload.Operation, LatencyHistogram> latencies = new EnumMap<>(Workload.Operation.class);
+        Map<Workload.Operation, Long> errors = new EnumMap<>(Workload.Operation.class);
+
+        synchronized void merge(Map<Workload.Operation, LatencyHistogram> latencies,
+                                Map<Workload.Operation, Long> errors) {
+            for (Map.Entry<Workload.Operation, LatencyHistogram> e : latencies.entrySet()) {
+                this.latencies.computeIfAbsent(e.getKey(), k -> new LatencyHistogram()).merge(e.getValue());
+            }
+            for (Map.Entry<Workload.Operation, Long> e : errors.entrySet()) {
+                this.errors.merge(e.getKey(), e.getValue(), Long::sum);
+            }
+        }
+
+        long operations() {
+            long total = 0;
+            for (LatencyHistogram h : latencies.values()) {
+                total += h.getCount();
+            }
+            for (long e : errors.values()) {
+                total += e;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Operations of one thread.
+     */
+    private interface Driver {
+        /**
+         * @param operation set to the type of the operation run, left null if none is left
+         * @return false if the operation failed
+         */
+        boolean run(Workload.Operation[] operation) throws Exception;
+    }
+
+    public Map<String, Object> run() throws Exception {
+        ECS ecs = null;
+        String host = option("host", ECS.LOCAL_HOST);
+        int port = Integer.parseInt(option("port", "50000"));
+        if (options.containsKey("servers")) {
+            ecs = new ECS(option("config", "./ecs.config"));
+            Collection<ECSNode> nodes = ecs.addNodes(Integer.parseInt(options.get("servers")),
+                    option("strategy", "LRU"), Integer.parseInt(option("cachesize", "100")));
+            ecs.start();
+            ECSNode first = nodes.iterator().next();
+            host = first.getNodeHost();
+            port = first.getNodePort();
+        }
+
+        store = new KVRoutingStore(host, port, threads);
+        store.setWriteConsistency(consistency);
+        store.connect();
+        try {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("workload", workload.name());
+            result.put("distribution", distribution.name().toLowerCase());
+            result.put("mode", open ? "open" : "closed");
+            result.put("threads", threads);
+            if (open) {
+                result.put("target_ops_per_sec", target);
+            }
+            result.put("records", recordCount);
+            result.put("value_size", valueSize);
+            if (consistency != null) {
+                result.put("consistency", consistency.name().toLowerCase());
+            }
+
+            if (!options.containsKey("skipload")) {
+                result.put("load", report(load()));
+            }
+            records.set(recordCount);
+            nextInsert.set(recordCount);
+            result.put("run", report(transactions()));
+            return result;
+        } finally {
+            store.disconnect();
+            if (ecs != null) {
+                ecs.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Insert the records of the data set, in closed loop.
+     */
+    private Phase load() throws Exception {
+        AtomicLong next = new AtomicLong();
+        return execute(false, 0, () -> {
+            Random random = ThreadLocalRandom.current();
+            return operation -> {
+                long record = next.getAndIncrement();
+                if (record >= recordCount) {
+                    return true; // done, operation stays null
+                }
+                operation[0] = Workload.Operation.INSERT;
+                return succeeded(store.put(keyOf(record), value(random)));
+            };
+        });
+    }
+
+    private Phase transactions() throws Exception {
+        AtomicLong issued = new AtomicLong();
+        return execute(open, duration, () -> {
+            Random random = ThreadLocalRandom.current();
+            KeyChooser chooser = KeyChooser.create(distribution, records);
+            return operation -> {
+                if (duration == 0 && issued.getAndIncrement() >= operationCount) {
+                    return true;
+                }
+                Workload.Operation op = workload.next(random);
+                operation[0] = op;
+                switch (op) {
+                    case READ:
+                        return succeeded(store.get(keyOf(chooser.next(random))));
+                    case UPDATE:
+                        return succeeded(store.put(keyOf(chooser.next(random)), value(random)));
+                    case INSERT:
+                        long record = nextInsert.getAndIncrement();
+                        boolean inserted = succeeded(store.put(keyOf(record), value(random)));
+                        if (inserted) {
+                            acknowledge(record);
+                        }
+                        return inserted;
+                    case SCAN:
+                        long first = chooser.next(random);
+                        int length = 1 + random.nextInt(maxScan);
+                        boolean ok = true;
+                        for (long r = first; r < first + length && r < records.get(); r++) {
+                            ok &= succeeded(store.get(keyOf(r)));
+                        }
+                        return ok;
+                    default:
+                        String key = keyOf(chooser.next(random));
+                        return succeeded(store.get(key)) && succeeded(store.put(key, value(random)));
+                }
+            };
+        });
+    }
+
+    private interface DriverFactory {
+        Driver create();
+    }
+
+    /**
+     * Run the drivers on all threads until they run out of operations or
+     * the duration is over.
+     *
+     * @param paced    send on the schedule of the target rate
+     * @param duration ns the phase lasts, 0 to run until the drivers are done
+     */
+    private Phase execute(boolean paced, long duration, DriverFactory factory) throws Exception {
+        Phase phase = new Phase();
+        long interval = paced ? (long) (TimeUnit.SECONDS.toNanos(1) * threads / target) : 0;
+        long start = System.nanoTime();
+        long end = duration > 0 ? start + duration : Long.MAX_VALUE;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long offset = interval * t / threads; // spread the schedules of the threads
+            Thread worker = new Thread(() -> {
+                Driver driver = factory.create();
+                Map<Workload.Operation, LatencyHistogram> latencies = new EnumMap<>(Workload.Operation.class);
+                Map<Workload.Operation, Long> errors = new EnumMap<>(Workload.Operation.class);
+                Workload.Operation[] operation = new Workload.Operation[1];
+                for (long i = 0; ; i++) {
+                    long scheduled = paced ? start + offset + i * interval : System.nanoTime();
+                    if (scheduled >= end || System.nanoTime() >= end) {
+                        break;
+                    }
+                    if (paced) {
+                        long wait;
+                        while ((wait = scheduled - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    operation[0] = null;
+                    boolean ok;
+                    try {
+                        ok = driver.run(operation);
+                    } catch (Exception e) {
+                        logger.error("[LoadGenerator] " + operation[0] + " failed: " + e.getMessage());
+                        ok = false;
+                    }
+                    if (operation[0] == null) {
+                        break; // no operation left
+                    }
+                    long latency = (System.nanoTime() - scheduled) / 1000;
+                    if (ok) {
+                        latencies.computeIfAbsent(operation[0], k -> new LatencyHistogram()).record(latency);
+                    } else {
+                        errors.merge(operation[0], 1L, Long::sum);
+                    }
+                }
+                phase.merge(latencies, errors);
+            }, "loadgen-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        phase.elapsed = System.nanoTime() - start;
+        return phase;
+    }
+
+    /**
+     * Count an inserted record once every record before it is acknowledged
+     * too, so reads never go to a record still being written.
+     */
+    private synchronized void acknowledge(long record) {
+        acknowledged.add(record);
+        long next = records.get();
+        while (acknowledged.remove(next)) {
+            next++;
+        }
+        records.set(next);
+    }
+
+    private static boolean succeeded(KVMessage reply) {
+        switch (reply.getStatus()) {
+            case GET_SUCCESS:
+            case PUT_SUCCESS:
+            case PUT_UPDATE:
+            case DELETE_SUCCESS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the key of a record, scattered so consecutive records land on different servers
+     */
+    static String keyOf(long record) {
+        return "user" + Long.toUnsignedString(KeyChooser.fnv(record));
+    }
+
+    private String value(Random random) {
+        char[] value = new char[valueSize];
+        for (int i = 0; i < valueSize; i++) {
+            value[i] = ALPHANUMERIC[random.nextInt(ALPHANUMERIC.length)];
+        }
+        return new String(value);
+    }
+
+    private static Map<String, Object> report(Phase phase) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        double seconds = phase.elapsed / 1e9;
+        result.put("elapsed_ms", TimeUnit.NANOSECONDS.toMillis(phase.elapsed));
+        result.put("operations", phase.operations());
+        result.put("throughput_ops_per_sec", Math.round(phase.operations() / seconds * 10) / 10.0);
+
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (Workload.Operation op : Workload.Operation.values()) {
+            LatencyHistogram h = phase.latencies.get(op);
+            Long errors = phase.errors.get(op);
+            if (h == null && errors == null) {
+                continue;
+            }
+            if (h == null) {
+                h = new LatencyHistogram();
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("count", h.getCount());
+            stats.put("errors", errors == null ? 0 : errors);
+            stats.put("mean_us", Math.round(h.getMean() * 10) / 10.0);
+            stats.put("min_us", h.getMin());
+            stats.put("p50_us", h.getValueAtPercentile(50));
+            stats.put("p95_us", h.getValueAtPercentile(95));
+            stats.put("p99_us", h.getValueAtPercentile(99));
+            stats.put("p999_us", h.getValueAtPercentile(99.9));
+            stats.put("max_us", h.getMax());
+            operations.put(op.name().toLowerCase(), stats);
+        }
+        result.put("latency", operations);
+        return result;
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("-")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(1).toLowerCase();
+            if (name.equals("skipload")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+        }
+        return options;
+    }
+
+    public static void main(String[] args) {
+        try {
+            new LogSetup("logs/loadgenerator.log", Level.ERROR);
+            Map<String, String> options = parseOptions(args);
+            Map<String, Object> result = new LoadGenerator(options).run();
+
+            String json = new GsonBuilder().setPrettyPrinting().create().toJson(result);
+            if (options.containsKey("out")) {
+                try (Writer writer = new FileWriter(options.get("out"))) {
+                    writer.write(json);
+                }
+            }
+            System.out.println(json);
+            System.exit(0);
+
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error! " + e.getMessage());
+            System.out.println("Usage: LoadGenerator [-workload A..F] [-distribution uniform|zipfian|latest]"
+                    + " [-threads n] [-mode closed|open] [-target ops/s] [-records n]"
+                    + " [-operations n | -duration s] [-valuesize bytes] [-maxscan n] [-skipload]"
+                    + " [-consistency one|quorum|all]"
+                    + " [-host h] [-port p] [-servers n] [-config file] [-cachesize n]"
+                    + " [-strategy FIFO|LRU|LFU] [-out file]");
+            System.exit(1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
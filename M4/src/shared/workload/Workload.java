@@ -0,0 +1,56 @@
+package shared.workload;
+
+import java.util.Random;
+
+/**
+ * The core workloads of the Yahoo! Cloud Serving Benchmark, as operation
+ * mixes over the records loaded before the run.
+ *
+ * The storage service has no range queries, so the scans of workload E
+ * read a short run of consecutive record numbers one by one, which the
+ * hash ring spreads over the servers.
+ */
+public enum Workload {
+
+    A(0.50, 0.50, 0, 0, 0, KeyChooser.Distribution.ZIPFIAN),   // update heavy
+    B(0.95, 0.05, 0, 0, 0, KeyChooser.Distribution.ZIPFIAN),   // read mostly
+    C(1.00, 0, 0, 0, 0, KeyChooser.Distribution.ZIPFIAN),      // read only
+    D(0.95, 0, 0.05, 0, 0, KeyChooser.Distribution.LATEST),    // read latest
+    E(0, 0, 0.05, 0.95, 0, KeyChooser.Distribution.ZIPFIAN),   // short ranges
+    F(0.50, 0, 0, 0, 0.50, KeyChooser.Distribution.ZIPFIAN);   // read-modify-write
+
+    public enum Operation {
+        READ, UPDATE, INSERT, SCAN, READ_MODIFY_WRITE
+    }
+
+    private final double[] proportions;
+    private final KeyChooser.Distribution distribution;
+
+    Workload(double read, double update, double insert, double scan, double readModifyWrite,
+             KeyChooser.Distribution distribution) {
+        this.proportions = new double[]{read, update, insert, scan, readModifyWrite};
+        this.distribution = distribution;
+    }
+
+    /**
+     * @return the request distribution the workload is defined with
+     */
+    public KeyChooser.Distribution getDistribution() {
+        return distribution;
+    }
+
+    /**
+     * Draw the next operation following the mix of the workload.
+     */
+    public Operation next(Random random) {
+        double r = random.nextDouble();
+        Operation[] operations = Operation.values();
+        for (int i = 0; i < proportions.length; i++) {
+            r -= proportions[i];
+            if (r < 0) {
+                return operations[i];
+            }
+        }
+        return Operation.READ;
+    }
+}
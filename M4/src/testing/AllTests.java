@@ -61,6 +61,21 @@ public class AllTests {
 
         clientSuite.addTestSuite(HashRingTest.class);
 
+        clientSuite.addTestSuite(CacheTest.class);
+
+        clientSuite.addTestSuite(MessageCodecTest.class);
+
+        clientSuite.addTestSuite(RetryPolicyTest.class);
+        clientSuite.addTestSuite(SubscriptionsTest.class);
+        clientSuite.addTestSuite(WorkloadTest.class);
+        clientSuite.addTestSuite(ReplicationBatchTest.class);
+        clientSuite.addTestSuite(WriteConsistencyTest.class);
+        clientSuite.addTestSuite(MerkleTreeTest.class);
+        clientSuite.addTestSuite(HintLogTest.class);
+        clientSuite.addTestSuite(ClockTest.class);
+        clientSuite.addTestSuite(RequestWindowTest.class);
+        clientSuite.addTestSuite(ReplicationTest.class);
+
         clientSuite.addTestSuite(InteractionTest.class);
 
         Runtime.getRuntime().exec(cmd);
@@ -0,0 +1,193 @@
+package testing;
+
+import app_kvServer.CacheManager.CachePolicy;
+import app_kvServer.CacheManager.CacheWarmer;
+import app_kvServer.CacheManager.FIFO;
+import app_kvServer.CacheManager.LFU;
+import app_kvServer.CacheManager.LRU;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CacheTest extends TestCase {
+
+    private ExecutorService pool;
+    private File snapshots;
+
+    public void setUp() throws Exception {
+        pool = Executors.newFixedThreadPool(8);
+        snapshots = Files.createTempDirectory("HotKeys").toFile();
+    }
+
+    public void tearDown() {
+        pool.shutdownNow();
+        File[] files = snapshots.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        snapshots.delete();
+    }
+
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        CachePolicy cache = new LRU(10);
+        AtomicInteger reads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(pool.submit(() -> cache.getOrLoad("hot", key -> {
+                reads.incrementAndGet();
+                release.await();
+                return "value";
+            })));
+        }
+
+        // wait for every caller to either load or join the load in flight
+        while (cache.getLoadCount() + cache.getCoalescedLoadCount() < 8) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        for (Future<String> result : results) {
+            assertEquals("value", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, reads.get());
+        assertEquals(1, cache.getLoadCount());
+        assertEquals(7, cache.getCoalescedLoadCount());
+        assertTrue(cache.inCache("hot"));
+    }
+
+    public void testHitDoesNotLoad() throws Exception {
+        CachePolicy cache = new LFU(10);
+        cache.putKV("foo", "bar");
+
+        assertEquals("bar", cache.getOrLoad("foo", key -> {
+            fail("cached key loaded from storage");
+            return null;
+        }));
+        assertEquals(0, cache.getLoadCount());
+    }
+
+    public void testMissingKeyIsNotCached() throws Exception {
+        CachePolicy cache = new LRU(10);
+
+        assertNull(cache.getOrLoad("foo", key -> null));
+        assertFalse(cache.inCache("foo"));
+    }
+
+    public void testPutDuringLoadWins() throws Exception {
+        CachePolicy cache = new LRU(10);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> result = pool.submit(() -> cache.getOrLoad("foo", key -> {
+            loading.countDown();
+            release.await();
+            return "old";
+        }));
+
+        loading.await();
+        cache.putKV("foo", "new");
+        release.countDown();
+
+        assertEquals("old", result.get(5, TimeUnit.SECONDS));
+        assertEquals("new", cache.getKV("foo"));
+    }
+
+    public void testLoadFailureIsPropagated() {
+        CachePolicy cache = new LRU(10);
+        Exception ex = null;
+
+        try {
+            cache.getOrLoad("foo", key -> {
+                throw new java.io.IOException("disk");
+            });
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex instanceof java.io.IOException);
+        assertFalse(cache.inCache("foo"));
+    }
+
+    public void testHotKeysOrder() {
+        CachePolicy lru = new LRU(10);
+        lru.putKV("a", "1");
+        lru.putKV("b", "2");
+        lru.putKV("c", "3");
+        lru.getKV("a");
+        assertEquals(Arrays.asList("a", "c", "b"), lru.getHotKeys());
+
+        CachePolicy lfu = new LFU(10);
+        lfu.putKV("a", "1");
+        lfu.putKV("b", "2");
+        lfu.getKV("b");
+        lfu.getKV("b");
+        lfu.getKV("a");
+        assertEquals(Arrays.asList("b", "a"), lfu.getHotKeys());
+    }
+
+    public void testWarmUpFromSnapshot() {
+        CachePolicy before = new FIFO(10);
+        before.putKV("a", "1");
+        before.putKV("b", "2");
+        CacheWarmer warmer = new CacheWarmer(before, key -> null, snapshots, 59999);
+        warmer.snapshot();
+
+        AtomicInteger reads = new AtomicInteger();
+        CachePolicy after = new FIFO(10);
+        CacheWarmer restarted = new CacheWarmer(after, key -> {
+            reads.incrementAndGet();
+            return key.equals("a") ? "1" : null;
+        }, snapshots, 59999);
+
+        assertEquals(Arrays.asList("b", "a"), restarted.readSnapshot());
+        assertEquals(1, restarted.warmUp(1000));
+        assertEquals(2, reads.get());
+        assertEquals("1", after.getKV("a"));
+        assertFalse(after.inCache("b"));
+
+        restarted.deleteSnapshot();
+        assertTrue(restarted.readSnapshot().isEmpty());
+    }
+
+    public void testWarmUpBudget() {
+        CachePolicy before = new FIFO(10);
+        before.putKV("a", "1");
+        CacheWarmer warmer = new CacheWarmer(before, key -> "1", snapshots, 59999);
+        warmer.snapshot();
+
+        assertEquals(0, warmer.warmUp(0));
+        warmer.deleteSnapshot();
+    }
+
+    public void testWarmUpFromAReplacedServer() {
+        CachePolicy crashed = new FIFO(10);
+        crashed.putKV("a", "1");
+        crashed.putKV("b", "2");
+        crashed.putKV("c", "3");
+        new CacheWarmer(crashed, key -> null, snapshots, 59998).snapshot();
+
+        // the replacement stores a and c, its cache holds two keys
+        CachePolicy replacement = new FIFO(2);
+        CacheWarmer warmer = new CacheWarmer(replacement, key -> key.equals("b") ? null : key, snapshots, 59999);
+        assertTrue(warmer.readSnapshot().isEmpty());
+        assertEquals(2, warmer.warmUp(1000));
+        assertEquals("c", replacement.getKV("c"));
+        assertEquals("a", replacement.getKV("a"));
+
+        // its own hot keys come first
+        CachePolicy own = new FIFO(10);
+        own.putKV("d", "4");
+        new CacheWarmer(own, key -> null, snapshots, 59999).snapshot();
+        assertEquals(Arrays.asList("d", "c", "b", "a"), new ArrayList<>(warmer.readSnapshots()));
+    }
+}
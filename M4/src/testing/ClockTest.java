@@ -0,0 +1,113 @@
+package testing;
+
+import app_kvServer.Clock.HybridLogicalClock;
+import app_kvServer.Clock.LogicalClock;
+import app_kvServer.Clock.VectorClock;
+import junit.framework.TestCase;
+import shared.Constants;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ClockTest extends TestCase {
+
+    public void testVectorDots() throws Exception {
+        VectorClock clock = new VectorClock("server1");
+        assertEquals("server1:1", clock.tick());
+        assertEquals("server1:2", clock.tick());
+        assertTrue(clock.observe("server2:5"));
+        assertTrue(clock.observe("server2:3"));
+        assertEquals(5, clock.get("server2"));
+        assertEquals(2, clock.size());
+        assertFalse(clock.observe("server2"));
+        assertFalse(clock.observe("server2:x"));
+        assertFalse(clock.observe(""));
+        assertEquals("server1:3", clock.tick());
+    }
+
+    public void testVectorCompare() throws Exception {
+        VectorClock clock = new VectorClock("server1");
+        assertTrue(clock.compare("server2:3", "server2:10") < 0);
+        assertTrue(clock.compare("server2:10", "server2:3") > 0);
+        assertEquals(0, clock.compare("server2:3", "server2:3"));
+        // writes of different servers are concurrent
+        assertEquals(0, clock.compare("server1:3", "server2:10"));
+        assertEquals(0, clock.compare("server2:3", "server22:10"));
+        assertEquals(0, clock.compare("", "server2:10"));
+    }
+
+    public void testVectorRetainAndState() throws Exception {
+        VectorClock clock = new VectorClock("server1");
+        clock.tick();
+        clock.observe("server2:300");
+        clock.observe("server3:7");
+        clock.retain(Collections.singleton("server2"));
+        assertEquals(0, clock.get("server3"));
+        assertEquals(1, clock.get("server1"));
+
+        VectorClock restored = new VectorClock("server1");
+        restored.decode(clock.encode());
+        assertEquals(300, restored.get("server2"));
+        assertEquals("server1:2", restored.tick());
+    }
+
+    public void testHybridTick() throws Exception {
+        AtomicLong now = new AtomicLong(1000);
+        HybridLogicalClock clock = new HybridLogicalClock(now::get);
+        String first = clock.tick();
+        String second = clock.tick();
+        assertEquals(Long.toHexString(1000L << 16), first);
+        assertTrue(clock.compare(first, second) < 0);
+        // physical time going back does not move the clock back
+        now.set(500);
+        String third = clock.tick();
+        assertTrue(clock.compare(second, third) < 0);
+        now.set(2000);
+        assertEquals(Long.toHexString(2000L << 16), clock.tick());
+    }
+
+    public void testHybridObserve() throws Exception {
+        AtomicLong now = new AtomicLong(1000);
+        HybridLogicalClock clock = new HybridLogicalClock(now::get);
+        String remote = Long.toHexString(1500L << 16 | 4);
+        assertTrue(clock.observe(remote));
+        assertTrue(clock.compare(remote, clock.tick()) < 0);
+        // too far ahead to follow
+        String skewed = Long.toHexString((now.get() + Constants.CLOCK_MAX_OFFSET + 1) << 16);
+        assertTrue(clock.observe(skewed));
+        assertTrue(clock.compare(clock.tick(), skewed) < 0);
+        assertFalse(clock.observe("server1:1"));
+        assertEquals(0, clock.compare("server1:1", remote));
+    }
+
+    public void testHybridCounterOverflow() throws Exception {
+        HybridLogicalClock clock = new HybridLogicalClock(() -> 1000);
+        String last = clock.tick();
+        for (int i = 0; i < 70000; i++) {
+            String next = clock.tick();
+            assertTrue(clock.compare(last, next) < 0);
+            last = next;
+        }
+    }
+
+    public void testHybridState() throws Exception {
+        AtomicLong now = new AtomicLong(1000);
+        HybridLogicalClock clock = new HybridLogicalClock(now::get);
+        clock.tick();
+        String last = clock.tick();
+        HybridLogicalClock restored = new HybridLogicalClock(() -> 10);
+        restored.decode(clock.encode());
+        assertTrue(restored.compare(last, restored.tick()) < 0);
+    }
+
+    public void testKinds() throws Exception {
+        assertTrue(LogicalClock.of(LogicalClock.VECTOR, "server1") instanceof VectorClock);
+        assertTrue(LogicalClock.of(LogicalClock.HYBRID, "server1") instanceof HybridLogicalClock);
+        try {
+            LogicalClock.of("lamport", "server1");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
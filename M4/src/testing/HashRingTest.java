@@ -4,6 +4,7 @@ import ecs.ECSHashRing;
 import ecs.ECSNode;
 import junit.framework.TestCase;
 
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 
@@ -64,4 +65,21 @@ public class HashRingTest extends TestCase {
         }
         assertNull(ex);
     }
-}
\ No newline at end of file
+
+    public void test_getChain() {
+        ECSNode first = new ECSNode("server1", "localhost", 50001);
+        hr_test.addNode(first);
+        assertTrue(hr_test.getChain(first).isEmpty());
+
+        hr_test.addNode(new ECSNode("server2", "localhost", 50002));
+        hr_test.addNode(new ECSNode("server3", "localhost", 50003));
+        hr_test.addNode(new ECSNode("server4", "localhost", 50004));
+
+        List<ECSNode> chain = hr_test.getChain(first);
+        assertEquals(2, chain.size());
+        ECSNode head = hr_test.getNextNode(first.getNodeHash());
+        assertEquals(head.getNodeName(), chain.get(0).getNodeName());
+        assertEquals(hr_test.getNextNode(head.getNodeHash()).getNodeName(), chain.get(1).getNodeName());
+        assertEquals(hr_test.getReplicas(first).size(), chain.size());
+    }
+}
@@ -0,0 +1,58 @@
+package testing;
+
+import app_kvServer.KVServerHintLog;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class HintLogTest extends TestCase {
+
+    private static final int PORT = 59999;
+
+    @Override
+    protected void setUp() throws Exception {
+        new File("HINT-" + PORT + ".txt").delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File("HINT-" + PORT + ".txt").delete();
+    }
+
+    public void testHintsSurviveRestart() throws Exception {
+        KVServerHintLog log = new KVServerHintLog(PORT);
+        assertTrue(log.load().isEmpty());
+        assertTrue(log.append(50001, "a"));
+        assertTrue(log.append(50002, "b,with comma"));
+        assertTrue(log.append(50001, "c"));
+        assertTrue(log.append(50001, "a"));
+
+        Map<Integer, Set<String>> hints = new KVServerHintLog(PORT).load();
+        assertEquals(Arrays.asList("a", "c"), new ArrayList<>(hints.get(50001)));
+        assertEquals(Collections.singleton("b,with comma"), hints.get(50002));
+    }
+
+    public void testRewriteKeepsPendingHintsOnly() throws Exception {
+        KVServerHintLog log = new KVServerHintLog(PORT);
+        log.load();
+        log.append(50001, "a");
+        log.append(50001, "a");
+        log.append(50002, "b");
+        assertEquals(3, log.getLines());
+
+        Map<Integer, Iterable<String>> pending = new HashMap<>();
+        pending.put(50002, Collections.singleton("b"));
+        log.rewrite(pending);
+        assertEquals(1, log.getLines());
+
+        Map<Integer, Set<String>> hints = new KVServerHintLog(PORT).load();
+        assertNull(hints.get(50001));
+        assertEquals(Collections.singleton("b"), hints.get(50002));
+    }
+}
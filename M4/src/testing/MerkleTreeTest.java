@@ -0,0 +1,97 @@
+package testing;
+
+import app_kvServer.KVServerMerkleTree;
+import junit.framework.TestCase;
+import shared.HashingFunction.MD5;
+import shared.messages.MerkleMessage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class MerkleTreeTest extends TestCase {
+
+    private static void put(KVServerMerkleTree tree, String key, String value) {
+        tree.put(key, MD5.HashInBI(key), value);
+    }
+
+    public void testSameContentSameRoot() throws Exception {
+        KVServerMerkleTree a = new KVServerMerkleTree(6);
+        KVServerMerkleTree b = new KVServerMerkleTree(6);
+        assertEquals(0, a.getRoot());
+        for (int i = 0; i < 200; i++) {
+            put(a, "key" + i, "value" + i);
+        }
+        // other order, with a value overwritten and a key deleted again
+        put(b, "extra", "x");
+        for (int i = 199; i >= 0; i--) {
+            put(b, "key" + i, i == 7 ? "old" : "value" + i);
+        }
+        put(b, "key7", "value7");
+        put(b, "extra", "");
+        assertEquals(a.getRoot(), b.getRoot());
+        assertEquals(200, b.size());
+    }
+
+    public void testDifferenceFoundInItsBucket() throws Exception {
+        KVServerMerkleTree a = new KVServerMerkleTree(6);
+        KVServerMerkleTree b = new KVServerMerkleTree(6);
+        for (int i = 0; i < 200; i++) {
+            put(a, "key" + i, "value" + i);
+            put(b, "key" + i, "value" + i);
+        }
+        put(b, "key42", "diverged");
+        assertTrue(a.getRoot() != b.getRoot());
+
+        // descend into the differing child only
+        int node = 1;
+        while (!a.isLeaf(node)) {
+            int[] children = {2 * node, 2 * node + 1};
+            long[] ours = a.getHashes(children);
+            long[] theirs = b.getHashes(children);
+            assertTrue(ours[0] != theirs[0] || ours[1] != theirs[1]);
+            assertFalse(ours[0] != theirs[0] && ours[1] != theirs[1]);
+            node = ours[0] != theirs[0] ? children[0] : children[1];
+        }
+        int bucket = node - (1 << a.getDepth());
+        assertEquals(a.bucketOf(MD5.HashInBI("key42")), bucket);
+        assertTrue(a.getBucket(bucket).containsKey("key42"));
+        assertFalse(a.getBucket(bucket).get("key42").equals(b.getBucket(bucket).get("key42")));
+    }
+
+    public void testTrailingWhitespaceIgnored() throws Exception {
+        assertEquals(KVServerMerkleTree.digest("a", "1"), KVServerMerkleTree.digest("a", "1 "));
+        assertTrue(KVServerMerkleTree.digest("a", "1") != KVServerMerkleTree.digest("a", "2"));
+    }
+
+    public void testMessages() throws Exception {
+        String[] range = {"localhost:50000", "localhost:50001"};
+        MerkleMessage.Request request = new MerkleMessage.Request(MerkleMessage.HASHES, 50000, range, new int[]{2, 3});
+        String msg = request.encode();
+        assertTrue(MerkleMessage.isMerkle(msg));
+        MerkleMessage.Request decoded = MerkleMessage.decode(msg);
+        assertEquals(MerkleMessage.HASHES, decoded.type);
+        assertEquals(50000, decoded.source);
+        assertEquals(range[1], decoded.range[1]);
+        assertEquals(3, decoded.ids[1]);
+
+        long[] hashes = {0, -1, 0x1234L};
+        long[] replied = MerkleMessage.hashesOf(MerkleMessage.hashesReply(hashes));
+        assertEquals(3, replied.length);
+        assertEquals(-1, replied[1]);
+        assertEquals(0x1234L, replied[2]);
+        assertNull(MerkleMessage.hashesOf(MerkleMessage.ERROR));
+
+        Map<String, Long> digests = new HashMap<>();
+        digests.put("a", KVServerMerkleTree.digest("a", "1"));
+        digests.put("b", Long.MIN_VALUE);
+        assertEquals(digests, MerkleMessage.keysOf(MerkleMessage.keysReply(digests)));
+        assertTrue(MerkleMessage.keysOf(MerkleMessage.keysReply(new HashMap<>())).isEmpty());
+        assertNull(MerkleMessage.keysOf(MerkleMessage.ERROR));
+
+        try {
+            MerkleMessage.decode("MERKLE_HASHES+x+a+b+1");
+            fail("port not checked");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
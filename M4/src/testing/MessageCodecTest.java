@@ -0,0 +1,143 @@
+package testing;
+
+import junit.framework.TestCase;
+import ecs.ECSNode;
+import shared.communication.MessageCodec;
+import shared.messages.BinaryProtocol;
+import shared.messages.KVMessage;
+import shared.messages.TextMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+public class MessageCodecTest extends TestCase {
+
+    /**
+     * Returns at most one byte per read, like a slow socket.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static byte[] frames(String... msgs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String msg : msgs) {
+            out.write(new TextMessage(msg).getMsgBytes());
+        }
+        return out.toByteArray();
+    }
+
+    public void testSeveralMessagesInOneRead() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        InputStream in = new ByteArrayInputStream(frames("PUT+a+1", "GET+a", "GET_SUCCESS+a+1"));
+
+        assertEquals("PUT+a+1", codec.readMessage(in).getMsg());
+        assertEquals("GET+a", codec.readMessage(in).getMsg());
+        assertEquals("GET_SUCCESS+a+1", codec.readMessage(in).getMsg());
+    }
+
+    public void testMessageSplitAcrossReads() throws Exception {
+        MessageCodec codec = new MessageCodec(4, 1024);
+        InputStream in = new TrickleInputStream(frames("PUT+key+value", "GET+key"));
+
+        assertEquals("PUT+key+value", codec.readMessage(in).getMsg());
+        assertEquals("GET+key", codec.readMessage(in).getMsg());
+    }
+
+    public void testBufferGrowsForLargeMessage() throws Exception {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            value.append('v');
+        }
+        MessageCodec codec = new MessageCodec(16, 1 << 16);
+        InputStream in = new ByteArrayInputStream(frames("PUT+k+" + value, "GET+k"));
+
+        assertEquals("PUT+k+" + value, codec.readMessage(in).getMsg());
+        assertEquals("GET+k", codec.readMessage(in).getMsg());
+    }
+
+    public void testMessageTooLarge() throws Exception {
+        MessageCodec codec = new MessageCodec(8, 32);
+        InputStream in = new ByteArrayInputStream(frames("0123456789012345678901234567890123456789"));
+        Exception ex = null;
+
+        try {
+            codec.readMessage(in);
+        } catch (IOException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+    }
+
+    public void testEndOfStream() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        InputStream in = new ByteArrayInputStream(frames("GET+a"));
+        Exception ex = null;
+
+        assertEquals("GET+a", codec.readMessage(in).getMsg());
+        try {
+            codec.readMessage(in);
+        } catch (EOFException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+    }
+
+    public void testBinaryFramesAfterHandshake() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(frames(BinaryProtocol.HANDSHAKE));
+        out.write(BinaryProtocol.encodeRequest(BinaryProtocol.OP_PUT, 1, "key", "v+a\nlue", 42, 5000));
+        out.write(BinaryProtocol.encodeRequest(BinaryProtocol.OP_GET, 2, "key", "", 0, 5000));
+
+        MessageCodec codec = new MessageCodec();
+        InputStream in = new TrickleInputStream(out.toByteArray());
+        assertEquals(BinaryProtocol.HANDSHAKE, codec.readMessage(in).getMsg());
+        codec.switchToBinary();
+
+        BinaryProtocol.Frame put = BinaryProtocol.decodeRequest(codec.readFrame(in));
+        assertEquals(BinaryProtocol.OP_PUT, put.opcode);
+        assertEquals(1, put.id);
+        assertEquals("key", put.key);
+        assertEquals("v+a\nlue", put.value);
+        assertEquals(42, put.timestamp);
+        assertEquals(5000, put.port);
+
+        BinaryProtocol.Frame get = BinaryProtocol.decodeRequest(codec.readFrame(in));
+        assertEquals(BinaryProtocol.OP_GET, get.opcode);
+        assertEquals(2, get.id);
+    }
+
+    public void testBinaryReplyWithHashRing() throws Exception {
+        ECSNode node = new ECSNode("server1", "127.0.0.1", 50000);
+        byte[] bytes = BinaryProtocol.encodeReply(7, KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, "",
+                Collections.singletonList(node));
+
+        BinaryProtocol.Frame reply = BinaryProtocol.decodeReply(
+                new MessageCodec().readFrame(new ByteArrayInputStream(bytes)));
+        assertEquals(7, reply.id);
+        assertEquals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, reply.status);
+        assertEquals(1, reply.hashRing.getSize());
+        assertEquals(50000, reply.hashRing.getNodeByServerName("server1").getNodePort());
+    }
+
+    public void testMalformedFrame() {
+        byte[] bytes = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01};
+        try {
+            new MessageCodec().readFrame(new ByteArrayInputStream(bytes));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
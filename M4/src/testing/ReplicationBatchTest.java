@@ -0,0 +1,94 @@
+package testing;
+
+import junit.framework.TestCase;
+import shared.messages.ReplicationBatch;
+
+public class ReplicationBatchTest extends TestCase {
+
+    public void testRoundTrip() throws Exception {
+        ReplicationBatch batch = new ReplicationBatch(41, 50001, 17);
+        batch.add(new ReplicationBatch.Record("PUT_REPLICATE", "a", "1", 100, "10.0.0.1", 50000, ""));
+        batch.add(new ReplicationBatch.Record("PUT_REPLICATE", "b", "", 101, 50000));
+        batch.add(new ReplicationBatch.Record("RECOVER_REPLICATE", "c", "3", 102, 50001, "server2:7"));
+        assertEquals(43, batch.getLast());
+
+        String msg = batch.encode();
+        assertTrue(ReplicationBatch.isBatch(msg));
+        ReplicationBatch decoded = ReplicationBatch.decode(msg);
+        assertEquals(41, decoded.getFirst());
+        assertEquals(50001, decoded.getSource());
+        assertEquals(17, decoded.getSynced());
+        assertEquals(3, decoded.size());
+
+        assertEquals("10.0.0.1", decoded.getRecords().get(0).host);
+        assertEquals(50000, decoded.getRecords().get(0).port);
+
+        ReplicationBatch.Record deleted = decoded.getRecords().get(1);
+        assertEquals("b", deleted.key);
+        assertEquals("", deleted.value);
+        assertEquals(101, deleted.timestamp);
+
+        ReplicationBatch.Record last = decoded.getRecords().get(2);
+        assertEquals("RECOVER_REPLICATE", last.cmd);
+        assertEquals("3", last.value);
+        assertEquals(50001, last.port);
+        assertEquals("server2:7", last.stamp);
+        assertEquals("", deleted.stamp);
+        assertEquals("", deleted.host);
+    }
+
+    public void testEmptyValueLast() throws Exception {
+        ReplicationBatch batch = new ReplicationBatch(1, 50000, ReplicationBatch.UNKNOWN);
+        batch.add(new ReplicationBatch.Record("PUT_REPLICATE", "a", "", 7, 50000));
+        ReplicationBatch decoded = ReplicationBatch.decode(batch.encode());
+        assertEquals("", decoded.getRecords().get(0).value);
+        assertEquals(50000, decoded.getRecords().get(0).port);
+        assertEquals(ReplicationBatch.UNKNOWN, decoded.getSynced());
+    }
+
+    public void testChained() throws Exception {
+        ReplicationBatch batch = new ReplicationBatch(5, 50000, ReplicationBatch.UNKNOWN, true);
+        batch.add(new ReplicationBatch.Record("PUT_REPLICATE", "a", "1", 7, 50000));
+        String msg = batch.encode();
+        assertTrue(msg.startsWith(ReplicationBatch.CHAIN));
+        assertTrue(ReplicationBatch.isBatch(msg));
+        assertTrue(ReplicationBatch.isReplication(msg));
+        ReplicationBatch decoded = ReplicationBatch.decode(msg);
+        assertTrue(decoded.isChained());
+        assertEquals("a", decoded.getRecords().get(0).key);
+        assertFalse(ReplicationBatch.decode(new ReplicationBatch(5, 50000, 0).encode()).isChained());
+    }
+
+    public void testMalformed() throws Exception {
+        assertFalse(ReplicationBatch.isBatch("PUT_REPLICATE+a+1+100+50000"));
+        try {
+            ReplicationBatch.decode("REPLICATE_BATCH+1+2+50000+0+PUT_REPLICATE+a+1+100+50000+");
+            fail("record count not checked");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            ReplicationBatch.decode("REPLICATE_BATCH+x+0+50000+0");
+            fail("sequence number not checked");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testAck() throws Exception {
+        assertEquals(43, ReplicationBatch.ackOf(ReplicationBatch.ack(43)));
+        assertEquals(-1, ReplicationBatch.ackOf("PUT_ERROR"));
+        assertEquals(-1, ReplicationBatch.ackOf("REPLICATE_ACK+x"));
+    }
+
+    public void testSync() throws Exception {
+        String sync = ReplicationBatch.sync(50002, 431);
+        assertEquals("REPLICATE_SYNC+50002+431", sync);
+        assertTrue(ReplicationBatch.isReplication(sync));
+        assertFalse(ReplicationBatch.isBatch(sync));
+        assertEquals(120, ReplicationBatch.fromOf(ReplicationBatch.from(120)));
+        assertEquals(ReplicationBatch.UNKNOWN, ReplicationBatch.fromOf(ReplicationBatch.from(ReplicationBatch.UNKNOWN)));
+        assertEquals(ReplicationBatch.UNKNOWN, ReplicationBatch.fromOf("CMD NOT RECOGNIZED: REPLICATE_SYNC"));
+        assertEquals("REPLICATE_SNAPSHOT+50002+a0+ff",
+                ReplicationBatch.snapshot(50002, new String[]{"a0", "ff"}));
+        assertTrue(ReplicationBatch.isReplication(ReplicationBatch.snapshot(50002, new String[]{"a0", "ff"})));
+    }
+}
@@ -0,0 +1,315 @@
+package testing;
+
+import app_kvServer.KVServer;
+import app_kvServer.KVServerDataReplication;
+import ecs.ECSHashRing;
+import ecs.ECSNode;
+import ecs.ZK;
+import junit.framework.TestCase;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import shared.HashingFunction.MD5;
+import shared.messages.KVMessage;
+import shared.messages.ReplicationBatch;
+import shared.messages.WriteConsistency;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A coordinator and its two replicas in this JVM, with hinted handoff off
+ * so a replica only gets what it missed by catching up.
+ */
+public class ReplicationTest extends TestCase {
+
+    private static final int FIRST_PORT = 50010;
+    private static final int SERVERS = 3;
+    private static final int CLIENT = 40000;
+
+    private ZooKeeper zk;
+    private ECSHashRing ring;
+    private KVServer[] servers;
+    private KVServer coordinator;
+    private int key = 0;
+    private long ts = 0;
+
+    @Override
+    protected void setUp() throws Exception {
+        System.setProperty("server.hintedHandoff", "false");
+        System.setProperty("server.antiEntropyInterval", "3600000");
+        deleteServerState();
+        zk = new ZK("127.0.0.1").connect();
+        for (String path : new String[]{"/server", "/metadata", "/liveServers"}) {
+            if (zk.exists(path, false) == null) {
+                zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+        }
+        ring = new ECSHashRing();
+        for (int i = 0; i < SERVERS; i++) {
+            ring.addNode(new ECSNode("server" + (11 + i), "127.0.0.1", FIRST_PORT + i));
+        }
+        servers = new KVServer[SERVERS];
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (KVServer server : servers) {
+            if (server != null) {
+                server.clearStorage();
+                server.kill();
+            }
+        }
+        zk.close();
+        deleteServerState();
+        System.clearProperty("server.hintedHandoff");
+        System.clearProperty("server.antiEntropyInterval");
+        System.clearProperty("server.walRetention");
+        System.clearProperty("server.chainReplication");
+    }
+
+    private void deleteServerState() {
+        for (int i = 0; i < SERVERS; i++) {
+            int port = FIRST_PORT + i;
+            for (String file : Arrays.asList("LUT-" + port + ".txt", "LSN-" + port + ".txt",
+                    "HINT-" + port + ".txt", "REQUESTS-" + port + ".txt", "CLOCK-" + port + ".bin")) {
+                new File(file).delete();
+            }
+        }
+    }
+
+    private void startCluster() throws Exception {
+        for (int i = 0; i < SERVERS; i++) {
+            servers[i] = startServer(FIRST_PORT + i);
+            servers[i].clearStorage();
+        }
+        publishRing();
+        coordinator = servers[0];
+    }
+
+    private KVServer startServer(int port) throws Exception {
+        KVServer server = new KVServer(port, 100, "LRU");
+        server.start();
+        new Thread(server).start();
+        assertTrue(waitFor(() -> server.getDataReplicationManager() != null, 5000));
+        return server;
+    }
+
+    private void publishRing() throws Exception {
+        zk.setData("/metadata", ring.getHashRingJson().getBytes(), -1);
+        for (KVServer server : servers) {
+            assertTrue(waitFor(() -> server.getHashRing() != null
+                    && server.getHashRing().getActiveNodes().size() == SERVERS, 5000));
+        }
+        Thread.sleep(500);
+    }
+
+    /**
+     * Stop a server as if it crashed, and let the coordinator see its
+     * connection closed.
+     */
+    private void kill(KVServer server) throws InterruptedException {
+        server.kill();
+        Thread.sleep(300);
+    }
+
+    private KVServer restart(int i) throws Exception {
+        servers[i] = startServer(FIRST_PORT + i);
+        publishRing();
+        return servers[i];
+    }
+
+    /**
+     * @return replica at the position in the chain of the coordinator
+     */
+    private KVServer replica(int position) {
+        int port = ring.getChain(ring.getNodeByServerName("server11")).get(position).getNodePort();
+        return servers[port - FIRST_PORT];
+    }
+
+    private int indexOf(KVServer server) {
+        return Arrays.asList(servers).indexOf(server);
+    }
+
+    /**
+     * @return a new key coordinated by the server at the port
+     */
+    private String keyOf(int port) {
+        String k;
+        do {
+            k = "key" + (key++);
+        } while (ring.getNodeByHash(MD5.HashInBI(k)).getNodePort() != port);
+        return k;
+    }
+
+    private KVMessage.StatusType put(String k, String value, WriteConsistency consistency) throws Exception {
+        return coordinator.putKV(k, value, "PUT", ++ts, CLIENT, consistency);
+    }
+
+    private static boolean waitFor(BooleanSupplier condition, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    public void testQuorumWithoutAReplica() throws Exception {
+        startCluster();
+        KVServer tail = replica(1);
+        kill(tail);
+
+        String quorum = keyOf(FIRST_PORT);
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, put(quorum, "a", WriteConsistency.QUORUM));
+        assertTrue(replica(0).inStorage(quorum));
+
+        // every replica is needed, the PUT is rolled back
+        String all = keyOf(FIRST_PORT);
+        try {
+            put(all, "a", WriteConsistency.ALL);
+            fail("a PUT at ALL succeeded without a replica");
+        } catch (Exception e) {
+            // expected
+        }
+        assertFalse(coordinator.inStorage(all));
+    }
+
+    public void testCatchUpFromStoredPosition() throws Exception {
+        startCluster();
+        KVServer tail = replica(1);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            keys.add(keyOf(FIRST_PORT));
+            put(keys.get(i), "a", WriteConsistency.ALL);
+        }
+        int index = indexOf(tail);
+        assertTrue(waitFor(() -> tail.getReplicaPosition(FIRST_PORT) >= 5, 2000));
+        long position = tail.getReplicaPosition(FIRST_PORT);
+        long snapshots = coordinator.getMetrics().get("replica_snapshots");
+
+        kill(tail);
+        for (int i = 0; i < 5; i++) {
+            keys.add(keyOf(FIRST_PORT));
+            put(keys.get(5 + i), "b", WriteConsistency.QUORUM);
+        }
+        long entries = coordinator.getMetrics().get("replica_catchup_entries");
+
+        KVServer restarted = restart(index);
+        // the next PUT reconnects the replica, which catches up from where it was
+        String next = keyOf(FIRST_PORT);
+        keys.add(next);
+        put(next, "c", WriteConsistency.ALL);
+        for (String k : keys) {
+            assertTrue(k, restarted.inStorage(k));
+        }
+        assertEquals(snapshots, coordinator.getMetrics().get("replica_snapshots"));
+        assertTrue(coordinator.getMetrics().get("replica_catchup_entries") >= entries + 5);
+    }
+
+    public void testSnapshotWhenWALTruncated() throws Exception {
+        System.setProperty("server.walRetention", "4");
+        startCluster();
+        KVServer tail = replica(1);
+        put(keyOf(FIRST_PORT), "a", WriteConsistency.ALL);
+        int index = indexOf(tail);
+        long snapshots = coordinator.getMetrics().get("replica_snapshots");
+
+        kill(tail);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            keys.add(keyOf(FIRST_PORT));
+            put(keys.get(i), "b", WriteConsistency.QUORUM);
+        }
+
+        KVServer restarted = restart(index);
+        String next = keyOf(FIRST_PORT);
+        keys.add(next);
+        put(next, "c", WriteConsistency.ALL);
+        assertTrue(coordinator.getMetrics().get("replica_snapshots") > snapshots);
+        for (String k : keys) {
+            assertTrue(k, restarted.inStorage(k));
+        }
+    }
+
+    public void testRefusedPutStaysOutstanding() throws Exception {
+        startCluster();
+        KVServer tail = replica(1);
+        put(keyOf(FIRST_PORT), "a", WriteConsistency.ALL);
+        assertTrue(waitFor(() -> tail.getReplicaPosition(FIRST_PORT) > 0, 2000));
+        long position = tail.getReplicaPosition(FIRST_PORT);
+
+        tail.lockWrite();
+        String refused = keyOf(FIRST_PORT);
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, put(refused, "a", WriteConsistency.QUORUM));
+        tail.unlockWrite();
+        String applied = keyOf(FIRST_PORT);
+        put(applied, "a", WriteConsistency.ALL);
+        assertTrue(tail.inStorage(applied));
+
+        // the replica is not told it is past the refused PUT
+        Thread.sleep(500);
+        assertEquals(position, tail.getReplicaPosition(FIRST_PORT));
+
+        int index = indexOf(tail);
+        kill(tail);
+        KVServer restarted = restart(index);
+        put(keyOf(FIRST_PORT), "a", WriteConsistency.ALL);
+        assertTrue(restarted.inStorage(refused));
+        assertTrue(waitFor(() -> restarted.getReplicaPosition(FIRST_PORT) > position + 2, 2000));
+    }
+
+    public void testRelayStopsAtTheFirstRefusal() throws Exception {
+        System.setProperty("server.chainReplication", "true");
+        startCluster();
+        KVServer middle = replica(0);
+        KVServer tail = replica(1);
+        int middlePort = middle.getPort();
+        int tailPort = tail.getPort();
+        // keys whose chain ends at the middle replica are not relayed further
+        String ending = null;
+        for (ECSNode node : ring.getActiveNodes().values()) {
+            List<ECSNode> chain = ring.getChain(node);
+            if (chain.get(chain.size() - 1).getNodePort() == middlePort) {
+                ending = keyOf(node.getNodePort());
+            }
+        }
+        assertNotNull(ending);
+        List<ReplicationBatch.Record> records = Arrays.asList(
+                new ReplicationBatch.Record("PUT_REPLICATE", ending, "a", ++ts, CLIENT),
+                new ReplicationBatch.Record("PUT_REPLICATE", keyOf(FIRST_PORT), "a", ++ts, CLIENT),
+                new ReplicationBatch.Record("PUT_REPLICATE", ending, "b", ++ts, CLIENT));
+
+        tail.lockWrite();
+        assertEquals(1, middle.relayDownChain(records));
+        tail.unlockWrite();
+        assertEquals(3, middle.relayDownChain(records));
+        assertTrue(servers[tailPort - FIRST_PORT].inStorage(records.get(1).key));
+    }
+
+    public void testSendDoesNotWaitForTheConnection() throws Exception {
+        // a replica that accepts the connection but never greets
+        try (ServerSocket silent = new ServerSocket(0)) {
+            KVServerDataReplication link = new KVServerDataReplication(
+                    new ECSNode("server19", "127.0.0.1", silent.getLocalPort()));
+            long start = System.currentTimeMillis();
+            CompletableFuture<Boolean> ack = link.replicate("PUT_REPLICATE", "a", "a", ++ts, CLIENT, false);
+            assertTrue(System.currentTimeMillis() - start < 500);
+            Socket accepted = silent.accept();
+            assertFalse(ack.isDone());
+
+            accepted.close();
+            assertFalse(ack.get(5, TimeUnit.SECONDS));
+            assertFalse(link.isRunning());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package testing;
+
+import app_kvServer.Database.WALEntry;
+import app_kvServer.KVServer;
+import app_kvServer.KVServerRequestWindow;
+import junit.framework.TestCase;
+import shared.Constants;
+import shared.messages.KVMessage;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RequestWindowTest extends TestCase {
+
+    private static final int PORT = 59998;
+    private static final int SERVER_PORT = 59997;
+    private static final String HOST = "10.0.0.1";
+    private static final String OTHER_HOST = "fe80::2";
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private KVServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        new File("REQUESTS-" + PORT + ".txt").delete();
+        deleteServerState();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File("REQUESTS-" + PORT + ".txt").delete();
+        if (server != null) {
+            server.clearStorage();
+            server.kill();
+            server = null;
+        }
+        deleteServerState();
+    }
+
+    private void deleteServerState() {
+        for (String file : new String[]{"LUT-", "REQUESTS-", "CLOCK-", "LSN-"}) {
+            new File(file + SERVER_PORT + (file.equals("CLOCK-") ? ".bin" : ".txt")).delete();
+        }
+    }
+
+    private KVServer restartServer() throws InterruptedException {
+        if (server != null) {
+            server.kill();
+        }
+        server = new KVServer(SERVER_PORT, 10, "LRU");
+        server.start();
+        new Thread(server).start();
+        // replication is set up once the server listens
+        for (int i = 0; i < 50 && server.getDataReplicationManager() == null; i++) {
+            Thread.sleep(100);
+        }
+        return server;
+    }
+
+    public void testOldestLeavesTheWindow() throws Exception {
+        KVServerRequestWindow requests = new KVServerRequestWindow(PORT, 4, 10, 60000, now::get);
+        assertEquals(-1, requests.lookup(HOST, 40000, 100));
+        for (int i = 0; i < 6; i++) {
+            requests.record(HOST, 40000, 100 + i, i + 1);
+        }
+        assertEquals(-1, requests.lookup(HOST, 40000, 100));
+        assertEquals(-1, requests.lookup(HOST, 40000, 101));
+        assertEquals(3, requests.lookup(HOST, 40000, 102));
+        assertEquals(6, requests.lookup(HOST, 40000, 105));
+        // same timestamp of another client
+        assertEquals(-1, requests.lookup(HOST, 40001, 105));
+    }
+
+    public void testSamePortOnAnotherHost() throws Exception {
+        KVServerRequestWindow requests = new KVServerRequestWindow(PORT, 4, 10, 60000, now::get);
+        requests.record(HOST, 40000, 100, 1);
+        assertEquals(-1, requests.lookup(OTHER_HOST, 40000, 100));
+        requests.record(OTHER_HOST, 40000, 100, 2);
+        assertEquals(1, requests.lookup(HOST, 40000, 100));
+        assertEquals(2, requests.lookup(OTHER_HOST, 40000, 100));
+    }
+
+    public void testIdleClientsForgotten() throws Exception {
+        KVServerRequestWindow requests = new KVServerRequestWindow(PORT, 4, 10, 60000, now::get);
+        requests.record(HOST, 40000, 100, 1);
+        now.addAndGet(30000);
+        requests.record(HOST, 40001, 100, 2);
+        now.addAndGet(40000);
+        requests.record(HOST, 40002, 100, 3);
+        assertEquals(2, requests.getClients());
+        assertEquals(-1, requests.lookup(HOST, 40000, 100));
+        assertEquals(2, requests.lookup(HOST, 40001, 100));
+    }
+
+    public void testClientsBounded() throws Exception {
+        KVServerRequestWindow requests = new KVServerRequestWindow(PORT, 4, 8, 60000, now::get);
+        for (int client = 0; client < 100; client++) {
+            now.incrementAndGet();
+            requests.record(HOST, 40000 + client, 100, client + 1);
+            assertTrue(requests.getClients() <= 8);
+        }
+        // the least recently active are forgotten first
+        assertEquals(100, requests.lookup(HOST, 40099, 100));
+        assertEquals(-1, requests.lookup(HOST, 40000, 100));
+    }
+
+    public void testCheckpointSurvivesRestart() throws Exception {
+        KVServerRequestWindow requests = new KVServerRequestWindow(PORT, 4, 10, 60000, now::get);
+        for (int i = 0; i < 6; i++) {
+            requests.record(HOST, 40000, 100 + i, i + 1);
+        }
+        requests.record(HOST, 40001, 7, 7);
+        requests.record(OTHER_HOST, 40001, 7, 8);
+        requests.checkpoint();
+
+        KVServerRequestWindow restarted = new KVServerRequestWindow(PORT, 4, 10, 60000, now::get);
+        restarted.load();
+        assertEquals(3, restarted.getClients());
+        assertEquals(-1, restarted.lookup(HOST, 40000, 101));
+        assertEquals(3, restarted.lookup(HOST, 40000, 102));
+        assertEquals(7, restarted.lookup(HOST, 40001, 7));
+        assertEquals(8, restarted.lookup(OTHER_HOST, 40001, 7));
+    }
+
+    public void testRetryAnsweredLikeThePut() throws Exception {
+        restartServer().clearStorage();
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, server.putKV("retried", "a", "PUT", 100, HOST, 40000, null));
+        // the answer was lost, the client sends the PUT again
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, server.putKV("retried", "a", "PUT", 100, HOST, 40000, null));
+        assertEquals(1, server.getMetrics().get("puts_deduplicated"));
+        assertEquals(KVMessage.StatusType.PUT_UPDATE, server.putKV("retried", "b", "PUT", 101, HOST, 40000, null));
+        assertEquals("b", server.getKV("retried"));
+    }
+
+    public void testClientsOnOtherHostsNotSkipped() throws Exception {
+        restartServer().clearStorage();
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, server.putKV("shared", "a", "PUT", 100, HOST, 40000, null));
+        // another client with the same port writing in the same ms
+        assertEquals(KVMessage.StatusType.PUT_UPDATE,
+                server.putKV("shared", "b", "PUT", 100, OTHER_HOST, 40000, null));
+        assertEquals(0, server.getMetrics().get("puts_deduplicated"));
+        assertEquals("b", server.getKV("shared"));
+
+        restartServer();
+        // the WAL keeps both apart
+        assertNull(server.putKV("shared", "b", "PUT", 100, OTHER_HOST, 40000, null));
+        assertEquals(KVMessage.StatusType.PUT_UPDATE, server.putKV("shared", "c", "PUT", 100, "10.0.0.3", 40000, null));
+        assertEquals(1, server.getMetrics().get("puts_deduplicated"));
+    }
+
+    public void testRetrySkippedAfterRestart() throws Exception {
+        restartServer().clearStorage();
+        server.putKV("restarted", "a", "PUT", 100, HOST, 40000, null);
+        server.putKV("restarted", "b", "PUT", 101, HOST, 40000, null);
+
+        restartServer();
+        // only the WAL has it, without its status
+        assertNull(server.putKV("restarted", "a", "PUT", 100, HOST, 40000, null));
+        assertEquals(1, server.getMetrics().get("puts_deduplicated"));
+        assertEquals("b", server.getKV("restarted"));
+    }
+
+    public void testRolledBackPutAppliedAgain() throws Exception {
+        restartServer().clearStorage();
+        server.putKV("rolledBack", "a", "PUT", 100, HOST, 40000, null);
+        server.putKV("rolledBack", "b", "PUT", 101, HOST, 40000, null);
+        // its replication failed, the previous value was put back
+        try (FileWriter wal = new FileWriter("LUT-" + SERVER_PORT + ".txt", true)) {
+            wal.write(new WALEntry(3, "rolledBack", "a", Constants.ROLLBACK, HOST, 40000, 101, "").getEntry());
+        }
+
+        restartServer();
+        assertEquals(KVMessage.StatusType.PUT_UPDATE, server.putKV("rolledBack", "b", "PUT", 101, HOST, 40000, null));
+        assertEquals(0, server.getMetrics().get("puts_deduplicated"));
+    }
+}
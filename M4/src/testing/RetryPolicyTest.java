@@ -0,0 +1,115 @@
+package testing;
+
+import client.KVStore;
+import junit.framework.TestCase;
+import shared.Constants;
+import shared.communication.MessageCodec;
+import shared.communication.RetryPolicy;
+import shared.messages.KVMessage;
+import shared.messages.TextMessage;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class RetryPolicyTest extends TestCase {
+
+    public void testAttemptsLimit() throws Exception {
+        RetryPolicy policy = new RetryPolicy(1, 4, 3, 10000, 100, 0);
+        RetryPolicy.Retry retry = policy.start();
+        int attempts = 0;
+        while (retry.backoff()) {
+            attempts++;
+        }
+        assertEquals(3, attempts);
+        assertEquals(3, retry.getAttempts());
+    }
+
+    public void testBackoffStaysBelowCap() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 20, 4, 10000, 100, 0);
+        RetryPolicy.Retry retry = policy.start();
+        long start = System.currentTimeMillis();
+        while (retry.backoff()) {
+        }
+        // caps are 10, 20, 20 and 20 ms
+        assertTrue(System.currentTimeMillis() - start < 70 + 50);
+    }
+
+    public void testDeadline() throws Exception {
+        RetryPolicy policy = new RetryPolicy(200, 200, 100, 300, 100, 0);
+        RetryPolicy.Retry retry = policy.start();
+        long start = System.currentTimeMillis();
+        while (retry.backoff()) {
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 300 - 10);
+        assertTrue(elapsed < 300 + 200);
+    }
+
+    public void testBudgetSharedByOperations() throws Exception {
+        RetryPolicy policy = new RetryPolicy(0, 0, 10, 10000, 3, 0.5);
+
+        RetryPolicy.Retry first = policy.start();
+        assertTrue(first.backoff());
+        assertTrue(first.backoff());
+
+        RetryPolicy.Retry second = policy.start();
+        assertTrue(second.backoff());
+        assertFalse(second.backoff());
+
+        // two successful exchanges earn one retry back
+        policy.succeeded();
+        policy.succeeded();
+        assertTrue(policy.start().backoff());
+        assertFalse(policy.start().backoff());
+    }
+
+    public void testBudgetIsCapped() {
+        RetryPolicy policy = new RetryPolicy(0, 0, 10, 10000, 2, 1);
+        for (int i = 0; i < 10; i++) {
+            policy.succeeded();
+        }
+        assertEquals(2.0, policy.getTokens(), 0.0);
+    }
+
+    /**
+     * Answer the first requests on one connection with PUT_ERROR, the
+     * following ones with PUT_SUCCESS.
+     */
+    private static void serve(ServerSocket server, int errors) {
+        Thread thread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                MessageCodec codec = new MessageCodec();
+                out.write(new TextMessage("Connection established").getMsgBytes());
+                for (int i = 0; ; i++) {
+                    codec.readMessage(in);
+                    out.write(new TextMessage(i < errors ? "PUT_ERROR" : "PUT_SUCCESS").getMsgBytes());
+                }
+            } catch (Exception e) {
+                // client gone
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void testOnlySuccessfulRequestsRefillTheBudget() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            // the PUT and each of its retries fail
+            serve(server, 1 + Constants.RETRY_MAX_ATTEMPTS);
+            KVStore store = new KVStore("127.0.0.1", server.getLocalPort());
+            store.connect();
+            assertEquals(KVMessage.StatusType.PUT_ERROR, store.put("a", "a").getStatus());
+            // every retry took a token, none of the error replies gave one back
+            double tokens = Constants.RETRY_BUDGET - Constants.RETRY_MAX_ATTEMPTS;
+            assertEquals(tokens, store.getRetryTokens(), 1e-9);
+
+            assertEquals(KVMessage.StatusType.PUT_SUCCESS, store.put("a", "b").getStatus());
+            assertEquals(tokens + Constants.RETRY_BUDGET_RATIO, store.getRetryTokens(), 1e-9);
+            store.disconnect();
+        }
+    }
+}
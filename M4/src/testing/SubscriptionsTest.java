@@ -0,0 +1,73 @@
+package testing;
+
+import junit.framework.TestCase;
+import shared.Constants;
+import shared.communication.Subscriptions;
+import shared.messages.TextMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SubscriptionsTest extends TestCase {
+
+    private static class Recorder implements Subscriptions.Subscriber {
+        List<String> pushed = new ArrayList<>();
+
+        @Override
+        public void push(TextMessage msg) {
+            pushed.add(msg.getMsg().trim());
+        }
+    }
+
+    public void testInvalidateReachesReadersOnce() {
+        Subscriptions subscriptions = new Subscriptions();
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        subscriptions.subscribe(a, "foo");
+        subscriptions.subscribe(b, "foo");
+        subscriptions.subscribe(b, "bar");
+
+        subscriptions.invalidate("foo");
+        subscriptions.invalidate("foo");
+        assertEquals(1, a.pushed.size());
+        assertEquals("INVALIDATE+foo", a.pushed.get(0));
+        assertEquals(1, b.pushed.size());
+
+        subscriptions.invalidate("bar");
+        assertEquals(1, a.pushed.size());
+        assertEquals("INVALIDATE+bar", b.pushed.get(1));
+    }
+
+    public void testInvalidateAll() {
+        Subscriptions subscriptions = new Subscriptions();
+        Recorder a = new Recorder();
+        subscriptions.subscribe(a, "foo");
+        subscriptions.invalidateAll();
+        assertEquals("INVALIDATE_ALL", a.pushed.get(0));
+
+        subscriptions.invalidate("foo");
+        assertEquals(1, a.pushed.size());
+    }
+
+    public void testRemovedConnectionIsNotPushed() {
+        Subscriptions subscriptions = new Subscriptions();
+        Recorder a = new Recorder();
+        subscriptions.subscribe(a, "foo");
+        subscriptions.remove(a);
+        subscriptions.invalidate("foo");
+        assertTrue(a.pushed.isEmpty());
+        assertEquals(0, subscriptions.getSubscriberCount());
+    }
+
+    public void testLimitResetsConnection() {
+        Subscriptions subscriptions = new Subscriptions();
+        Recorder a = new Recorder();
+        for (int i = 0; i <= Constants.SUBSCRIPTION_LIMIT; i++) {
+            subscriptions.subscribe(a, "key" + i);
+        }
+        assertEquals(1, a.pushed.size());
+        assertEquals("INVALIDATE_ALL", a.pushed.get(0));
+        subscriptions.invalidate("key0");
+        assertEquals(1, a.pushed.size());
+    }
+}
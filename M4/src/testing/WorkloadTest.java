@@ -0,0 +1,94 @@
+package testing;
+
+import junit.framework.TestCase;
+import shared.workload.KeyChooser;
+import shared.workload.LatencyHistogram;
+import shared.workload.Workload;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WorkloadTest extends TestCase {
+
+    public void testHistogramPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 10000; v++) {
+            h.record(v);
+        }
+        assertEquals(10000, h.getCount());
+        assertEquals(1, h.getMin());
+        assertEquals(10000, h.getMax());
+        assertEquals(5000.5, h.getMean(), 0.001);
+        assertEquals(5000, h.getValueAtPercentile(50), 5000 * 0.016);
+        assertEquals(9900, h.getValueAtPercentile(99), 9900 * 0.016);
+        assertEquals(10000, h.getValueAtPercentile(100));
+    }
+
+    public void testHistogramSmallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(3);
+        h.record(7);
+        assertEquals(3, h.getValueAtPercentile(50));
+        assertEquals(7, h.getValueAtPercentile(99));
+    }
+
+    public void testHistogramMerge() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        b.record(1000000);
+        a.merge(b);
+        assertEquals(2, a.getCount());
+        assertEquals(10, a.getMin());
+        assertEquals(1000000, a.getMax());
+        assertEquals(1000000, a.getValueAtPercentile(100), 1000000 * 0.016);
+    }
+
+    public void testZipfianIsSkewed() {
+        int n = 1000;
+        KeyChooser chooser = KeyChooser.create(KeyChooser.Distribution.ZIPFIAN, new AtomicLong(n));
+        Random random = new Random(42);
+        int[] hits = new int[n];
+        for (int i = 0; i < 100000; i++) {
+            long key = chooser.next(random);
+            assertTrue(key >= 0 && key < n);
+            hits[(int) key]++;
+        }
+        int max = 0;
+        for (int h : hits) {
+            max = Math.max(max, h);
+        }
+        // the most popular of 1000 records gets far more than the uniform share of 100
+        assertTrue(max > 5000);
+    }
+
+    public void testLatestFollowsInserts() {
+        AtomicLong records = new AtomicLong(100);
+        KeyChooser chooser = KeyChooser.create(KeyChooser.Distribution.LATEST, records);
+        Random random = new Random(42);
+        records.set(200);
+        int recent = 0;
+        for (int i = 0; i < 1000; i++) {
+            long key = chooser.next(random);
+            assertTrue(key >= 0 && key < 200);
+            if (key >= 180) {
+                recent++;
+            }
+        }
+        assertTrue(recent > 500);
+    }
+
+    public void testWorkloadMix() {
+        Random random = new Random(42);
+        int reads = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (Workload.B.next(random) == Workload.Operation.READ) {
+                reads++;
+            }
+        }
+        assertEquals(9500, reads, 150);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Workload.Operation.READ, Workload.C.next(random));
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package testing;
+
+import junit.framework.TestCase;
+import shared.messages.WriteConsistency;
+
+public class WriteConsistencyTest extends TestCase {
+
+    public void testRequiredAcks() {
+        assertEquals(0, WriteConsistency.ONE.requiredAcks(2));
+        assertEquals(1, WriteConsistency.QUORUM.requiredAcks(2));
+        assertEquals(2, WriteConsistency.ALL.requiredAcks(2));
+        assertEquals(0, WriteConsistency.QUORUM.requiredAcks(0));
+        assertEquals(2, WriteConsistency.QUORUM.requiredAcks(4));
+    }
+
+    public void testParse() {
+        assertEquals(WriteConsistency.QUORUM, WriteConsistency.parse("quorum", WriteConsistency.ALL));
+        assertEquals(WriteConsistency.ONE, WriteConsistency.parse(" ONE\n", WriteConsistency.ALL));
+        assertEquals(WriteConsistency.ALL, WriteConsistency.parse("1", WriteConsistency.ALL));
+        assertEquals(WriteConsistency.ALL, WriteConsistency.parse(null, WriteConsistency.ALL));
+    }
+}